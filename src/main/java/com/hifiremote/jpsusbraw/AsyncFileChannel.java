@@ -0,0 +1,179 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/** Asynchronous view of a {@link JpsUsbRaw} settings file.
+ *
+ * Requests run on the device's I/O thread at this channel's priority,
+ * merged with other requests for nearby data (see {@link IoScheduler}).
+ * Completion handlers are also invoked on that thread, so they should
+ * not block. Closing this channel does not close the device, but closing
+ * the device closes this channel and fails any requests still queued.
+ */
+public class AsyncFileChannel
+extends AsynchronousFileChannel {
+    private final JpsUsbRaw channel;
+    private final IoScheduler scheduler;
+    private final IoPriority priority;
+    private volatile boolean open = true;
+
+    AsyncFileChannel (JpsUsbRaw channel,
+            IoScheduler scheduler, IoPriority priority) {
+        this.channel = channel;
+        this.scheduler = scheduler;
+        this.priority = priority;
+    }
+
+    public IoPriority priority() {
+        return priority;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open && channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public long size()
+    throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+
+        return channel.size();
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate (long size)
+    throws IOException {
+        throw new IOException( "truncation is not supported" );
+    }
+
+    @Override
+    public void force (boolean metaData)
+    throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+    }
+
+    @Override
+    public <A> void lock (long position, long size, boolean shared,
+            A attachment, CompletionHandler<FileLock, ? super A> handler) {
+        handler.failed( new IOException(
+                    "locking is not supported for this channel" ), attachment );
+    }
+
+    @Override
+    public Future<FileLock> lock (long position, long size, boolean shared) {
+        FutureHandler<FileLock> future = new FutureHandler<FileLock>();
+        lock( position, size, shared, null, future );
+        return future;
+    }
+
+    @Override
+    public FileLock tryLock (long position, long size, boolean shared)
+    throws IOException {
+        throw new IOException( "locking is not supported for this channel" );
+    }
+
+    @Override
+    public <A> void read (ByteBuffer dst, long position,
+            A attachment, CompletionHandler<Integer, ? super A> handler) {
+        if (position < 0)
+            throw new IllegalArgumentException( "position may not be negative" );
+        if (dst.isReadOnly())
+            throw new IllegalArgumentException( "dst may not be read-only" );
+
+        submit( dst, position, false, attachment, handler );
+    }
+
+    @Override
+    public Future<Integer> read (ByteBuffer dst, long position) {
+        FutureHandler<Integer> future = new FutureHandler<Integer>();
+        read( dst, position, null, future );
+        return future;
+    }
+
+    @Override
+    public <A> void write (ByteBuffer src, long position,
+            A attachment, CompletionHandler<Integer, ? super A> handler) {
+        if (position < 0)
+            throw new IllegalArgumentException( "position may not be negative" );
+
+        submit( src, position, true, attachment, handler );
+    }
+
+    @Override
+    public Future<Integer> write (ByteBuffer src, long position) {
+        FutureHandler<Integer> future = new FutureHandler<Integer>();
+        write( src, position, null, future );
+        return future;
+    }
+
+    private <A> void submit (ByteBuffer buffer, long position, boolean write,
+            final A attachment,
+            final CompletionHandler<Integer, ? super A> handler) {
+        if (!isOpen()) {
+            handler.failed( new ClosedChannelException(), attachment );
+            return;
+        }
+
+        if (buffer.remaining() == 0) {
+            handler.completed( 0, attachment );
+            return;
+        }
+
+        channel.metrics().asyncRequests.increment();
+        scheduler.submit( new IoScheduler.Request(
+                    write ? IoScheduler.Kind.WRITE : IoScheduler.Kind.READ,
+                    buffer, position, priority, channel.defaultDeadline() ) {
+                @Override
+                protected void completed (int result) {
+                    handler.completed( result, attachment );
+                }
+
+                @Override
+                protected void failed (Throwable cause) {
+                    handler.failed( cause, attachment );
+                }
+            });
+    }
+
+
+    /** Completes a future from a completion handler callback. */
+    private static class FutureHandler<V>
+    extends CompletableFuture<V>
+    implements CompletionHandler<V, Object> {
+        @Override
+        public void completed (V result, Object attachment) {
+            complete( result );
+        }
+
+        @Override
+        public void failed (Throwable cause, Object attachment) {
+            completeExceptionally( cause );
+        }
+    }
+}
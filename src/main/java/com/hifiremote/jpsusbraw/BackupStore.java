@@ -0,0 +1,381 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** A content-addressed store of settings file snapshots.
+ *
+ * Images are split into chunks of whole device blocks, and each chunk
+ * is stored once under its SHA-256 hash in {@code chunks/}, optionally
+ * deflated. A snapshot is a manifest in {@code snapshots/<device>/}
+ * listing its chunk hashes in order, so images which share most of
+ * their contents share most of their storage. The store is kept in
+ * {@code ~/.jpsusbraw/store} unless the {@code jpsusbraw.store} system
+ * property names another directory.
+ */
+class BackupStore {
+    private static final Logger log = LogManager.getLogger();
+
+    /** Device blocks per chunk. */
+    static final int CHUNK_BLOCKS = 8;
+
+    // chunks read from the device, and written to it, per request
+    private static final int BATCH_CHUNKS = 64;
+
+    private static final String HEADER = "# JpsUsbRaw snapshot";
+
+    private final File root;
+    private final boolean compress;
+
+    BackupStore (File root, boolean compress) {
+        this.root = root;
+        this.compress = compress;
+    }
+
+    static File defaultRoot() {
+        String path = System.getProperty( "jpsusbraw.store" );
+        if (path != null) return new File( path );
+
+        return new File( new File( System.getProperty( "user.home" ),
+                    ".jpsusbraw" ), "store" );
+    }
+
+    /** Stores a snapshot of a device's settings file and returns its
+     * manifest. Only chunks not already in the store are written.
+     */
+    Manifest backup (JpsUsbRaw settings)
+    throws IOException {
+        int chunkSize = settings.blockSize() * CHUNK_BLOCKS;
+        long size = settings.size();
+
+        SimpleDateFormat format = new SimpleDateFormat( "yyyyMMdd'T'HHmmss'Z'" );
+        format.setTimeZone( TimeZone.getTimeZone( "UTC" ));
+        Manifest manifest = new Manifest( settings.identity() + "/"
+                + format.format( new Date() ), size, chunkSize );
+
+        Set<String> seen = new HashSet<String>();
+        ByteBuffer batch = ByteBuffer.allocate( chunkSize * BATCH_CHUNKS );
+        long position = 0;
+        while (position < size) {
+            readBatch( settings, batch, position );
+
+            while (batch.hasRemaining()) {
+                ByteBuffer chunk = batch.duplicate();
+                chunk.limit( Math.min( batch.limit(),
+                            batch.position() + chunkSize ));
+                batch.position( chunk.limit() );
+
+                String hash = TransferJournal.hex(
+                        TransferJournal.digest( chunk ));
+                manifest.hashes.add( hash );
+
+                if (seen.add( hash ) && !hasChunk( hash )) {
+                    manifest.storedBytes += putChunk( hash, chunk );
+                    manifest.newChunks++;
+                }
+            }
+
+            position += batch.limit();
+        }
+
+        File file = manifestFile( manifest.name );
+        mkdirs( file.getParentFile() );
+        manifest.write( file );
+
+        if (log.isDebugEnabled()) {
+            log.debug( String.format(
+                    "stored snapshot %s: %d chunks, %d new, %d bytes",
+                    manifest.name, manifest.hashes.size(),
+                    manifest.newChunks, manifest.storedBytes
+                ));
+        }
+
+        return manifest;
+    }
+
+    /** Writes a snapshot to a device's settings file, streaming batches
+     * of chunks into range writes. If {@code verify} is set, reads the
+     * file back and checks each chunk's hash; returns the number of
+     * chunks which did not match.
+     */
+    int restore (Manifest manifest, JpsUsbRaw settings, boolean verify)
+    throws IOException {
+        if (manifest.size != settings.size()) {
+            throw new IOException( "snapshot is " + manifest.size
+                    + " bytes, but settings are " + settings.size() + " bytes" );
+        }
+
+        List<FileRange> ranges = new ArrayList<FileRange>();
+        for (int idx = 0; idx < manifest.hashes.size(); idx++) {
+            ranges.add( new FileRange( manifest.offset( idx ),
+                        ByteBuffer.wrap( getChunk( manifest.hashes.get( idx )))));
+
+            if (ranges.size() == BATCH_CHUNKS) {
+                settings.writeRanges( ranges );
+                ranges.clear();
+            }
+        }
+        if (!ranges.isEmpty()) settings.writeRanges( ranges );
+
+        if (!verify) return 0;
+
+        int mismatches = 0;
+        ByteBuffer batch = ByteBuffer.allocate(
+                manifest.chunkSize * BATCH_CHUNKS );
+        for (int idx = 0; idx < manifest.hashes.size(); ) {
+            readBatch( settings, batch, manifest.offset( idx ));
+
+            while (batch.hasRemaining()) {
+                ByteBuffer chunk = batch.duplicate();
+                chunk.limit( batch.position() + manifest.length( idx ));
+                batch.position( chunk.limit() );
+
+                String hash = TransferJournal.hex(
+                        TransferJournal.digest( chunk ));
+                if (!hash.equals( manifest.hashes.get( idx ))) mismatches++;
+                idx++;
+            }
+        }
+
+        return mismatches;
+    }
+
+    /** Fills a buffer from the settings file, stopping at its end, and
+     * flips it.
+     */
+    private static void readBatch (JpsUsbRaw settings,
+            ByteBuffer batch, long position)
+    throws IOException {
+        batch.clear();
+        batch.limit( (int) Math.min( batch.capacity(),
+                    settings.size() - position ));
+        while (batch.hasRemaining()) {
+            if (settings.read( batch, position + batch.position() ) < 0)
+                throw new IOException( "unexpected end of file" );
+        }
+        batch.flip();
+    }
+
+    /** Loads a snapshot by name, or the latest one for a device if the
+     * name is just the device's identity.
+     */
+    Manifest load (String name)
+    throws IOException {
+        File file = manifestFile( name );
+        if (!file.isFile()) {
+            File dir = new File( new File( root, "snapshots" ), name );
+            String[] names = dir.list( new FilenameFilter() {
+                    @Override
+                    public boolean accept (File parent, String child) {
+                        return child.endsWith( ".manifest" );
+                    }
+                });
+            if (names == null || names.length == 0)
+                throw new IOException( "no snapshot named " + name );
+
+            Arrays.sort( names );
+            String last = names[ names.length - 1 ];
+            file = new File( dir, last );
+            name = name + "/" + last.substring( 0, last.length() - 9 );
+        }
+
+        return Manifest.read( name, file );
+    }
+
+    private File manifestFile (String name) {
+        return new File( new File( root, "snapshots" ), name + ".manifest" );
+    }
+
+    private File chunkFile (String hash, boolean deflated) {
+        File dir = new File( new File( root, "chunks" ), hash.substring( 0, 2 ));
+        return new File( dir, deflated ? hash + ".z" : hash );
+    }
+
+    private boolean hasChunk (String hash) {
+        return chunkFile( hash, false ).isFile() || chunkFile( hash, true ).isFile();
+    }
+
+    /** Stores a chunk and returns the number of bytes written. */
+    private long putChunk (String hash, ByteBuffer chunk)
+    throws IOException {
+        File file = chunkFile( hash, compress );
+        mkdirs( file.getParentFile() );
+
+        // write to a temporary file first so a crash never leaves a
+        // truncated chunk under its hash
+        File temp = File.createTempFile( "chunk-", ".tmp", file.getParentFile() );
+        try {
+            OutputStream out = new FileOutputStream( temp );
+            if (compress) out = new DeflaterOutputStream( out );
+            try {
+                ByteBuffer data = chunk.duplicate();
+                byte[] bytes = new byte[ data.remaining() ];
+                data.get( bytes );
+                out.write( bytes );
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo( file ) && !file.isFile())
+                throw new IOException( "unable to store chunk " + file );
+
+            return file.length();
+        } finally {
+            if (temp.exists()) temp.delete();
+        }
+    }
+
+    private byte[] getChunk (String hash)
+    throws IOException {
+        boolean deflated = !chunkFile( hash, false ).isFile();
+        File file = chunkFile( hash, deflated );
+        if (!file.isFile())
+            throw new IOException( "chunk " + hash + " is missing from the store" );
+
+        InputStream in = new FileInputStream( file );
+        if (deflated) in = new InflaterInputStream( in );
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[ 8192 ];
+            int count;
+            while (-1 != (count = in.read( buffer )))
+                data.write( buffer, 0, count );
+
+            byte[] bytes = data.toByteArray();
+            if (!hash.equals( TransferJournal.hex(
+                            TransferJournal.digest( ByteBuffer.wrap( bytes ))))) {
+                throw new IOException( "chunk " + hash + " is corrupt" );
+            }
+
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void mkdirs (File dir)
+    throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException( "unable to create directory " + dir );
+    }
+
+
+    /** The list of chunks making up one snapshot. */
+    static class Manifest {
+        final String name;
+        final long size;
+        final int chunkSize;
+        final List<String> hashes = new ArrayList<String>();
+
+        // statistics from the backup which created this, if any
+        int newChunks = 0;
+        long storedBytes = 0;
+
+        Manifest (String name, long size, int chunkSize) {
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+        }
+
+        long offset (int idx) {
+            return (long) idx * chunkSize;
+        }
+
+        int length (int idx) {
+            return (int) Math.min( chunkSize, size - offset( idx ));
+        }
+
+        void write (File file)
+        throws IOException {
+            File temp = new File( file.getPath() + ".tmp" );
+            Writer out = new OutputStreamWriter(
+                    new FileOutputStream( temp ), StandardCharsets.US_ASCII );
+            try {
+                out.write( HEADER + "\n" );
+                out.write( "size=" + size + " chunk=" + chunkSize + "\n" );
+                for (String hash : hashes)
+                    out.write( hash + "\n" );
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo( file )) {
+                temp.delete();
+                throw new IOException( "unable to write manifest " + file );
+            }
+        }
+
+        static Manifest read (String name, File file)
+        throws IOException {
+            BufferedReader in = new BufferedReader( new InputStreamReader(
+                        new FileInputStream( file ), StandardCharsets.US_ASCII ));
+            try {
+                if (!HEADER.equals( in.readLine() ))
+                    throw new IOException( file + " is not a snapshot manifest" );
+
+                String[] fields = String.valueOf( in.readLine() ).split( "[ =]" );
+                if (fields.length != 4 || !"size".equals( fields[ 0 ] )
+                        || !"chunk".equals( fields[ 2 ] ))
+                    throw new IOException( file + " has an invalid header" );
+
+                Manifest manifest;
+                try {
+                    manifest = new Manifest( name,
+                            Long.parseLong( fields[ 1 ] ),
+                            Integer.parseInt( fields[ 3 ] ));
+                } catch (NumberFormatException caught) {
+                    throw new IOException( file + " has an invalid header" );
+                }
+
+                String line;
+                while (null != (line = in.readLine())) {
+                    if (!line.isEmpty()) manifest.hashes.add( line );
+                }
+
+                if (manifest.hashes.size() != (manifest.size
+                            + manifest.chunkSize - 1) / manifest.chunkSize)
+                    throw new IOException( file + " is incomplete" );
+
+                return manifest;
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
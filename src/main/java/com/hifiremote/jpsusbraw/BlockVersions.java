@@ -0,0 +1,172 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Copy-on-write versions of the settings file's blocks.
+ *
+ * A version is an array of immutable block arrays. Writes made after the
+ * last publication go into a pending version which copies only the
+ * blocks they touch and shares the rest; {@link #publish()} makes it
+ * current in a single reference swap. Readers pin a version and read it
+ * from memory without any locking.
+ *
+ * A version is dropped once it has been superseded and has no pins.
+ * Writes and publication happen only on the device's I/O thread.
+ */
+class BlockVersions {
+    private static final Logger log = LogManager.getLogger();
+
+    private final int blockSize;
+    private final int length;
+    private final DeviceMetrics metrics;
+
+    private final AtomicReference<Version> current = new AtomicReference<Version>();
+    private final Set<Version> live =
+        ConcurrentHashMap.<Version>newKeySet();
+
+    // only touched on the I/O thread
+    private byte[][] pending = null;
+    private final BitSet copied = new BitSet();
+
+    BlockVersions (int blockSize, int length, DeviceMetrics metrics) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.metrics = metrics;
+    }
+
+    boolean isLoaded() {
+        return current.get() != null;
+    }
+
+    /** Creates the first version from an image of the whole file. */
+    void load (byte[] image) {
+        int count = (length + blockSize - 1) / blockSize;
+        byte[][] blocks = new byte[ count ][];
+        for (int idx = 0; idx < count; idx++) {
+            int start = idx * blockSize;
+            int end = Math.min( length, start + blockSize );
+            blocks[ idx ] = new byte[ end - start ];
+            System.arraycopy( image, start, blocks[ idx ], 0, end - start );
+        }
+
+        Version version = new Version( 1, blocks );
+        live.add( version );
+        current.set( version );
+        metrics.liveVersions = live.size();
+    }
+
+    /** Records data successfully written at a file position. */
+    void written (long position, ByteBuffer data) {
+        Version base = current.get();
+        if (base == null) return;
+
+        if (pending == null) {
+            pending = base.blocks.clone();
+            copied.clear();
+        }
+
+        ByteBuffer src = data.duplicate();
+        long offset = position;
+        while (src.hasRemaining() && offset < length) {
+            int idx = (int)( offset / blockSize );
+            int skip = (int)( offset % blockSize );
+
+            if (!copied.get( idx )) {
+                pending[ idx ] = pending[ idx ].clone();
+                copied.set( idx );
+            }
+
+            int count = Math.min( src.remaining(), pending[ idx ].length - skip );
+            src.get( pending[ idx ], skip, count );
+            offset += count;
+        }
+    }
+
+    /** Makes all writes since the last publication visible to new pins.
+     * Returns the current version number.
+     */
+    long publish() {
+        Version base = current.get();
+        if (base == null) return 0;
+        if (pending == null) return base.number;
+
+        Version next = new Version( base.number + 1, pending );
+        pending = null;
+
+        live.add( next );
+        current.set( next );
+        release( base );
+
+        if (log.isDebugEnabled()) {
+            log.debug( String.format(
+                    "published version %d with %d changed blocks",
+                    next.number, copied.cardinality()
+                ));
+        }
+
+        return next.number;
+    }
+
+    /** Pins the current version, or returns null if none is loaded. */
+    Version pin() {
+        while (true) {
+            Version version = current.get();
+            if (version == null) return null;
+
+            version.pins.incrementAndGet();
+            if (current.get() == version || live.contains( version ))
+                return version;
+
+            // superseded and dropped between the read and the pin
+            version.pins.decrementAndGet();
+        }
+    }
+
+    void unpin (Version version) {
+        version.pins.decrementAndGet();
+        release( version );
+    }
+
+    /** Drops a version if it is neither current nor pinned. */
+    private void release (Version version) {
+        if (version.pins.get() == 0 && current.get() != version
+                && live.remove( version )) {
+            if (log.isTraceEnabled())
+                log.trace( "reclaimed version " + version.number );
+        }
+
+        metrics.liveVersions = live.size();
+    }
+
+
+    /** One immutable version of the file. */
+    static class Version {
+        final long number;
+        final byte[][] blocks;
+        final AtomicInteger pins = new AtomicInteger();
+
+        Version (long number, byte[][] blocks) {
+            this.number = number;
+            this.blocks = blocks;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A pool of equally-sized transfer buffers.
+ *
+ * Buffers are array-backed, as {@link UsbMassStorageDriver} requires.
+ * The pool allocates on demand and keeps up to a fixed number of
+ * released buffers for reuse.
+ */
+class BufferPool {
+    private final int capacity;
+    private final int retain;
+    private final ConcurrentLinkedQueue<ByteBuffer> free =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    BufferPool (int capacity, int retain) {
+        this.capacity = capacity;
+        this.retain = retain;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /** Returns a cleared buffer, reusing a released one if possible. */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) return ByteBuffer.allocate( capacity );
+
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer to the pool. The caller must not use it again. */
+    void release (ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != capacity) return;
+
+        if (freeCount.incrementAndGet() <= retain) {
+            free.offer( buffer );
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.util.concurrent.TimeUnit;
+
+/** A point in time by which an operation must complete.
+ *
+ * Deadlines are passed down through the driver layers so that every
+ * phase of every command, including retries, draws on one budget.
+ */
+class Deadline {
+    /** A deadline which never expires. */
+    static final Deadline NONE = new Deadline( Long.MAX_VALUE, false );
+
+    private final long expires;
+    private final boolean bounded;
+
+    private Deadline (long expires, boolean bounded) {
+        this.expires = expires;
+        this.bounded = bounded;
+    }
+
+    /** Returns a deadline the given time from now, or {@link #NONE}
+     * if the time is not positive.
+     */
+    static Deadline after (long timeout, TimeUnit unit) {
+        if (timeout <= 0) return NONE;
+        return new Deadline( System.nanoTime() + unit.toNanos( timeout ), true );
+    }
+
+    boolean isBounded() {
+        return bounded;
+    }
+
+    boolean isExpired() {
+        return bounded && expires - System.nanoTime() <= 0;
+    }
+
+    /** Returns the remaining time in milliseconds, at least zero. */
+    long remainingMillis() {
+        if (!bounded) return Long.MAX_VALUE;
+        return Math.max( 0, TimeUnit.NANOSECONDS.toMillis(
+                    expires - System.nanoTime() ));
+    }
+
+    /** Limits a timeout in milliseconds to the time remaining. */
+    long limit (long timeoutMs) {
+        return Math.min( timeoutMs, remainingMillis() );
+    }
+
+    /** Returns whichever of this and another deadline expires first. */
+    Deadline earliest (Deadline other) {
+        if (!other.bounded) return this;
+        if (!bounded) return other;
+        return other.expires - expires < 0 ? other : this;
+    }
+
+    /** Throws if the deadline has passed. */
+    void check (String operation)
+    throws DeviceTimeoutException {
+        if (isExpired()) {
+            throw new DeviceTimeoutException(
+                    "deadline expired before " + operation );
+        }
+    }
+}
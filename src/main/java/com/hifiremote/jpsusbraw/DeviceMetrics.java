@@ -0,0 +1,450 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** I/O metrics registry for a single open device.
+ *
+ * All counters are {@link LongAdder}s so that the I/O path never
+ * contends on them. Per-opcode histograms are created the first time
+ * an opcode is seen.
+ */
+public class DeviceMetrics
+implements DeviceMetricsMXBean {
+    private static final Logger log = LogManager.getLogger();
+    private static final AtomicInteger handles = new AtomicInteger();
+
+    private final String device;
+
+    final LongAdder commands = new LongAdder();
+    final LongAdder failedCommands = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder directReads = new LongAdder();
+    final LongAdder bufferedReads = new LongAdder();
+    final LongAdder directWrites = new LongAdder();
+    final LongAdder bufferedWrites = new LongAdder();
+    final LongAdder vectoredReads = new LongAdder();
+    final LongAdder vectoredWrites = new LongAdder();
+    final LongAdder readModifyWrites = new LongAdder();
+    final LongAdder stalls = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder requestSenses = new LongAdder();
+    final LongAdder transferSizeReductions = new LongAdder();
+    final LongAdder asyncRequests = new LongAdder();
+    final LongAdder coalescedReads = new LongAdder();
+    final LongAdder coalescedWrites = new LongAdder();
+    final LongAdder mergedRanges = new LongAdder();
+    final LongAdder sparseBlocks = new LongAdder();
+    final LongAdder skippedFillerBlocks = new LongAdder();
+    final LongAdder pooledOpens = new LongAdder();
+    final LongAdder mountFallbacks = new LongAdder();
+
+    volatile int readTransferBlocks = 0;
+    volatile int writeTransferBlocks = 0;
+    volatile int liveVersions = 0;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicReferenceArray<LatencyHistogram> opcodeLatency =
+        new AtomicReferenceArray<LatencyHistogram>( 256 );
+
+    private ObjectName registeredName = null;
+
+    DeviceMetrics (String device) {
+        this.device = device;
+    }
+
+    void recordCommand (byte opcode, long nanos, boolean ok) {
+        commands.increment();
+        if (!ok) failedCommands.increment();
+
+        latency.record( nanos );
+
+        int idx = opcode & 0xFF;
+        LatencyHistogram hist = opcodeLatency.get( idx );
+        if (hist == null) {
+            opcodeLatency.compareAndSet( idx, null, new LatencyHistogram() );
+            hist = opcodeLatency.get( idx );
+        }
+        hist.record( nanos );
+    }
+
+    /** Registers this registry with the platform MBean server.
+     *
+     * Failure is logged rather than thrown; metrics are never worth
+     * failing to open a device over.
+     */
+    void register() {
+        try {
+            ObjectName name = new ObjectName(
+                    "com.hifiremote.jpsusbraw:type=Device"
+                    + ",path=" + ObjectName.quote( device )
+                    + ",handle=" + handles.incrementAndGet()
+                );
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean( this, name );
+            registeredName = name;
+
+            if (log.isDebugEnabled())
+                log.debug( "registered metrics MBean " + name );
+        } catch (JMException caught) {
+            log.warn( "unable to register metrics MBean", caught );
+        }
+    }
+
+    void unregister() {
+        if (registeredName == null) return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .unregisterMBean( registeredName );
+        } catch (JMException caught) {
+            log.warn( "unable to unregister metrics MBean", caught );
+        }
+
+        registeredName = null;
+    }
+
+
+    @Override
+    public String getDevice() {
+        return device;
+    }
+
+    @Override
+    public long getCommands() {
+        return commands.sum();
+    }
+
+    @Override
+    public long getFailedCommands() {
+        return failedCommands.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getDirectReads() {
+        return directReads.sum();
+    }
+
+    @Override
+    public long getBufferedReads() {
+        return bufferedReads.sum();
+    }
+
+    @Override
+    public long getDirectWrites() {
+        return directWrites.sum();
+    }
+
+    @Override
+    public long getBufferedWrites() {
+        return bufferedWrites.sum();
+    }
+
+    @Override
+    public long getVectoredReads() {
+        return vectoredReads.sum();
+    }
+
+    @Override
+    public long getVectoredWrites() {
+        return vectoredWrites.sum();
+    }
+
+    @Override
+    public long getReadModifyWrites() {
+        return readModifyWrites.sum();
+    }
+
+    @Override
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getRequestSenses() {
+        return requestSenses.sum();
+    }
+
+    @Override
+    public int getReadTransferBlocks() {
+        return readTransferBlocks;
+    }
+
+    @Override
+    public int getWriteTransferBlocks() {
+        return writeTransferBlocks;
+    }
+
+    @Override
+    public long getTransferSizeReductions() {
+        return transferSizeReductions.sum();
+    }
+
+    @Override
+    public long getAsyncRequests() {
+        return asyncRequests.sum();
+    }
+
+    @Override
+    public long getCoalescedReads() {
+        return coalescedReads.sum();
+    }
+
+    @Override
+    public long getCoalescedWrites() {
+        return coalescedWrites.sum();
+    }
+
+    @Override
+    public long getMergedRanges() {
+        return mergedRanges.sum();
+    }
+
+    @Override
+    public long getSparseBlocks() {
+        return sparseBlocks.sum();
+    }
+
+    @Override
+    public long getSkippedFillerBlocks() {
+        return skippedFillerBlocks.sum();
+    }
+
+    @Override
+    public long getPooledOpens() {
+        return pooledOpens.sum();
+    }
+
+    @Override
+    public long getMountFallbacks() {
+        return mountFallbacks.sum();
+    }
+
+    @Override
+    public int getLiveVersions() {
+        return liveVersions;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getCommandLatency() {
+        return latency.snapshot();
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getCommandLatencyByOpcode() {
+        Map<String, LatencyHistogram.Snapshot> result =
+            new TreeMap<String, LatencyHistogram.Snapshot>();
+
+        for (int idx = 0; idx < opcodeLatency.length(); idx++) {
+            LatencyHistogram hist = opcodeLatency.get( idx );
+            if (hist != null) {
+                result.put( ScsiDriver.commandName( (byte) idx ),
+                        hist.snapshot() );
+            }
+        }
+
+        return result;
+    }
+
+
+    @Override
+    public String toOpenMetrics() {
+        StringBuilder str = new StringBuilder();
+        try {
+            writeOpenMetrics( str );
+        } catch (IOException caught) {
+            // StringBuilder doesn't throw
+            throw new RuntimeException( caught );
+        }
+        return str.toString();
+    }
+
+    /** Writes all metrics in the OpenMetrics text exposition format,
+     * including the terminating {@code # EOF} line.
+     */
+    public void writeOpenMetrics (Appendable out)
+    throws IOException {
+        String label = "device=\"" + escape( device ) + "\"";
+
+        counter( out, "commands", "SCSI commands issued",
+                label, commands.sum() );
+        counter( out, "failed_commands", "SCSI commands which failed",
+                label, failedCommands.sum() );
+        counter( out, "read_bytes", "bytes read from the device",
+                label, bytesRead.sum() );
+        counter( out, "written_bytes", "bytes written to the device",
+                label, bytesWritten.sum() );
+
+        out.append( "# TYPE jpsusbraw_transfers counter\n" );
+        out.append( "# HELP jpsusbraw_transfers read and write calls by path\n" );
+        sample( out, "transfers_total", label
+                + ",op=\"read\",path=\"direct\"", directReads.sum() );
+        sample( out, "transfers_total", label
+                + ",op=\"read\",path=\"buffered\"", bufferedReads.sum() );
+        sample( out, "transfers_total", label
+                + ",op=\"write\",path=\"direct\"", directWrites.sum() );
+        sample( out, "transfers_total", label
+                + ",op=\"write\",path=\"buffered\"", bufferedWrites.sum() );
+        sample( out, "transfers_total", label
+                + ",op=\"read\",path=\"vectored\"", vectoredReads.sum() );
+        sample( out, "transfers_total", label
+                + ",op=\"write\",path=\"vectored\"", vectoredWrites.sum() );
+
+        counter( out, "read_modify_writes",
+                "buffered writes which read partial blocks first",
+                label, readModifyWrites.sum() );
+        counter( out, "stalls", "STALL handshakes received",
+                label, stalls.sum() );
+        counter( out, "retries", "commands retried after recoverable errors",
+                label, retries.sum() );
+        counter( out, "request_senses", "REQUEST SENSE commands issued",
+                label, requestSenses.sum() );
+        counter( out, "transfer_size_reductions",
+                "times the per-command transfer size was reduced",
+                label, transferSizeReductions.sum() );
+        counter( out, "async_requests",
+                "requests submitted through the asynchronous channel",
+                label, asyncRequests.sum() );
+        counter( out, "coalesced_reads",
+                "reads merged into another request's READ",
+                label, coalescedReads.sum() );
+        counter( out, "coalesced_writes",
+                "writes merged into another request's WRITE",
+                label, coalescedWrites.sum() );
+        counter( out, "merged_ranges",
+                "file ranges served by another range's command",
+                label, mergedRanges.sum() );
+        counter( out, "sparse_blocks",
+                "zero pages left as holes in local files",
+                label, sparseBlocks.sum() );
+        counter( out, "skipped_filler_blocks",
+                "filler blocks not written because the device held them",
+                label, skippedFillerBlocks.sum() );
+        counter( out, "pooled_opens",
+                "opens which reused a pooled device instead of mounting it",
+                label, pooledOpens.sum() );
+        counter( out, "mount_fallbacks",
+                "mounts which needed a second read for the FAT system area",
+                label, mountFallbacks.sum() );
+
+        out.append( "# TYPE jpsusbraw_transfer_blocks gauge\n" );
+        out.append( "# HELP jpsusbraw_transfer_blocks"
+                + " current maximum blocks per command\n" );
+        sample( out, "transfer_blocks", label + ",op=\"read\"",
+                readTransferBlocks );
+        sample( out, "transfer_blocks", label + ",op=\"write\"",
+                writeTransferBlocks );
+
+        out.append( "# TYPE jpsusbraw_live_versions gauge\n" );
+        out.append( "# HELP jpsusbraw_live_versions"
+                + " snapshot versions held in memory\n" );
+        sample( out, "live_versions", label, liveVersions );
+
+        out.append( "# TYPE jpsusbraw_command_latency_seconds histogram\n" );
+        out.append( "# UNIT jpsusbraw_command_latency_seconds seconds\n" );
+        out.append( "# HELP jpsusbraw_command_latency_seconds"
+                + " SCSI command latency by opcode\n" );
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry
+                : getCommandLatencyByOpcode().entrySet()) {
+            histogram( out, label + ",opcode=\"" + entry.getKey() + "\"",
+                    entry.getValue() );
+        }
+
+        out.append( "# EOF\n" );
+    }
+
+    private static void counter (Appendable out, String name,
+            String help, String labels, long value)
+    throws IOException {
+        out.append( "# TYPE jpsusbraw_" ).append( name ).append( " counter\n" );
+        out.append( "# HELP jpsusbraw_" ).append( name )
+            .append( ' ' ).append( help ).append( '\n' );
+        sample( out, name + "_total", labels, value );
+    }
+
+    private static void histogram (Appendable out,
+            String labels, LatencyHistogram.Snapshot snap)
+    throws IOException {
+        final String name = "command_latency_seconds";
+        long[] counts = snap.getBucketCounts();
+
+        long cumulative = 0;
+        for (int idx = 0; idx < counts.length; idx++) {
+            cumulative += counts[ idx ];
+
+            String bound = idx < LatencyHistogram.BOUNDS_US.length
+                ? seconds( LatencyHistogram.BOUNDS_US[ idx ] )
+                : "+Inf";
+
+            sample( out, name + "_bucket",
+                    labels + ",le=\"" + bound + "\"", cumulative );
+        }
+
+        sample( out, name + "_count", labels, snap.getCount() );
+        out.append( "jpsusbraw_" ).append( name ).append( "_sum{" )
+            .append( labels ).append( "} " )
+            .append( seconds( snap.getSumMicros() ) )
+            .append( '\n' );
+    }
+
+    private static void sample (Appendable out,
+            String name, String labels, long value)
+    throws IOException {
+        out.append( "jpsusbraw_" ).append( name )
+            .append( '{' ).append( labels ).append( "} " )
+            .append( Long.toString( value ) ).append( '\n' );
+    }
+
+    private static String seconds (long micros) {
+        return BigDecimal.valueOf( micros, 6 )
+            .stripTrailingZeros().toPlainString();
+    }
+
+    private static String escape (String value) {
+        return value
+            .replace( "\\", "\\\\" )
+            .replace( "\"", "\\\"" )
+            .replace( "\n", "\\n" );
+    }
+}
@@ -0,0 +1,113 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.util.Map;
+
+/** JMX management interface for the I/O metrics of an open device.
+ *
+ * One instance is registered for each open {@link JpsUsbRaw} under the
+ * domain {@code com.hifiremote.jpsusbraw} with {@code type=Device}.
+ */
+public interface DeviceMetricsMXBean {
+    String getDevice();
+
+    /** SCSI commands issued, not counting retries or REQUEST SENSE. */
+    long getCommands();
+
+    /** SCSI commands which completed with an error. */
+    long getFailedCommands();
+
+    long getBytesRead();
+    long getBytesWritten();
+
+    /** Reads transferred directly into the caller's buffer. */
+    long getDirectReads();
+
+    /** Reads staged through the driver's bounce buffer. */
+    long getBufferedReads();
+
+    /** Writes transferred directly from the caller's buffer. */
+    long getDirectWrites();
+
+    /** Writes staged through the driver's bounce buffer. */
+    long getBufferedWrites();
+
+    /** Scattering reads served by a single READ command. */
+    long getVectoredReads();
+
+    /** Gathering writes sent as a single WRITE command. */
+    long getVectoredWrites();
+
+    /** Buffered writes which first had to read partial blocks. */
+    long getReadModifyWrites();
+
+    /** STALL handshakes received on any pipe. */
+    long getStalls();
+
+    /** Commands re-sent after a recoverable USBMS error. */
+    long getRetries();
+
+    long getRequestSenses();
+
+    /** Current maximum blocks per READ command, adjusted at runtime. */
+    int getReadTransferBlocks();
+
+    /** Current maximum blocks per WRITE command, adjusted at runtime. */
+    int getWriteTransferBlocks();
+
+    /** Times a timeout, stall or recoverable error shrank a transfer size. */
+    long getTransferSizeReductions();
+
+    /** Requests submitted through the asynchronous channel. */
+    long getAsyncRequests();
+
+    /** Reads served by a READ issued for another request. */
+    long getCoalescedReads();
+
+    /** Writes sent as part of a WRITE issued for another request. */
+    long getCoalescedWrites();
+
+    /** File ranges transferred by a command issued for another range. */
+    long getMergedRanges();
+
+    /** Zero pages read into local files and left there as holes. */
+    long getSparseBlocks();
+
+    /** Filler blocks left out of writes because the device already
+     * held the same filler.
+     */
+    long getSkippedFillerBlocks();
+
+    /** Opens which reused the device from the pool, skipping the
+     * interface claim and volume mount.
+     */
+    long getPooledOpens();
+
+    /** Mounts whose first read didn't reach the end of the FAT system
+     * area, so it had to be read separately.
+     */
+    long getMountFallbacks();
+
+    /** Snapshot versions held in memory: the current one and any
+     * older ones still pinned by readers.
+     */
+    int getLiveVersions();
+
+    LatencyHistogram.Snapshot getCommandLatency();
+
+    /** Latency histograms keyed by SCSI command name. */
+    Map<String, LatencyHistogram.Snapshot> getCommandLatencyByOpcode();
+
+    /** Renders all metrics in the OpenMetrics text exposition format. */
+    String toOpenMetrics();
+}
@@ -0,0 +1,71 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import javax.usb.UsbDeviceDescriptor;
+
+/** Identifies a device model by vendor, product, and release number. */
+public class DeviceModel {
+    private final short vendor, product, release;
+
+    DeviceModel (short vendor, short product, short release) {
+        this.vendor = vendor;
+        this.product = product;
+        this.release = release;
+    }
+
+    DeviceModel (UsbDeviceDescriptor desc) {
+        this( desc.idVendor(), desc.idProduct(), desc.bcdDevice() );
+    }
+
+    /** The USB {@code idVendor}. */
+    public int vendor() {
+        return vendor & 0xFFFF;
+    }
+
+    /** The USB {@code idProduct}. */
+    public int product() {
+        return product & 0xFFFF;
+    }
+
+    /** The USB {@code bcdDevice}, the device's firmware release. */
+    public int release() {
+        return release & 0xFFFF;
+    }
+
+    /** Returns a key of the form {@code 06e7.8020.0100}. */
+    public String key() {
+        return String.format( "%04x.%04x.%04x",
+                vendor(), product(), release() );
+    }
+
+    @Override
+    public boolean equals (Object other) {
+        if (!(other instanceof DeviceModel)) return false;
+
+        DeviceModel model = (DeviceModel) other;
+        return model.vendor == vendor
+            && model.product == product
+            && model.release == release;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((vendor & 0xFFFF) << 16 | (product & 0xFFFF)) ^ release;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( "vnd=%04x dev=%04x rel=%04x",
+                vendor(), product(), release() );
+    }
+}
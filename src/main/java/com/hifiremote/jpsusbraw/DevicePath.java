@@ -24,6 +24,17 @@ public class DevicePath {
         return Arrays.toString( path );
     }
 
+    @Override
+    public boolean equals (Object other) {
+        return other instanceof DevicePath
+            && Arrays.equals( path, ((DevicePath) other).path );
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode( path );
+    }
+
     public byte[] toArray() {
         return Arrays.copyOf( path, path.length );
     }
@@ -0,0 +1,210 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Deviations from the USB Mass Storage and SCSI specifications, and
+ * known limits, of a device model.
+ *
+ * Quirks are read from {@code device-quirks.properties} beside this
+ * class, which documents each of them, and then from the file named by
+ * the {@code jpsusbraw.quirks} system property if there is one.
+ */
+class DeviceQuirks {
+    private static final Logger log = LogManager.getLogger();
+
+    static final String RESOURCE = "device-quirks.properties";
+
+    /** Blocks per command allowed when a model doesn't say. */
+    static final int DEFAULT_MAX_TRANSFER_BLOCKS = 1024;
+
+    /** Blocks read at once when mounting if a model doesn't say. */
+    static final int DEFAULT_MOUNT_BLOCKS = 64;
+
+    private static Properties table = null;
+
+    private final boolean shortCswTag;
+    private final boolean cswStallRetry;
+    private final boolean capacityTrusted;
+    private final boolean partitionOverrun;
+    private final int maxTransferBlocks;
+    private final boolean longCommands;
+    private final int mountBlocks;
+    private final long geometryBlocks;
+    private final int geometryBlockSize;
+
+    private DeviceQuirks (Properties props, DeviceModel model) {
+        String exact = model.key() + ".";
+        String any = String.format( "%04x.%04x.*.", model.vendor(), model.product() );
+
+        shortCswTag       = flag( props, exact, any, "csw.shortTag", false );
+        cswStallRetry     = flag( props, exact, any, "csw.stallRetry", true );
+        capacityTrusted   = flag( props, exact, any, "capacity.trusted", true );
+        partitionOverrun  = flag( props, exact, any, "partition.overrun", false );
+        maxTransferBlocks = (int) number( props, exact, any,
+                "transfer.maxBlocks", DEFAULT_MAX_TRANSFER_BLOCKS );
+        longCommands      = flag( props, exact, any, "transfer.longCommands", false );
+        mountBlocks       = (int) number( props, exact, any,
+                "mount.blocks", DEFAULT_MOUNT_BLOCKS );
+        geometryBlocks    = number( props, exact, any, "geometry.blocks", 0 );
+        geometryBlockSize = (int) number( props, exact, any, "geometry.blockSize", 0 );
+    }
+
+    /** Returns the quirks of a model, or the defaults if it isn't listed. */
+    static DeviceQuirks forModel (DeviceModel model) {
+        DeviceQuirks quirks = new DeviceQuirks( table(), model );
+
+        if (log.isDebugEnabled())
+            log.debug( "quirks for " + model.key() + ": " + quirks );
+
+        return quirks;
+    }
+
+    private static synchronized Properties table() {
+        if (table != null) return table;
+
+        Properties props = new Properties();
+        try {
+            InputStream in = DeviceQuirks.class.getResourceAsStream( RESOURCE );
+            if (in != null) {
+                try {
+                    props.load( in );
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException caught) {
+            log.warn( "unable to read built-in device quirks", caught );
+        }
+
+        String path = System.getProperty( "jpsusbraw.quirks" );
+        if (path != null) {
+            // layered over the built-in entries so they can be overridden
+            props = new Properties( props );
+            try {
+                InputStream in = new FileInputStream( new File( path ));
+                try {
+                    props.load( in );
+                } finally {
+                    in.close();
+                }
+            } catch (IOException caught) {
+                log.warn( "unable to read device quirks from " + path, caught );
+            }
+        }
+
+        table = props;
+        return props;
+    }
+
+    private static String lookup (Properties props,
+            String exact, String any, String name) {
+        String value = props.getProperty( exact + name );
+        return value != null ? value : props.getProperty( any + name );
+    }
+
+    private static boolean flag (Properties props,
+            String exact, String any, String name, boolean fallback) {
+        String value = lookup( props, exact, any, name );
+        return value == null ? fallback : Boolean.parseBoolean( value.trim() );
+    }
+
+    private static long number (Properties props,
+            String exact, String any, String name, long fallback) {
+        String value = lookup( props, exact, any, name );
+        if (value == null) return fallback;
+
+        try {
+            long number = Long.parseLong( value.trim() );
+            if (number > 0) return number;
+        } catch (NumberFormatException caught) {
+            // reported below
+        }
+
+        log.warn( "ignoring invalid device quirk " + name + "=" + value );
+        return fallback;
+    }
+
+    /** Whether the CSW may echo only the low two bytes of the tag. */
+    boolean shortCswTag() {
+        return shortCswTag;
+    }
+
+    /** Whether a STALL on the CSW is worth clearing and reading again. */
+    boolean cswStallRetry() {
+        return cswStallRetry;
+    }
+
+    /** Whether READ CAPACITY returns the last block's address, as SCSI
+     * specifies, rather than the block count.
+     */
+    boolean capacityTrusted() {
+        return capacityTrusted;
+    }
+
+    /** Whether the partition table may run past the end of the device. */
+    boolean partitionOverrun() {
+        return partitionOverrun;
+    }
+
+    int maxTransferBlocks() {
+        return maxTransferBlocks;
+    }
+
+    /** Whether every block transfer is sent as READ (16) or WRITE (16),
+     * not only those which don't fit the 10-byte commands.
+     */
+    boolean longCommands() {
+        return longCommands;
+    }
+
+    /** Blocks from the start of the device expected to hold the MBR
+     * and the whole FAT system area, read in one command when mounting.
+     */
+    int mountBlocks() {
+        return mountBlocks;
+    }
+
+    /** Whether the device's size is known without asking it. */
+    boolean hasGeometry() {
+        return geometryBlocks > 0 && geometryBlockSize > 0;
+    }
+
+    long geometryBlocks() {
+        return geometryBlocks;
+    }
+
+    int geometryBlockSize() {
+        return geometryBlockSize;
+    }
+
+    @Override
+    public String toString() {
+        return "shortCswTag=" + shortCswTag
+            + " cswStallRetry=" + cswStallRetry
+            + " capacityTrusted=" + capacityTrusted
+            + " partitionOverrun=" + partitionOverrun
+            + " maxTransferBlocks=" + maxTransferBlocks
+            + " longCommands=" + longCommands
+            + " mountBlocks=" + mountBlocks
+            + (hasGeometry() ? " geometry=" + geometryBlocks
+                    + "x" + geometryBlockSize : "");
+    }
+}
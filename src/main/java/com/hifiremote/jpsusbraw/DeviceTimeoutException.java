@@ -0,0 +1,34 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+
+/** Thrown when a device operation does not complete in time.
+ *
+ * This covers both a single USB transfer phase exceeding its timeout and
+ * an operation running past the deadline given by the caller. In either
+ * case any outstanding transfers have been aborted and the device will
+ * be reset before the next command.
+ */
+public class DeviceTimeoutException
+extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    DeviceTimeoutException (String message) {
+        super( message );
+    }
+
+    DeviceTimeoutException (String message, Throwable cause) {
+        super( message, cause );
+    }
+}
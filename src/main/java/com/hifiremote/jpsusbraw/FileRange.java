@@ -0,0 +1,71 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.nio.ByteBuffer;
+
+/** A region of the settings file paired with a buffer for its data.
+ *
+ * The data occupies {@code length} bytes of the buffer from its current
+ * position, which is advanced past them once the range is transferred.
+ *
+ * @see JpsUsbRaw#readRanges
+ * @see JpsUsbRaw#writeRanges
+ */
+public final class FileRange {
+    private final long position;
+    private final int length;
+    private final ByteBuffer buffer;
+
+    /** A range covering all the remaining bytes of the buffer. */
+    public FileRange (long position, ByteBuffer buffer) {
+        this( position, buffer.remaining(), buffer );
+    }
+
+    public FileRange (long position, int length, ByteBuffer buffer) {
+        if (position < 0)
+            throw new IllegalArgumentException( "position may not be negative" );
+
+        if (length < 0)
+            throw new IllegalArgumentException( "length may not be negative" );
+
+        if (buffer == null)
+            throw new IllegalArgumentException( "buffer may not be null" );
+
+        this.position = position;
+        this.length = length;
+        this.buffer = buffer;
+    }
+
+    /** The position in the file of the first byte. */
+    public long position() {
+        return position;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** The position in the file just past the last byte. */
+    public long end() {
+        return position + length;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + position + ", " + end() + ")";
+    }
+}
@@ -0,0 +1,83 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** A consistent, read-only view of the settings file at one version.
+ *
+ * Reads are served from memory and never wait on the device, so they are
+ * unaffected by writes in progress. The view doesn't change until it is
+ * closed; call {@link JpsUsbRaw#snapshot()} again to see later versions.
+ */
+public class FileSnapshot
+implements Closeable {
+    private final BlockVersions versions;
+    private final BlockVersions.Version version;
+    private final int blockSize;
+    private final long size;
+    private boolean closed = false;
+
+    FileSnapshot (BlockVersions versions, BlockVersions.Version version,
+            int blockSize, long size) {
+        this.versions = versions;
+        this.version = version;
+        this.blockSize = blockSize;
+        this.size = size;
+    }
+
+    /** The version number, which increases each time writes are published. */
+    public long version() {
+        return version.number;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /** Reads from the given position as {@link java.nio.channels.FileChannel}
+     * would, returning -1 at end of file.
+     */
+    public synchronized int read (ByteBuffer dst, long position)
+    throws IOException {
+        if (closed)
+            throw new IOException( "snapshot is closed" );
+
+        if (position < 0)
+            throw new IllegalArgumentException( "position may not be negative" );
+
+        if (position >= size) return -1;
+
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            byte[] block = version.blocks[ (int)( position / blockSize ) ];
+            int skip = (int)( position % blockSize );
+            int count = Math.min( dst.remaining(), block.length - skip );
+
+            dst.put( block, skip, count );
+            position += count;
+            total += count;
+        }
+
+        return total;
+    }
+
+    /** Releases the version so it can be reclaimed once superseded. */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        versions.unpin( version );
+    }
+}
@@ -0,0 +1,49 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.nio.ByteBuffer;
+
+/** Detects regions filled with a single repeated byte, such as the 0x00
+ * and 0xFF runs left in erased parts of a remote's memory.
+ *
+ * Regions are compared eight bytes at a time against the fill byte
+ * repeated across a long, which the JIT turns into plain word loads.
+ */
+final class Filler {
+    private static final long REPEAT = 0x0101010101010101L;
+
+    private Filler() {
+    }
+
+    /** Returns the byte filling a region of a buffer, or -1 if the region
+     * holds more than one value or is empty. Doesn't move the buffer's
+     * position.
+     */
+    static int uniform (ByteBuffer data, int offset, int length) {
+        if (length <= 0) return -1;
+
+        int value = data.get( offset ) & 0xFF;
+        long pattern = value * REPEAT;
+
+        int idx = offset;
+        int end = offset + length;
+        for (; idx + 8 <= end; idx += 8) {
+            if (data.getLong( idx ) != pattern) return -1;
+        }
+        for (; idx < end; idx++) {
+            if ((data.get( idx ) & 0xFF) != value) return -1;
+        }
+
+        return value;
+    }
+}
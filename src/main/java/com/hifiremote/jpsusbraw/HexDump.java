@@ -18,8 +18,10 @@
 package com.hifiremote.jpsusbraw;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Dumps data in hexadecimal format.
@@ -91,83 +93,231 @@ class HexDump {
             throw new IllegalArgumentException("builder may not be null");
         }
 
-        long display_offset = offset + index;
-        int limit = index + length;
+        final ByteBuffer source = ByteBuffer.wrap( data );
+        final byte[] line = new byte[ LINE_CHARS ];
+        final char[] chars = new char[ LINE_CHARS ];
+        for (int j = index; j < index + length; j += LINE_BYTES) {
+            int count = Math.min( LINE_BYTES, index + length - j );
+            int width = widen( line,
+                    formatLine( source, j, count, offset + j, line, 0 ), chars );
+            builder.append( chars, 0, width );
+        }
+    }
 
-        final StringBuilder buffer = new StringBuilder(74);
+    /**
+     * Dumps as many lines as fit from a buffer into a character buffer,
+     * allocating only a line of scratch space per call. Both buffers'
+     * positions are advanced past what was consumed and produced.
+     *
+     * @param data   the data to dump, from its position to its limit
+     * @param offset offset of the data's position within a larger entity
+     * @param out    the buffer to which the dump is written
+     * @return the number of bytes of data dumped
+     */
+    public static int dump(final ByteBuffer data, final long offset,
+            final CharBuffer out) {
+        final byte[] line = new byte[ LINE_CHARS ];
+        final char[] chars = new char[ LINE_CHARS ];
+
+        int consumed = 0;
+        while (data.hasRemaining() && out.remaining() >= LINE_CHARS) {
+            int count = Math.min( LINE_BYTES, data.remaining() );
+            int width = widen( line, formatLine( data, data.position(),
+                        count, offset + consumed, line, 0 ), chars );
+            out.put( chars, 0, width );
 
-        for (int j = index; j < limit; j += 16) {
-            int chars_read = limit - j;
+            data.position( data.position() + count );
+            consumed += count;
+        }
+
+        return consumed;
+    }
+
+    /**
+     * Dumps as many lines as fit from a buffer into a byte buffer as
+     * ASCII text. Lines are formatted straight into an array-backed
+     * buffer, and otherwise through a line of scratch space per call.
+     *
+     * @see #dump(ByteBuffer, long, CharBuffer)
+     */
+    public static int dump(final ByteBuffer data, final long offset,
+            final ByteBuffer out) {
+        final byte[] line = out.hasArray() ? null : new byte[ LINE_CHARS ];
 
-            if (chars_read > 16) {
-                chars_read = 16;
+        int consumed = 0;
+        while (data.hasRemaining() && out.remaining() >= LINE_CHARS) {
+            int count = Math.min( LINE_BYTES, data.remaining() );
+            if (line == null) {
+                int chars = formatLine( data, data.position(), count,
+                        offset + consumed, out.array(),
+                        out.arrayOffset() + out.position() );
+                out.position( out.position() + chars );
+            } else {
+                out.put( line, 0, formatLine( data, data.position(), count,
+                            offset + consumed, line, 0 ));
             }
-            dump(buffer, display_offset).append(' ');
-            for (int k = 0; k < 16; k++) {
-                if (k < chars_read) {
-                    dump(buffer, data[k + j]);
-                } else {
-                    buffer.append("  ");
-                }
-                buffer.append(' ');
+
+            data.position( data.position() + count );
+            consumed += count;
+        }
+
+        return consumed;
+    }
+
+    /**
+     * Dumps a buffer into a byte buffer like
+     * {@link #dump(ByteBuffer, long, ByteBuffer)}, formatting ranges of
+     * lines in parallel on the common fork-join pool. Every line but the
+     * last has the same length, so each range writes straight to its
+     * own part of the output.
+     */
+    public static int dumpParallel(final ByteBuffer data, final long offset,
+            final ByteBuffer out) {
+        if (!out.hasArray())
+            return dump( data, offset, out );
+
+        // whole lines that fit, plus a final partial line if it fits too
+        int lines = Math.min( data.remaining() / LINE_BYTES,
+                out.remaining() / LINE_CHARS );
+        int tail = data.remaining() - lines * LINE_BYTES;
+        if (lines < data.remaining() / LINE_BYTES) tail = 0;
+        if (tail > 0 && out.remaining() - lines * LINE_CHARS
+                < lineChars( tail )) tail = 0;
+
+        ForkJoinPool.commonPool().invoke( new FormatTask( data,
+                    data.position(), offset, out.array(),
+                    out.arrayOffset() + out.position(), 0, lines ));
+
+        int chars = lines * LINE_CHARS;
+        if (tail > 0) {
+            chars += formatLine( data, data.position() + lines * LINE_BYTES,
+                    tail, offset + lines * LINE_BYTES, out.array(),
+                    out.arrayOffset() + out.position() + chars );
+        }
+
+        int consumed = lines * LINE_BYTES + tail;
+        data.position( data.position() + consumed );
+        out.position( out.position() + chars );
+        return consumed;
+    }
+
+    /** Formats a range of whole lines of a dump. */
+    private static class FormatTask
+    extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // lines formatted by one task without splitting
+        private static final int THRESHOLD = 1024;
+
+        private final ByteBuffer data;
+        private final int base;
+        private final long offset;
+        private final byte[] out;
+        private final int outBase;
+        private final int first, last;
+
+        FormatTask(ByteBuffer data, int base, long offset,
+                byte[] out, int outBase, int first, int last) {
+            this.data = data;
+            this.base = base;
+            this.offset = offset;
+            this.out = out;
+            this.outBase = outBase;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > THRESHOLD) {
+                int middle = (first + last) >>> 1;
+                invokeAll(
+                        new FormatTask( data, base, offset,
+                            out, outBase, first, middle ),
+                        new FormatTask( data, base, offset,
+                            out, outBase, middle, last ));
+                return;
             }
-            for (int k = 0; k < chars_read; k++) {
-                if (data[k + j] >= ' ' && data[k + j] < 127) {
-                    buffer.append((char) data[k + j]);
-                } else {
-                    buffer.append('.');
-                }
+
+            for (int line = first; line < last; line++) {
+                formatLine( data, base + line * LINE_BYTES, LINE_BYTES,
+                        offset + line * LINE_BYTES,
+                        out, outBase + line * LINE_CHARS );
             }
-            buffer.append(EOL);
-            // make explicit the dependency on the default encoding
-            builder.append( buffer );
-            buffer.setLength(0);
-            display_offset += chars_read;
         }
     }
 
+    /** Returns the length of a line dumping the given number of bytes. */
+    static int lineChars(final int count) {
+        return 8 + 1 + 3 * LINE_BYTES + count + EOL.length();
+    }
+
     /**
      * The line-separator (initializes to "line.separator" system property.
      */
     public static final String EOL =
             System.getProperty("line.separator");
-    private static final char[] _hexcodes =
-            {
-                '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
-                'A', 'B', 'C', 'D', 'E', 'F'
-            };
-    private static final int[] _shifts =
-            {
-                28, 24, 20, 16, 12, 8, 4, 0
-            };
 
-    /**
-     * Dump a long value into a StringBuilder.
-     *
-     * @param _lbuffer the StringBuilder to dump the value in
-     * @param value  the long value to be dumped
-     * @return StringBuilder containing the dumped value.
-     */
-    private static StringBuilder dump(final StringBuilder _lbuffer, final long value) {
-        for (int j = 0; j < 8; j++) {
-            _lbuffer
-                    .append(_hexcodes[(int) (value >> _shifts[j]) & 15]);
+    /** Bytes of data on each line of output. */
+    public static final int LINE_BYTES = 16;
+
+    /** Characters in each full line of output. */
+    public static final int LINE_CHARS = lineChars( LINE_BYTES );
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // two hex digits for each byte value, and the character shown for it
+    private static final char[] PAIRS = new char[ 512 ];
+    private static final char[] TEXT = new char[ 256 ];
+
+    static {
+        for (int value = 0; value < 256; value++) {
+            PAIRS[ value * 2 ] = DIGITS[ value >>> 4 ];
+            PAIRS[ value * 2 + 1 ] = DIGITS[ value & 15 ];
+            TEXT[ value ] = value >= ' ' && value < 127 ? (char) value : '.';
         }
-        return _lbuffer;
     }
 
     /**
-     * Dump a byte value into a StringBuilder.
+     * Formats one line of output into a byte array as ASCII text.
      *
-     * @param _cbuffer the StringBuilder to dump the value in
-     * @param value  the byte value to be dumped
-     * @return StringBuilder containing the dumped value.
+     * @return the number of bytes written
      */
-    private static StringBuilder dump(final StringBuilder _cbuffer, final byte value) {
-        for (int j = 0; j < 2; j++) {
-            _cbuffer.append(_hexcodes[value >> _shifts[j + 6] & 15]);
+    private static int formatLine(final ByteBuffer data, final int index,
+            final int count, final long offset, final byte[] out, int at) {
+        final int start = at;
+
+        for (int shift = 28; shift >= 0; shift -= 4)
+            out[ at++ ] = (byte) DIGITS[ (int)( offset >> shift ) & 15 ];
+        out[ at++ ] = ' ';
+
+        for (int k = 0; k < LINE_BYTES; k++) {
+            if (k < count) {
+                int value = data.get( index + k ) & 0xFF;
+                out[ at++ ] = (byte) PAIRS[ value * 2 ];
+                out[ at++ ] = (byte) PAIRS[ value * 2 + 1 ];
+            } else {
+                out[ at++ ] = ' ';
+                out[ at++ ] = ' ';
+            }
+            out[ at++ ] = ' ';
         }
-        return _cbuffer;
+
+        for (int k = 0; k < count; k++)
+            out[ at++ ] = (byte) TEXT[ data.get( index + k ) & 0xFF ];
+
+        for (int k = 0; k < EOL.length(); k++)
+            out[ at++ ] = (byte) EOL.charAt( k );
+
+        return at - start;
+    }
+
+    /** Copies ASCII text into a character array, returning its length. */
+    private static int widen(final byte[] text, final int length,
+            final char[] out) {
+        for (int k = 0; k < length; k++)
+            out[ k ] = (char) text[ k ];
+        return length;
     }
 
 }
@@ -0,0 +1,29 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+/** Scheduling priority of a request on a device's I/O thread.
+ *
+ * Higher priorities are served first, but never ahead of an earlier
+ * request they conflict with, so a read always sees the writes queued
+ * before it.
+ */
+public enum IoPriority {
+    /** Work a user is waiting on. */
+    INTERACTIVE,
+
+    /** The default for channel reads and writes. */
+    NORMAL,
+
+    /** Work nobody is waiting on, such as verification. */
+    BACKGROUND
+}
@@ -0,0 +1,653 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Runs all of a device's I/O on a dedicated thread.
+ *
+ * Callers on any thread enqueue requests on lock-free queues, one per
+ * {@link IoPriority}, and the I/O thread drains them in batches. Within
+ * a batch the highest-priority request goes first unless it conflicts
+ * with an earlier one (they overlap and one is a write), in which case
+ * it waits its turn. Reads which overlap or touch are served by a single
+ * read, and writes which exactly abut are sent as one, so concurrent
+ * small requests cost few SCSI commands.
+ *
+ * Blocking callers wait for their request to complete. Calls made from
+ * the I/O thread itself, such as from a completion handler, run inline.
+ */
+class IoScheduler {
+    private static final Logger log = LogManager.getLogger();
+
+    /** Upper bound on the size of a merged read or write. */
+    private static final int MAX_COALESCE_BYTES = 64 * 1024;
+
+    /** How long closing waits for the request in progress. */
+    private static final long CLOSE_WAIT_MS = 10000;
+
+    private static final Comparator<Request> BY_SEQUENCE =
+        new Comparator<Request>() {
+            @Override
+            public int compare (Request a, Request b) {
+                return Long.compare( a.seq, b.seq );
+            }
+        };
+
+    private static final Comparator<Request> BY_POSITION =
+        new Comparator<Request>() {
+            @Override
+            public int compare (Request a, Request b) {
+                return Long.compare( a.position, b.position );
+            }
+        };
+
+    enum Kind { READ, WRITE, TASK }
+
+    /** The file requests are served from; its methods are only called
+     * on the I/O thread.
+     */
+    interface Target {
+        long size();
+
+        int doRead (ByteBuffer dst, long position, Deadline deadline)
+        throws IOException;
+
+        int doWrite (ByteBuffer src, long position, Deadline deadline)
+        throws IOException;
+    }
+
+    /** Work run on the I/O thread with exclusive use of the device. */
+    interface Task<T> {
+        T run()
+        throws IOException;
+    }
+
+    private final Target channel;
+    private final DeviceMetrics metrics;
+    private final Thread thread;
+    private final List<Queue<Request>> queues = new ArrayList<Queue<Request>>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean shutdown = false;
+
+    IoScheduler (Target channel, DeviceMetrics metrics) {
+        this.channel = channel;
+        this.metrics = metrics;
+
+        for (int idx = 0; idx < IoPriority.values().length; idx++)
+            queues.add( new ConcurrentLinkedQueue<Request>() );
+
+        thread = new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    runQueue();
+                }
+            }, "jpsusbraw-io " + metrics.getDevice() );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    private boolean isIoThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Queues a request. It fails immediately if the scheduler is shut down. */
+    void submit (Request request) {
+        request.seq = sequence.getAndIncrement();
+
+        Queue<Request> queue = queues.get( request.priority.ordinal() );
+        queue.offer( request );
+
+        // whichever of us and the exiting I/O thread removes it, fails it
+        if (shutdown && queue.remove( request )) {
+            request.fail( new ClosedChannelException() );
+            return;
+        }
+
+        LockSupport.unpark( thread );
+    }
+
+    /** Reads from the file, waiting for the I/O thread. */
+    int read (ByteBuffer dst, long position,
+            IoPriority priority, Deadline deadline)
+    throws IOException {
+        if (isIoThread()) return channel.doRead( dst, position, deadline );
+
+        BlockingRequest request = new BlockingRequest(
+                Kind.READ, dst, position, priority, deadline );
+        submit( request );
+        return await( request.future );
+    }
+
+    /** Writes to the file, waiting for the I/O thread. */
+    int write (ByteBuffer src, long position,
+            IoPriority priority, Deadline deadline)
+    throws IOException {
+        if (isIoThread()) return channel.doWrite( src, position, deadline );
+
+        BlockingRequest request = new BlockingRequest(
+                Kind.WRITE, src, position, priority, deadline );
+        submit( request );
+        return await( request.future );
+    }
+
+    /** Runs a task on the I/O thread once all earlier requests are done,
+     * and waits for its result.
+     */
+    <T> T call (Task<T> task, IoPriority priority)
+    throws IOException {
+        if (isIoThread()) return task.run();
+
+        TaskRequest<T> request = new TaskRequest<T>( task, priority );
+        submit( request );
+        return await( request.future );
+    }
+
+    /** Queues a task which reads or writes one region of the file, and
+     * returns without waiting for it.
+     *
+     * Unlike {@link #call}, the task is ordered only against requests it
+     * conflicts with, as a read or write of that region would be, so it
+     * takes its turn by priority. Its future completes on the I/O thread.
+     */
+    <T> CompletableFuture<T> submit (Task<T> task,
+            long position, long length, boolean write, IoPriority priority) {
+        TaskRequest<T> request = new TaskRequest<T>(
+                task, priority, position, length, write );
+        submit( request );
+        return request.future;
+    }
+
+    private static <T> T await (CompletableFuture<T> future)
+    throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException caught) {
+                    // the request can't be withdrawn once queued
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException caught) {
+            Throwable cause = caught.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException( cause );
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Stops the I/O thread after the request in progress, failing the
+     * rest with {@link AsynchronousCloseException}.
+     */
+    boolean shutdown() {
+        shutdown = true;
+        LockSupport.unpark( thread );
+
+        if (isIoThread()) return false;
+
+        try {
+            thread.join( CLOSE_WAIT_MS );
+        } catch (InterruptedException caught) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (thread.isAlive()) {
+            log.warn( "I/O thread still busy after " + CLOSE_WAIT_MS + " ms" );
+            return false;
+        }
+
+        return true;
+    }
+
+
+    private void runQueue() {
+        List<Request> batch = new ArrayList<Request>();
+
+        while (!shutdown) {
+            for (Queue<Request> queue : queues) {
+                Request request;
+                while ((request = queue.poll()) != null)
+                    batch.add( request );
+            }
+
+            if (batch.isEmpty()) {
+                LockSupport.park( this );
+                continue;
+            }
+
+            Collections.sort( batch, BY_SEQUENCE );
+            runBatch( batch );
+        }
+
+        for (Queue<Request> queue : queues) {
+            Request request;
+            while ((request = queue.poll()) != null)
+                batch.add( request );
+        }
+
+        for (Request request : batch)
+            request.fail( new AsynchronousCloseException() );
+    }
+
+    /** Runs a batch, removing requests from it as they complete. */
+    private void runBatch (List<Request> pending) {
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "io batch", TraceRecorder.CAT_FILE
+            ).arg( "requests", pending.size() );
+        try {
+            while (!pending.isEmpty() && !shutdown) {
+                Request pick = choose( pending );
+
+                if (pick.kind == Kind.TASK) {
+                    pending.remove( pick );
+                    ((TaskRequest<?>) pick).execute();
+                    continue;
+                }
+
+                List<Request> group = group( pick, pending );
+                pending.removeAll( group );
+
+                if (pick.kind == Kind.READ) {
+                    runReads( group );
+                } else {
+                    runWrites( group );
+                }
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /** Whether no earlier request in the batch conflicts with this one. */
+    private static boolean isReady (Request request, List<Request> pending) {
+        for (Request other : pending) {
+            if (other.seq >= request.seq) break;
+            if (other.conflicts( request )) return false;
+        }
+        return true;
+    }
+
+    /** Picks the highest-priority request which may run now. The oldest
+     * request can always run, so this never fails.
+     */
+    private static Request choose (List<Request> pending) {
+        for (IoPriority priority : IoPriority.values()) {
+            for (Request request : pending) {
+                if (request.priority == priority && isReady( request, pending ))
+                    return request;
+            }
+        }
+
+        return pending.get( 0 );
+    }
+
+    /** Collects the ready requests of the same kind which can be merged
+     * with the chosen one into a single transfer.
+     */
+    private List<Request> group (Request pick, List<Request> pending) {
+        long size = channel.size();
+        boolean write = pick.kind == Kind.WRITE;
+
+        // a write running off the end is cut short, so it runs alone
+        List<Request> group = new ArrayList<Request>();
+        if (pick.position >= size || (write && pick.end() > size)) {
+            group.add( pick );
+            return group;
+        }
+
+        List<Request> candidates = new ArrayList<Request>();
+        for (Request request : pending) {
+            if (request.kind != pick.kind) continue;
+            if (request != pick) {
+                if (request.position >= size) continue;
+                if (write && request.end() > size) continue;
+                if (!isReady( request, pending )) continue;
+            }
+            candidates.add( request );
+        }
+        Collections.sort( candidates, BY_POSITION );
+
+        long start = 0, end = 0;
+        for (Request request : candidates) {
+            boolean joins = !group.isEmpty()
+                && (write ? request.position == end : request.position <= end)
+                && Math.max( end, request.end() ) - start <= MAX_COALESCE_BYTES;
+
+            if (!joins) {
+                if (group.contains( pick )) break;
+                group.clear();
+                start = request.position;
+                end = request.position;
+            }
+
+            group.add( request );
+            end = Math.max( end, request.end() );
+        }
+
+        if (!group.contains( pick )) {
+            group.clear();
+            group.add( pick );
+        }
+
+        return group;
+    }
+
+    /** Fails requests whose deadline passed while they were queued. */
+    private static Deadline expireQueued (List<Request> group, String operation) {
+        Deadline deadline = Deadline.NONE;
+        Iterator<Request> iter = group.iterator();
+        while (iter.hasNext()) {
+            Request request = iter.next();
+            if (request.deadline.isExpired()) {
+                iter.remove();
+                request.fail( new DeviceTimeoutException(
+                            "deadline expired before queued " + operation ));
+            } else {
+                deadline = deadline.earliest( request.deadline );
+            }
+        }
+        return deadline;
+    }
+
+    private void runReads (List<Request> group) {
+        long size = channel.size();
+        Iterator<Request> iter = group.iterator();
+        while (iter.hasNext()) {
+            Request request = iter.next();
+            if (request.position >= size) {
+                iter.remove();
+                request.complete( -1 );
+            }
+        }
+
+        Deadline deadline = expireQueued( group, "read" );
+        if (group.isEmpty()) return;
+
+        if (group.size() == 1) {
+            Request request = group.get( 0 );
+            int count;
+            try {
+                count = channel.doRead( request.buffer, request.position, deadline );
+            } catch (IOException | RuntimeException caught) {
+                request.fail( caught );
+                return;
+            }
+
+            request.complete( count );
+            return;
+        }
+
+        long start = group.get( 0 ).position, end = start;
+        for (Request request : group)
+            end = Math.max( end, Math.min( size, request.end() ));
+
+        if (log.isTraceEnabled()) {
+            log.trace( String.format(
+                    "coalescing %d reads into offset=%d count=%d",
+                    group.size(), start, end - start
+                ));
+        }
+
+        ByteBuffer merged = ByteBuffer.allocate( (int)( end - start ));
+        try {
+            while (merged.hasRemaining()) {
+                if (channel.doRead( merged,
+                            start + merged.position(), deadline ) <= 0)
+                    break;
+            }
+        } catch (IOException | RuntimeException caught) {
+            for (Request request : group)
+                request.fail( caught );
+            return;
+        }
+
+        metrics.coalescedReads.add( group.size() - 1 );
+
+        for (Request request : group) {
+            int offset = (int)( request.position - start );
+            int count = Math.max( 0, Math.min(
+                        request.buffer.remaining(), merged.position() - offset ));
+
+            ByteBuffer part = merged.duplicate();
+            part.position( offset );
+            part.limit( offset + count );
+            request.buffer.put( part );
+
+            request.complete( count );
+        }
+    }
+
+    private void runWrites (List<Request> group) {
+        long size = channel.size();
+        Iterator<Request> iter = group.iterator();
+        while (iter.hasNext()) {
+            Request request = iter.next();
+            if (request.position >= size) {
+                iter.remove();
+                request.fail( new IOException( "can't write past end of file" ));
+            }
+        }
+
+        Deadline deadline = expireQueued( group, "write" );
+        if (group.isEmpty()) return;
+
+        if (group.size() == 1) {
+            Request request = group.get( 0 );
+            int count;
+            try {
+                count = channel.doWrite( request.buffer, request.position, deadline );
+            } catch (IOException | RuntimeException caught) {
+                request.fail( caught );
+                return;
+            }
+
+            request.complete( count );
+            return;
+        }
+
+        // the group is contiguous and sorted by position
+        long start = group.get( 0 ).position;
+        long end = group.get( group.size() - 1 ).end();
+
+        if (log.isTraceEnabled()) {
+            log.trace( String.format(
+                    "coalescing %d writes into offset=%d count=%d",
+                    group.size(), start, end - start
+                ));
+        }
+
+        ByteBuffer merged = ByteBuffer.allocate( (int)( end - start ));
+        for (Request request : group)
+            merged.put( request.buffer.duplicate() );
+        merged.flip();
+
+        try {
+            while (merged.hasRemaining()) {
+                if (channel.doWrite( merged,
+                            start + merged.position(), deadline ) <= 0)
+                    break;
+            }
+        } catch (IOException | RuntimeException caught) {
+            for (Request request : group)
+                request.fail( caught );
+            return;
+        }
+
+        metrics.coalescedWrites.add( group.size() - 1 );
+
+        // each request is credited with what reached the device of its part
+        long written = start + merged.position();
+        for (Request request : group) {
+            int count = (int) Math.max( 0, Math.min(
+                        request.buffer.remaining(), written - request.position ));
+            request.buffer.position( request.buffer.position() + count );
+            request.complete( count );
+        }
+    }
+
+
+    /** A queued read or write and its completion callback. */
+    abstract static class Request {
+        final Kind kind;
+        final ByteBuffer buffer;
+        final long position;
+        final IoPriority priority;
+        final Deadline deadline;
+        long seq;
+
+        Request (Kind kind, ByteBuffer buffer, long position,
+                IoPriority priority, Deadline deadline) {
+            this.kind = kind;
+            this.buffer = buffer;
+            this.position = position;
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+
+        long end() {
+            return buffer == null ? position : position + buffer.remaining();
+        }
+
+        /** Whether this changes the data it touches. */
+        boolean modifies() {
+            return kind == Kind.WRITE;
+        }
+
+        /** Whether this must keep its place against every other request. */
+        boolean isBarrier() {
+            return kind == Kind.TASK;
+        }
+
+        /** Whether the two must run in the order they were submitted. */
+        boolean conflicts (Request other) {
+            if (isBarrier() || other.isBarrier()) return true;
+            if (!modifies() && !other.modifies()) return false;
+            return position < other.end() && other.position < end();
+        }
+
+        protected abstract void completed (int result);
+        protected abstract void failed (Throwable cause);
+
+        void complete (int result) {
+            try {
+                completed( result );
+            } catch (RuntimeException caught) {
+                log.warn( "completion handler threw an exception", caught );
+            }
+        }
+
+        void fail (Throwable cause) {
+            try {
+                failed( cause );
+            } catch (RuntimeException caught) {
+                log.warn( "completion handler threw an exception", caught );
+            }
+        }
+    }
+
+    private static class BlockingRequest
+    extends Request {
+        final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+        BlockingRequest (Kind kind, ByteBuffer buffer, long position,
+                IoPriority priority, Deadline deadline) {
+            super( kind, buffer, position, priority, deadline );
+        }
+
+        @Override
+        protected void completed (int result) {
+            future.complete( result );
+        }
+
+        @Override
+        protected void failed (Throwable cause) {
+            future.completeExceptionally( cause );
+        }
+    }
+
+    private static class TaskRequest<T>
+    extends Request {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        private final Task<T> task;
+
+        // the region the task touches, or -1 if it may touch anything
+        private final long length;
+        private final boolean write;
+
+        TaskRequest (Task<T> task, IoPriority priority) {
+            this( task, priority, 0, -1, true );
+        }
+
+        TaskRequest (Task<T> task, IoPriority priority,
+                long position, long length, boolean write) {
+            super( Kind.TASK, null, position, priority, Deadline.NONE );
+            this.task = task;
+            this.length = length;
+            this.write = write;
+        }
+
+        @Override
+        long end() {
+            return position + Math.max( 0, length );
+        }
+
+        @Override
+        boolean modifies() {
+            return write;
+        }
+
+        @Override
+        boolean isBarrier() {
+            return length < 0;
+        }
+
+        void execute() {
+            try {
+                future.complete( task.run() );
+            } catch (IOException | RuntimeException caught) {
+                future.completeExceptionally( caught );
+            }
+        }
+
+        @Override
+        protected void completed (int result) {
+            throw new IllegalStateException( "tasks complete with a value" );
+        }
+
+        @Override
+        protected void failed (Throwable cause) {
+            future.completeExceptionally( cause );
+        }
+    }
+}
@@ -12,12 +12,19 @@
 package com.hifiremote.jpsusbraw;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.usb.UsbConfiguration;
 import javax.usb.UsbDevice;
@@ -35,8 +42,22 @@ import org.apache.logging.log4j.LogManager;
 public class JpsUsbRaw
 extends SimpleFileChannel {
     private static final Logger log = LogManager.getLogger();
+
+    // bytes of a local file mapped at once by transferTo and transferFrom
+    private static final long MAP_WINDOW = 4L << 20;
+
+    // allocation unit of a local file, the page size on common file
+    // systems; only a whole unit of zeros can be left as a hole
+    private static final int SPARSE_UNIT = 4096;
+
+    // shortest run of filler blocks worth reading back before a write;
+    // shorter runs cost more in split commands than skipping them saves
+    private static final int MIN_SKIP_BLOCKS = 8;
+
     private static List<DevicePath> devices = null;
 
+    private static final VolumePool pool = new VolumePool();
+
     private static boolean checkDeviceSupported (UsbDeviceDescriptor desc) {
         return desc.idVendor() == (short)0x06e7
             && desc.idProduct() == (short)0x8020;
@@ -96,6 +117,22 @@ extends SimpleFileChannel {
     }
 
     static UsbDevice getDevice (DevicePath path)
+    throws UsbException {
+        UsbDevice device = locate( path );
+
+        // check that the found device is still a supported device
+        UsbDeviceDescriptor desc = device.getUsbDeviceDescriptor();
+        if (!checkDeviceSupported( desc )) {
+            throw new IllegalStateException(
+                    "provided device is not supported"
+                );
+        }
+
+        return device;
+    }
+
+    /** Finds the device at a path, whatever it is. */
+    static UsbDevice locate (DevicePath path)
     throws UsbException {
         // walk the USB hub tree to find the device matchng the given path
         byte[] pathArray = path.toArray();
@@ -126,14 +163,6 @@ extends SimpleFileChannel {
             }
         }
 
-        // check that the found device is still a supported device
-        UsbDeviceDescriptor desc = device.getUsbDeviceDescriptor();
-        if (!checkDeviceSupported( desc )) {
-            throw new IllegalStateException(
-                    "provided device is not supported"
-                );
-        }
-
         return device;
     }
 
@@ -144,6 +173,24 @@ extends SimpleFileChannel {
      */
     public static JpsUsbRaw open (DevicePath path)
     throws IOException {
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "open", TraceRecorder.CAT_FILE ).arg( "path", path );
+        try {
+            return openDevice( path );
+        } finally {
+            span.end();
+        }
+    }
+
+    private static JpsUsbRaw openDevice (DevicePath path)
+    throws IOException {
+        MountedVolume volume = pool.checkout( path );
+        if (volume != null) {
+            if (log.isDebugEnabled())
+                log.debug( "reusing pooled device path=" + path );
+            return new JpsUsbRaw( volume );
+        }
+
         UsbDevice device;
 
         try {
@@ -165,278 +212,1205 @@ extends SimpleFileChannel {
         }
 
         // actually open the thing
-        return new JpsUsbRaw( device );
+        return new JpsUsbRaw( new MountedVolume( device, path ));
     }
 
+    /** Sets how long a closed device stays claimed and mounted, so that
+     * opening it again skips straight to the data transfer.
+     *
+     * A pooled device is checked with TEST UNIT READY before it's reused,
+     * and released if it's unplugged. Zero, the default, releases devices
+     * as soon as they are closed; changing the time releases any already
+     * pooled.
+     */
+    public static void setPoolIdleTime (long time, TimeUnit unit) {
+        if (time < 0)
+            throw new IllegalArgumentException( "time may not be negative" );
+
+        pool.setIdleTime( unit.toNanos( time ));
+    }
+
+    /** Releases every pooled device. */
+    public static void releasePooled() {
+        pool.releaseAll();
+    }
+
+    private final MountedVolume volume;
+    private final DeviceMetrics metrics;
     private final ScsiDriver storage;
-    private final int partOffset, partLength;
-    private final int fileOffset, fileLength;
+    private final int fileLength;
     private final long fileOffsetAbs;
 
-    private JpsUsbRaw (UsbDevice device)
-    throws IOException {
-        storage = new ScsiDriver( new UsbMassStorageDriver( device, true ) );
+    private volatile long timeoutNanos = 0;
+    private volatile IoPriority priority = IoPriority.NORMAL;
+    private volatile ProgressTracker progress = null;
+    private final BlockVersions versions;
+    private final IoScheduler scheduler;
 
-        log.debug( "reading partition table" );
+    // created by the first map() call; only replaced on the I/O thread
+    private volatile ShadowImage shadow = null;
+    private boolean writingBack = false;
 
-        ByteBuffer mbr = ByteBuffer.allocate( 512 );
-        mbr.order( ByteOrder.LITTLE_ENDIAN );
-        storage.rawRead( mbr, 0, 1 );
+    private JpsUsbRaw (MountedVolume volume) {
+        this.volume = volume;
+        metrics = volume.metrics;
+        storage = volume.storage;
+        fileLength = volume.fileLength;
+        fileOffsetAbs = volume.fileOffsetAbs;
 
-        short signature = mbr.getShort( 0x1FE );
-        if (signature != (short) 0xAA55) {
-            throw new IOException( String.format(
-                        "invalid MBR signature 0x%04X", signature ));
-        }
+        metrics.register();
 
-        byte partType = mbr.get( 0x1BE + 0x4 );
-        if (partType != (byte) 0x01) {
-            throw new IOException( String.format(
-                        "unrecognized partition type 0x%02X", partType ));
-        }
+        versions = new BlockVersions( storage.blockSize(), fileLength, metrics );
+
+        // from here on all device I/O goes through the I/O thread
+        scheduler = new IoScheduler( new IoScheduler.Target() {
+                @Override
+                public long size() {
+                    return fileLength;
+                }
+
+                @Override
+                public int doRead (ByteBuffer dst,
+                        long position, Deadline deadline)
+                throws IOException {
+                    return JpsUsbRaw.this.doRead( dst, position, deadline );
+                }
+
+                @Override
+                public int doWrite (ByteBuffer src,
+                        long position, Deadline deadline)
+                throws IOException {
+                    return JpsUsbRaw.this.doWrite( src, position, deadline );
+                }
+            }, metrics );
+    }
+
+    @Override
+    public long size() {
+        return fileLength;
+    }
 
-        partOffset = mbr.getInt( 0x1BE + 0x8 );
-        int length = mbr.getInt( 0x1BE + 0xC );
+    public int blockSize() {
+        return storage.blockSize();
+    }
+
+    /** Returns a string identifying this particular device, made of its
+     * model key and the volume ID of its file system, which changes only
+     * if the device is reformatted.
+     */
+    public String identity() {
+        return String.format( "%s-%08x", model().key(), volume.volumeId );
+    }
 
-        if (log.isDebugEnabled()) {
-            log.debug( String.format(
-                    "using partition 1: offset=%d length=%d",
-                    partOffset, length
+    /** Returns the vendor, product and release of the open device. */
+    public DeviceModel model() {
+        return storage.model();
+    }
+
+    private TransferBenchmark benchmarkRegion() {
+        // reads stay inside the settings file, writes inside free clusters
+        return new TransferBenchmark( storage,
+                fileOffsetAbs / storage.blockSize(),
+                fileLength / storage.blockSize(),
+                volume.scratchBlock, volume.scratchBlocks );
+    }
+
+    /** Measures transfer throughput at each candidate command size,
+     * then at the best read size for each candidate IRP size and
+     * pipeline depth.
+     *
+     * Reads sweep the blocks of the settings file. The write probe only
+     * writes to the longest run of free clusters on the volume, so no
+     * file changes, but it does cost the device write cycles. It fails
+     * if the volume has no free clusters.
+     *
+     * @param write  whether to probe writes as well as reads
+     * @param passes how many times to sweep the file per candidate
+     */
+    public List<TransferBenchmark.Result> benchmark (
+            final boolean write, final int passes)
+    throws IOException {
+        return scheduler.call( new IoScheduler.Task<List<TransferBenchmark.Result>>() {
+                @Override
+                public List<TransferBenchmark.Result> run()
+                throws IOException {
+                    TransferProfile before = storage.transferProfile();
+                    try {
+                        TransferBenchmark bench = benchmarkRegion();
+                        List<TransferBenchmark.Result> results =
+                            bench.run( write, passes );
+
+                        int read = TransferBenchmark.best( results, false );
+                        if (read != 0)
+                            results.addAll( bench.runPipelining( read, passes ));
+                        return results;
+                    } finally {
+                        storage.applyProfile( before );
+                    }
+                }
+            }, IoPriority.BACKGROUND );
+    }
+
+    /** Benchmarks the device and stores the best sizes, IRP size and
+     * pipeline depth as its model's profile.
+     *
+     * The new profile takes effect immediately and is loaded whenever a
+     * device of the same model is opened. If writes aren't probed, the
+     * current write size is kept.
+     */
+    public TransferProfile tune (final boolean write, final int passes)
+    throws IOException {
+        return scheduler.call( new IoScheduler.Task<TransferProfile>() {
+                @Override
+                public TransferProfile run()
+                throws IOException {
+                    return tuneNow( write, passes );
+                }
+            }, IoPriority.BACKGROUND );
+    }
+
+    private TransferProfile tuneNow (boolean write, int passes)
+    throws IOException {
+        TransferProfile before = storage.transferProfile();
+        List<TransferBenchmark.Result> results = benchmark( write, passes );
+
+        int read = TransferBenchmark.best( results, false );
+        int written = write ? TransferBenchmark.best( results, true ) : 0;
+
+        TransferProfile profile = TransferBenchmark.bestPipelining( results,
+                new TransferProfile(
+                    read != 0 ? read : before.readBlocks(),
+                    written != 0 ? written : before.writeBlocks(),
+                    before.irpBytes(), before.pipelineDepth()
                 ));
+
+        profile.save( storage.model() );
+        storage.applyProfile( profile );
+        return profile;
+    }
+
+    /** Returns the I/O metrics for this device.
+     *
+     * The same metrics are exposed over JMX while the channel is open,
+     * and remain readable after it has been closed.
+     */
+    public DeviceMetrics metrics() {
+        return metrics;
+    }
+
+    /** Returns an asynchronous channel over the same settings file.
+     *
+     * @see #asynchronous(IoPriority)
+     */
+    public AsyncFileChannel asynchronous()
+    throws IOException {
+        return asynchronous( IoPriority.NORMAL );
+    }
+
+    /** Returns an asynchronous channel whose requests have the given priority.
+     *
+     * Its requests share the device's I/O thread with this channel's own
+     * reads and writes, and use the timeout set by {@link #setTimeout}.
+     */
+    public AsyncFileChannel asynchronous (IoPriority priority)
+    throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+
+        return new AsyncFileChannel( this, scheduler, priority );
+    }
+
+    /** Sets the priority of reads and writes made through this channel.
+     *
+     * The setting applies to every thread using this object; threads
+     * which need different priorities can use {@link #asynchronous}.
+     */
+    public void setPriority (IoPriority priority) {
+        if (priority == null)
+            throw new IllegalArgumentException( "priority may not be null" );
+
+        this.priority = priority;
+    }
+
+    public IoPriority getPriority() {
+        return priority;
+    }
+
+    /** Returns a publisher which streams the whole settings file.
+     *
+     * @see #publisher(long, long)
+     */
+    public ReadPublisher publisher()
+    throws IOException {
+        return publisher( 0, fileLength );
+    }
+
+    /** Returns a publisher which streams part of the settings file.
+     *
+     * Each buffer is one READ command of the current read transfer size.
+     * See {@link ReadPublisher} for how demand and buffers are managed.
+     */
+    public ReadPublisher publisher (long position, long count)
+    throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+
+        if (position < 0 || count < 0 || position + count > fileLength)
+            throw new IllegalArgumentException( "range is outside the file" );
+
+        return new ReadPublisher( this, position, position + count,
+                storage.transferProfile().readBlocks(), priority );
+    }
+
+    /** Returns a subscriber which writes a stream to the settings file.
+     *
+     * Writing starts at the given position, which must be a multiple of
+     * the block size, and fails if the stream runs past the end of file.
+     * See {@link WriteSubscriber} for how demand and buffers are managed.
+     */
+    public WriteSubscriber subscriber (long position)
+    throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+
+        if (position < 0 || position > fileLength)
+            throw new IllegalArgumentException( "position is outside the file" );
+
+        return new WriteSubscriber( this, position, fileLength,
+                storage.transferProfile().writeBlocks(), priority );
+    }
+
+    /** Queues a READ of whole blocks from a block-aligned file position
+     * for a stream. The future completes on the I/O thread.
+     */
+    CompletableFuture<Void> readBlocksAsync (final ByteBuffer dst,
+            final long position, final int blocks, IoPriority priority) {
+        final Deadline deadline = defaultDeadline();
+        return scheduler.submit( new IoScheduler.Task<Void>() {
+                @Override
+                public Void run()
+                throws IOException {
+                    storage.readBlocks( dst,
+                            (fileOffsetAbs + position) / storage.blockSize(),
+                            blocks, deadline );
+                    return null;
+                }
+            }, position, (long) blocks * storage.blockSize(), false, priority );
+    }
+
+    /** Queues a WRITE of a buffer at a block-aligned file position for
+     * a stream. The future completes on the I/O thread.
+     *
+     * If the buffer ends partway through a block, the rest of that block
+     * is read from the device in the same task, so no other write can
+     * land in between. The written data goes into the in-memory copies
+     * of the file like any other write.
+     */
+    CompletableFuture<Void> writeBlocksAsync (final ByteBuffer src,
+            final long position, IoPriority priority) {
+        final Deadline deadline = defaultDeadline();
+        final int blockSize = storage.blockSize();
+        final int blocks = (src.remaining() + blockSize - 1) / blockSize;
+
+        return scheduler.submit( new IoScheduler.Task<Void>() {
+                @Override
+                public Void run()
+                throws IOException {
+                    long block = (fileOffsetAbs + position) / blockSize;
+                    int tail = src.remaining() % blockSize;
+
+                    ByteBuffer data = src.duplicate();
+                    if (tail != 0) {
+                        ByteBuffer current = ByteBuffer.allocate( blockSize );
+                        log.trace( "reading to get unaligned block contents" );
+                        storage.readBlocks( current, block + blocks - 1, 1, deadline );
+
+                        data = ByteBuffer.allocate( blocks * blockSize );
+                        data.put( src.duplicate() );
+                        current.position( tail );
+                        data.put( current );
+                        data.flip();
+                    }
+
+                    storage.writeBlocks( data, block, blocks, deadline );
+
+                    ByteBuffer written = src.duplicate();
+                    written.limit( written.position()
+                            + (int) Math.min( written.remaining(), fileLength - position ));
+                    written( position, written );
+                    return null;
+                }
+            }, position, (long) blocks * blockSize, true, priority );
+    }
+
+    /** Sets the time limit for each read or write call on this channel.
+     *
+     * The limit covers every USB phase of the call, including retries and
+     * error recovery. A call which exceeds it throws
+     * {@link DeviceTimeoutException}. Zero, the default, means no limit.
+     */
+    public void setTimeout (long timeout, TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException( "timeout may not be negative" );
+
+        timeoutNanos = unit.toNanos( timeout );
+    }
+
+    public long getTimeout (TimeUnit unit) {
+        return unit.convert( timeoutNanos, TimeUnit.NANOSECONDS );
+    }
+
+    /** Sets a listener for the progress of this device's I/O, or removes
+     * it if null.
+     *
+     * Every command sent to the device counts toward the progress, which
+     * is reported at most once per interval. Counting restarts with each
+     * call to {@link #startProgress}.
+     */
+    public void setProgressListener (ProgressListener listener,
+            long interval, TimeUnit unit) {
+        if (interval < 0)
+            throw new IllegalArgumentException( "interval may not be negative" );
+
+        progress = listener == null
+            ? null : new ProgressTracker( listener, unit.toNanos( interval ));
+        storage.setProgress( progress );
+    }
+
+    /** Restarts progress counting for an operation expected to transfer
+     * the given number of bytes, or -1 if unknown.
+     */
+    public void startProgress (long totalBytes) {
+        ProgressTracker tracker = progress;
+        if (tracker != null) tracker.start( totalBytes );
+    }
+
+    /** Sends the final progress report for the current operation. */
+    public void finishProgress() {
+        ProgressTracker tracker = progress;
+        if (tracker != null) tracker.finish();
+    }
+
+    /** Returns a deadline for a new call under the current timeout. */
+    Deadline defaultDeadline() {
+        return Deadline.after( timeoutNanos, TimeUnit.NANOSECONDS );
+    }
+
+    /** Reads from the given position, failing if it takes too long.
+     *
+     * @throws DeviceTimeoutException if the read did not complete in time
+     * @see #read(ByteBuffer, long)
+     */
+    public int read (ByteBuffer dst, long position, long timeout, TimeUnit unit)
+    throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        } else if (position < 0) {
+            throw new IllegalArgumentException( "position may not be negative" );
+        } else if (position >= size()) {
+            return -1;
+        } else if (dst.remaining() == 0) {
+            return 0;
         }
 
-        // sometimes the partition length is set incorrectly
-        if (partOffset + length > storage.blockCount()) {
-            log.warn( String.format(
-                    "partition length %d puts end %d after"
-                        + " volume end %d, correcting to %d",
-                    length, partOffset + length, storage.blockCount(),
-                    storage.blockCount() - partOffset
-                ));
+        return scheduler.read( dst, position,
+                priority, Deadline.after( timeout, unit ));
+    }
 
-            length = (int)( storage.blockCount() - partOffset );
+    /** Writes at the given position, failing if it takes too long.
+     *
+     * @throws DeviceTimeoutException if the write did not complete in time
+     * @see #write(ByteBuffer, long)
+     */
+    public int write (ByteBuffer src, long position, long timeout, TimeUnit unit)
+    throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        } else if (position < 0) {
+            throw new IllegalArgumentException( "position may not be negative" );
+        } else if (position >= size()) {
+            throw new IOException( "can't write past end of file" );
         }
-        partLength = length;
 
+        return scheduler.write( src, position,
+                priority, Deadline.after( timeout, unit ));
+    }
 
+    @Override
+    protected int implRead (ByteBuffer dst, long position)
+    throws IOException {
+        return scheduler.read( dst, position, priority, defaultDeadline() );
+    }
 
-        log.debug( "reading FAT system area" );
+    /** Reads directly from the device; only called on the I/O thread. */
+    int doRead (ByteBuffer dst, long position, Deadline deadline)
+    throws IOException {
+        long offset = position + fileOffsetAbs;
+        long count = Math.min( dst.remaining(), fileLength - position );
 
-        ByteBuffer sys = ByteBuffer.allocate( storage.blockSize() * 16 );
-        sys.order( ByteOrder.LITTLE_ENDIAN );
-        storage.rawRead( sys, partOffset, 16 );
+        if (log.isTraceEnabled()) {
+            log.trace( String.format(
+                    "read requested offset=%d count=%d volOffset=%d volCount=%d",
+                    position, dst.remaining(), offset, count
+                ));
+        }
 
-        // layout from 107-9.2
-        final short sectorSize  = sys.getShort( 11 );
-        final byte  clusterSize = sys.get( 13 );
-        final short reserved    = sys.getShort( 14 );
-        final byte  fatCount    = sys.get( 16 );
-        final short dirEntries  = sys.getShort( 17 );
-        final short sectorCount = sys.getShort( 19 );
-        final short fatSize     = sys.getShort( 22 );
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "read", TraceRecorder.CAT_FILE
+            ).arg( "position", position ).arg( "count", count );
+        try {
+            return storage.read( dst, offset, count, deadline );
+        } finally {
+            span.end();
+        }
+    }
 
-        // defined in 107-6.3.4
-        final short systemSize = (short)(
-                reserved + fatCount * fatSize
-                + Math.ceil( 32 * dirEntries / sectorSize )
-            );;
+    @Override
+    protected int implWrite (ByteBuffer src, long position)
+    throws IOException {
+        return scheduler.write( src, position, priority, defaultDeadline() );
+    }
 
-        // defined in 107-10.2.4
-        final short clusterCount = (short) Math.floor(
-                (sectorCount - systemSize) / clusterSize );
+    /** Writes directly to the device; only called on the I/O thread. */
+    int doWrite (ByteBuffer src, long position, Deadline deadline)
+    throws IOException {
+        long offset = position + fileOffsetAbs;
+        long count = Math.min( src.remaining(), fileLength - position );
 
         if (log.isTraceEnabled()) {
             log.trace( String.format(
-                    "FAT parameters: sectorSize=%d sectorCount=%d"
-                        + " clusterSize=%d clusterCount=%d"
-                        + " fatSize=%d fatCount=%d"
-                        + " reserved=%d system=%d dirEntries=%d",
-                    sectorSize, sectorCount, clusterSize, clusterCount,
-                    fatSize, fatCount, reserved, systemSize, dirEntries
+                    "write requested offset=%d count=%d volOffset=%d volCount=%d",
+                    position, src.remaining(), offset, count
                 ));
         }
 
-        if (sectorSize != storage.blockSize()) {
-            throw new IOException( String.format(
-                    "FAT sector size %d is not equal to device block size %d",
-                    sectorSize, storage.blockSize()
-                ));
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "write", TraceRecorder.CAT_FILE
+            ).arg( "position", position ).arg( "count", count );
+        try {
+            ByteBuffer written = src.duplicate();
+            int result = storage.write( src, offset, count, deadline );
+
+            written.limit( written.position() + Math.max( 0, result ));
+            written( position, written );
+            return result;
+        } finally {
+            span.end();
         }
+    }
 
-        // extract the first FAT from the system area
-        // position defined in 107-6.3.2
-        sys.position( reserved * sectorSize );
-        sys.limit( sys.position() + fatSize * sectorSize );
-        ByteBuffer fat = sys.slice();
-        fat.order( ByteOrder.LITTLE_ENDIAN );
+    /** Reads into a sequence of buffers as one request on the I/O thread,
+     * so that contiguous small buffers are filled by a single READ.
+     */
+    @Override
+    protected long implRead (final ByteBuffer[] dsts,
+            final int offset, final int length, final long position)
+    throws IOException {
+        final Deadline deadline = defaultDeadline();
+        return scheduler.call( new IoScheduler.Task<Long>() {
+                @Override
+                public Long run()
+                throws IOException {
+                    return doRead( dsts, offset, length, position, deadline );
+                }
+            }, priority );
+    }
 
-        // extract the root directory
-        // position defined in 107-6.3.3
-        sys.position( (reserved + fatCount * fatSize) * sectorSize );
-        sys.limit( sys.position() + dirEntries * 32 );
-        ByteBuffer dir = sys.slice();
-        dir.order( ByteOrder.LITTLE_ENDIAN );
+    /** Scattering read directly from the device; only called on the
+     * I/O thread.
+     */
+    long doRead (ByteBuffer[] dsts, int offset, int length,
+            long position, Deadline deadline)
+    throws IOException {
+        long count = Math.min( ScsiDriver.remaining( dsts, offset, length ),
+                fileLength - position );
 
-        // find the SETTINGS.BIN file in the root directory
-        // directory format defined in 107-11
-        short fileCluster = 0;
-        int foundLength = 0;
-        for (int entry = 0; entry < dirEntries; entry++) {
-            byte first = dir.get( entry * 32 +  0 );
-            byte flags = dir.get( entry * 32 + 11 );
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "readv", TraceRecorder.CAT_FILE
+            ).arg( "position", position ).arg( "count", count );
+        try {
+            long total = 0;
+            while (total < count) {
+                long result = storage.read( dsts, offset, length,
+                        position + total + fileOffsetAbs,
+                        count - total, deadline );
+                if (result <= 0) break;
+                total += result;
+            }
+
+            return total;
+        } finally {
+            span.end();
+        }
+    }
 
-            // skip unused and non-file entries
-            if (first == 0x00 || first == 0xE5 || (flags & 0x18) != 0)
-                continue;
+    /** Writes from a sequence of buffers as one request on the I/O
+     * thread, so that contiguous small buffers go out in a single WRITE.
+     */
+    @Override
+    protected long implWrite (final ByteBuffer[] srcs,
+            final int offset, final int length, final long position)
+    throws IOException {
+        final Deadline deadline = defaultDeadline();
+        return scheduler.call( new IoScheduler.Task<Long>() {
+                @Override
+                public Long run()
+                throws IOException {
+                    return doWrite( srcs, offset, length, position, deadline );
+                }
+            }, priority );
+    }
 
-            String name = readString( dir, entry * 32 + 0, 8 );
-            String ext  = readString( dir, entry * 32 + 8, 3 );
+    /** Gathering write directly to the device; only called on the
+     * I/O thread.
+     */
+    long doWrite (ByteBuffer[] srcs, int offset, int length,
+            long position, Deadline deadline)
+    throws IOException {
+        long count = Math.min( ScsiDriver.remaining( srcs, offset, length ),
+                fileLength - position );
 
-            if (log.isTraceEnabled()) {
-                log.trace( String.format(
-                        "considering file %d: '%s.%s'",
-                        entry, name, ext
-                    ));
+        ByteBuffer[] written = new ByteBuffer[ length ];
+        for (int idx = 0; idx < length; idx++)
+            written[ idx ] = srcs[ offset + idx ].duplicate();
+
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "writev", TraceRecorder.CAT_FILE
+            ).arg( "position", position ).arg( "count", count );
+        long total = 0;
+        try {
+            while (total < count) {
+                long result = storage.write( srcs, offset, length,
+                        position + total + fileOffsetAbs,
+                        count - total, deadline );
+                if (result <= 0) break;
+                total += result;
             }
 
-            if ("SETTINGS".equalsIgnoreCase( name )
-                    && "BIN".equalsIgnoreCase( ext )) {
-                fileCluster = dir.getShort( entry * 32 + 26 );
-                foundLength  = dir.getInt(   entry * 32 + 28 );
+            return total;
+        } finally {
+            // record whatever reached the device, even if a later
+            // command failed
+            long at = position;
+            for (int idx = 0; idx < length && at < position + total; idx++) {
+                ByteBuffer part = written[ idx ];
+                part.limit( (int) Math.min( part.limit(),
+                            part.position() + position + total - at ));
+                written( at, part );
+                at += part.remaining();
+            }
 
-                if (log.isTraceEnabled()) {
-                    log.trace( String.format(
-                            "matched file %d: cluster=0x%03x length=0x%08x",
-                            entry, fileCluster, foundLength
-                        ));
+            span.end();
+        }
+    }
+
+    /** Reads many small regions of the file in as few commands as possible.
+     *
+     * Ranges are grouped by block, and nearby groups are read together
+     * when the gap between them is cheaper to transfer than a separate
+     * command. Each range's buffer is filled completely. Returns the
+     * total number of bytes read.
+     *
+     * @throws IllegalArgumentException if a range extends past the end
+     *      of the file or its buffer is too small or read-only
+     */
+    public long readRanges (List<FileRange> ranges)
+    throws IOException {
+        final List<FileRange> copy = checkRanges( ranges, true );
+        final Deadline deadline = defaultDeadline();
+        return scheduler.call( new IoScheduler.Task<Long>() {
+                @Override
+                public Long run()
+                throws IOException {
+                    return doReadRanges( copy, deadline );
                 }
+            }, priority );
+    }
 
-                break;
+    /** Writes many small regions of the file in as few commands as possible.
+     *
+     * Ranges are grouped as for {@link #readRanges}. Each group is written
+     * with one command, preceded by one read if the ranges don't cover
+     * all of its blocks. Where ranges overlap, later ones in the list win.
+     * Returns the total number of bytes written.
+     *
+     * @throws IllegalArgumentException if a range extends past the end
+     *      of the file or its buffer is too small
+     */
+    public long writeRanges (List<FileRange> ranges)
+    throws IOException {
+        final List<FileRange> copy = checkRanges( ranges, false );
+        final Deadline deadline = defaultDeadline();
+        return scheduler.call( new IoScheduler.Task<Long>() {
+                @Override
+                public Long run()
+                throws IOException {
+                    return doWriteRanges( copy, deadline );
+                }
+            }, priority );
+    }
+
+    private List<FileRange> checkRanges (List<FileRange> ranges, boolean read)
+    throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+
+        List<FileRange> copy = new ArrayList<FileRange>( ranges );
+        for (FileRange range : copy) {
+            if (range.end() > fileLength) {
+                throw new IllegalArgumentException(
+                        "range " + range + " extends past end of file" );
+            } else if (range.buffer().remaining() < range.length()) {
+                throw new IllegalArgumentException(
+                        "buffer for range " + range + " is not large enough" );
+            } else if (read && range.buffer().isReadOnly()) {
+                throw new IllegalArgumentException(
+                        "buffer for range " + range + " is read-only" );
             }
         }
 
-        if (fileCluster == 0) {
-            throw new IOException( "file SETTINGS.BIN not found" );
-        }
+        return copy;
+    }
+
+    private List<RangePlan.Extent> planRanges (List<FileRange> ranges,
+            boolean in) {
+        int blockSize = storage.blockSize();
+        List<RangePlan.Extent> plan = RangePlan.plan(
+                ranges, fileOffsetAbs, blockSize, storage.transferBlocks( in ),
+                RangePlan.bridgeBlocks( storage.maxPacketSize(), blockSize ));
 
-        fileOffset = (fileCluster - 2) * clusterSize + systemSize;
-        fileOffsetAbs = (partOffset + fileOffset) * sectorSize;
-        fileLength = foundLength;
+        for (RangePlan.Extent extent : plan)
+            metrics.mergedRanges.add( extent.members.size() - 1 );
 
-        if (log.isDebugEnabled()) {
-            log.debug( String.format(
-                    "file offset(sectors)=%d abs_offset(bytes)=%d length(bytes)=%d",
-                    fileOffset, fileOffsetAbs, fileLength
+        if (log.isTraceEnabled()) {
+            log.trace( String.format(
+                    "planned %d ranges as %d commands",
+                    ranges.size(), plan.size()
                 ));
         }
 
-        // read the FAT to ensure the file is contiguous
-        // FAT layout defined in 107-10
-        // 12-bit int packing method defined in 107-8.4
-        final int fileSizeClusters = (int) Math.ceil(
-                fileLength / (clusterSize * sectorSize) );
-        boolean lastCluster = false;
-        short cluster = fileCluster;
-        for (int idx = 0; idx <= fileSizeClusters; idx++) {
-            short offset = (short)( Math.floor( (cluster - 2) / 2 ) * 3 + 3 );
-            short value;
+        return plan;
+    }
 
-            if (cluster % 2 == 0) {
-                value = (short)( fat.getShort( offset ) & 0x0FFF );
-            } else {
-                value = (short)( (fat.getShort( offset + 1 ) & 0xFFF0) >>> 4 );
+    /** Returns a view of an extent's data covering one of its ranges. */
+    private ByteBuffer slice (ByteBuffer data,
+            RangePlan.Extent extent, FileRange range) {
+        int start = (int)( fileOffsetAbs + range.position()
+                - extent.firstBlock * storage.blockSize() );
+
+        ByteBuffer part = data.duplicate();
+        part.limit( start + range.length() );
+        part.position( start );
+        return part;
+    }
+
+    long doReadRanges (List<FileRange> ranges, Deadline deadline)
+    throws IOException {
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "readRanges", TraceRecorder.CAT_FILE
+            ).arg( "ranges", ranges.size() );
+        try {
+            long total = 0;
+            for (RangePlan.Extent extent : planRanges( ranges, true )) {
+                ByteBuffer data = ByteBuffer.allocate(
+                        extent.blocks * storage.blockSize() );
+                storage.readBlocks( data,
+                        extent.firstBlock, extent.blocks, deadline );
+
+                for (Integer idx : extent.members) {
+                    FileRange range = ranges.get( idx );
+                    range.buffer().put( slice( data, extent, range ));
+                    total += range.length();
+                }
             }
 
-            if (log.isTraceEnabled()) {
-                log.trace( String.format(
-                        "cluster %03d num=0x%03x offs=0x%03x value=0x%03x",
-                        idx, cluster, offset, value
-                    ));
+            return total;
+        } finally {
+            span.end();
+        }
+    }
+
+    long doWriteRanges (List<FileRange> ranges, Deadline deadline)
+    throws IOException {
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "writeRanges", TraceRecorder.CAT_FILE
+            ).arg( "ranges", ranges.size() );
+        try {
+            long total = 0;
+            for (RangePlan.Extent extent : planRanges( ranges, false )) {
+                ByteBuffer data = ByteBuffer.allocate(
+                        extent.blocks * storage.blockSize() );
+
+                if (!extent.covered) {
+                    metrics.readModifyWrites.increment();
+                    storage.readBlocks( data,
+                            extent.firstBlock, extent.blocks, deadline );
+                }
+
+                for (Integer idx : extent.members) {
+                    FileRange range = ranges.get( idx );
+                    ByteBuffer src = range.buffer().duplicate();
+                    src.limit( src.position() + range.length() );
+                    slice( data, extent, range ).put( src );
+                }
+
+                data.clear();
+                storage.writeBlocks( data,
+                        extent.firstBlock, extent.blocks, deadline );
+
+                for (Integer idx : extent.members) {
+                    FileRange range = ranges.get( idx );
+                    ByteBuffer src = range.buffer();
+                    ByteBuffer written = src.duplicate();
+                    written.limit( written.position() + range.length() );
+
+                    written( range.position(), written );
+                    src.position( src.position() + range.length() );
+                    total += range.length();
+                }
             }
 
-            if (value >= 0xFF8 && value <= 0xFFF) {
-                log.trace( "last cluster" );
-                lastCluster = true;
-                break;
-            } else if (value >= 2 && value < clusterCount + 2) {
-                if (value != cluster + 1) {
-                    throw new IOException( String.format(
-                            "discontiguity at cluster 0x%03x (to 0x%03x);"
-                                + " discontiguous files are not supported",
-                            cluster, value
-                        ));
+            return total;
+        } finally {
+            span.end();
+        }
+    }
+
+    /** Copies part of the file to another channel.
+     *
+     * When the target is a {@link FileChannel} open for reading and
+     * writing, the destination region is memory-mapped a window at a time
+     * and each READ's data is copied straight into the mapping, so the
+     * data is copied once on its way to the page cache and heap use
+     * doesn't grow with the transfer size. Other targets fall back to
+     * staging the whole region on the heap.
+     */
+    @Override
+    public long transferTo (long position,
+            long count, WritableByteChannel target)
+    throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+
+        if (position < 0 || count < 0)
+            throw new IllegalArgumentException(
+                    "position and count may not be negative" );
+
+        if (!(target instanceof FileChannel))
+            return super.transferTo( position, count, target );
+
+        FileChannel file = (FileChannel) target;
+        count = Math.max( 0, Math.min( count, fileLength - position ));
+
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "transferTo", TraceRecorder.CAT_FILE
+            ).arg( "position", position ).arg( "count", count );
+        try {
+            long start = file.position();
+            ByteBuffer staging = ByteBuffer.allocate(
+                    storage.transferBlocks( true ) * storage.blockSize() );
+
+            long total = 0;
+            while (total < count) {
+                MappedByteBuffer window;
+                try {
+                    window = file.map( FileChannel.MapMode.READ_WRITE,
+                            start + total, Math.min( MAP_WINDOW, count - total ));
+                } catch (NonReadableChannelException caught) {
+                    if (total > 0) throw caught;
+                    return super.transferTo( position, count, target );
+                }
+
+                while (window.hasRemaining()) {
+                    staging.clear();
+                    staging.limit( Math.min( staging.capacity(), window.remaining() ));
+
+                    int read = scheduler.read( staging, position + total,
+                            priority, defaultDeadline() );
+                    if (read <= 0)
+                        throw new IOException( "unexpected end of file" );
+
+                    staging.flip();
+                    putSparse( window, staging, start + total );
+                    total += read;
                 }
+            }
+
+            file.position( start + total );
+            return total;
+        } finally {
+            span.end();
+        }
+    }
 
-                cluster = value;
+    /** Copies data from another channel into the file.
+     *
+     * When the source is a {@link FileChannel}, it is read through a
+     * memory mapping a window at a time, mirroring {@link #transferTo},
+     * and each window is written by one task on the I/O thread; see
+     * {@link #writeWindow} for how filler blocks are skipped. Other
+     * sources fall back to staging the whole region on the heap.
+     */
+    @Override
+    public long transferFrom (ReadableByteChannel src,
+            long position, long count)
+    throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+
+        if (position < 0 || count < 0)
+            throw new IllegalArgumentException(
+                    "position and count may not be negative" );
+
+        if (!(src instanceof FileChannel))
+            return super.transferFrom( src, position, count );
+
+        FileChannel file = (FileChannel) src;
+        long start = file.position();
+        count = Math.max( 0, Math.min( count,
+                    Math.min( fileLength - position, file.size() - start )));
+
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "transferFrom", TraceRecorder.CAT_FILE
+            ).arg( "position", position ).arg( "count", count );
+        try {
+            long total = 0;
+            while (total < count) {
+                final MappedByteBuffer window = file.map( FileChannel.MapMode.READ_ONLY,
+                        start + total, Math.min( MAP_WINDOW, count - total ));
+                final long at = position + total;
+                final Deadline deadline = defaultDeadline();
+
+                scheduler.call( new IoScheduler.Task<Void>() {
+                        @Override
+                        public Void run()
+                        throws IOException {
+                            writeWindow( window, at, deadline );
+                            return null;
+                        }
+                    }, priority );
+                total += window.capacity();
+            }
+
+            file.position( start + total );
+            return total;
+        } finally {
+            span.end();
+        }
+    }
+
+    /** Copies data into a mapped window of a local file at an offset in
+     * that file, leaving alone whole allocation units which are zero in
+     * both so that holes in a sparse file stay holes. Reading a hole
+     * through a mapping doesn't allocate it.
+     */
+    private void putSparse (ByteBuffer window, ByteBuffer data, long offset) {
+        int blockSize = SPARSE_UNIT;
+        long position = offset;
+        while (data.hasRemaining()) {
+            int length = (int) Math.min( data.remaining(),
+                    blockSize - position % blockSize );
+
+            if (length == blockSize
+                    && Filler.uniform( data, data.position(), length ) == 0
+                    && Filler.uniform( window, window.position(), length ) == 0) {
+                metrics.sparseBlocks.increment();
+                data.position( data.position() + length );
+                window.position( window.position() + length );
             } else {
-                throw new IOException( String.format(
-                        "invalid value for cluster %03x: %03x",
-                        cluster, value
-                    ));
+                ByteBuffer part = data.duplicate();
+                part.limit( part.position() + length );
+                window.put( part );
+                data.position( part.limit() );
+            }
+
+            position += length;
+        }
+    }
+
+    /** Writes a mapped window of a local file at a file position; only
+     * called on the I/O thread.
+     *
+     * Runs of whole filler blocks at least {@link #MIN_SKIP_BLOCKS} long
+     * are fetched from the device first, all of them with one planned
+     * read, and blocks the device already holds are left out of the
+     * write. Nothing else is read back.
+     */
+    private void writeWindow (ByteBuffer data, long position, Deadline deadline)
+    throws IOException {
+        int blockSize = storage.blockSize();
+        int base = data.position();
+        int lead = (int)( (blockSize - position % blockSize) % blockSize );
+        int blocks = Math.max( 0, (data.remaining() - lead) / blockSize );
+
+        List<FileRange> probes = new ArrayList<FileRange>();
+        List<Integer> values = new ArrayList<Integer>();
+        int run = 0;
+        int value = -1;
+        for (int idx = 0; idx <= blocks; idx++) {
+            int next = idx < blocks
+                ? Filler.uniform( data, base + lead + idx * blockSize, blockSize )
+                : -1;
+            if (next >= 0 && next == value) continue;
+
+            if (value >= 0 && idx - run >= MIN_SKIP_BLOCKS) {
+                probes.add( new FileRange( position + lead + run * blockSize,
+                            ByteBuffer.allocate( (idx - run) * blockSize )));
+                values.add( value );
             }
+            run = idx;
+            value = next;
         }
 
-        if (!lastCluster) throw new IOException(
-                "did not reach last cluster of file" );
+        BitSet skip = new BitSet( blocks );
+        if (!probes.isEmpty()) {
+            doReadRanges( probes, deadline );
+
+            for (int p = 0; p < probes.size(); p++) {
+                FileRange probe = probes.get( p );
+                int first = (int)( probe.position() - position - lead ) / blockSize;
+                for (int idx = 0; idx < probe.length() / blockSize; idx++) {
+                    if (Filler.uniform( probe.buffer(), idx * blockSize, blockSize )
+                            == values.get( p )) {
+                        skip.set( first + idx );
+                    }
+                }
+            }
+            metrics.skippedFillerBlocks.add( skip.cardinality() );
+        }
+
+        List<FileRange> ranges = new ArrayList<FileRange>();
+        int from = base;
+        for (int idx = skip.nextSetBit( 0 ); idx >= 0; idx = skip.nextSetBit( idx + 1 )) {
+            int at = base + lead + idx * blockSize;
+            if (at > from)
+                ranges.add( range( data, from, at, position - base ));
+            from = at + blockSize;
+        }
+        if (from < data.limit())
+            ranges.add( range( data, from, data.limit(), position - base ));
+
+        if (!ranges.isEmpty()) doWriteRanges( ranges, deadline );
+        data.position( data.limit() );
     }
 
-    private static String readString (ByteBuffer buffer, int offset, int length) {
-        byte[] array = new byte[ length ];
-        buffer.position( offset );
-        buffer.get( array );
+    private static FileRange range (ByteBuffer data,
+            int start, int end, long offset) {
+        ByteBuffer part = data.duplicate();
+        part.limit( end );
+        part.position( start );
+        return new FileRange( offset + start, part );
+    }
 
-        try {
-            return new String( array, 0, length,  "US-ASCII" );
-        } catch (UnsupportedEncodingException caught) {
-            // US-ASCII is a required encoding
-            throw new RuntimeException( caught );
+    /** Returns a snapshot of the last published version of the file.
+     *
+     * The first call reads the whole file into memory; after that,
+     * snapshots are served without touching the device. Writes through
+     * this channel, its asynchronous views and its streams become
+     * visible to new snapshots when {@link #force} is called. Each
+     * snapshot must be closed so that superseded versions can be
+     * reclaimed.
+     */
+    public FileSnapshot snapshot()
+    throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+
+        if (!versions.isLoaded()) {
+            scheduler.call( new IoScheduler.Task<Void>() {
+                    @Override
+                    public Void run()
+                    throws IOException {
+                        if (!versions.isLoaded()) loadVersions();
+                        return null;
+                    }
+                }, priority );
         }
+
+        return new FileSnapshot( versions, versions.pin(),
+                storage.blockSize(), fileLength );
     }
 
-    @Override
-    public long size() {
-        return fileLength;
+    private void loadVersions()
+    throws IOException {
+        ByteBuffer image = ByteBuffer.allocate( fileLength );
+        while (image.hasRemaining()) {
+            if (doRead( image, image.position(), defaultDeadline() ) <= 0)
+                throw new IOException( "unexpected end of file loading snapshot" );
+        }
+
+        versions.load( image.array() );
     }
 
-    public int blockSize() {
-        return storage.blockSize();
+    /** Updates the in-memory copies of the file after a write; only
+     * called on the I/O thread. Every path which writes to the file must
+     * call this, or snapshots and mappings would serve stale data.
+     */
+    private void written (long position, ByteBuffer data) {
+        versions.written( position, data );
+
+        ShadowImage image = shadow;
+        if (image != null && !writingBack)
+            image.written( position, data );
     }
 
+    /** Maps a region of the file into memory.
+     *
+     * The mapping is backed by a local shadow copy of the file, which the
+     * first call fills with one sequential read; after that, access
+     * through mappings runs at memory speed. Changes to
+     * {@link FileChannel.MapMode#READ_WRITE READ_WRITE} mappings reach
+     * the device when {@link #force} is called or the channel is
+     * closed, while writes through
+     * this channel show up in existing mappings straight away. The file
+     * can't grow, so the region must lie within it.
+     */
     @Override
-    protected synchronized int implRead (ByteBuffer dst, long position)
+    public MappedByteBuffer map (FileChannel.MapMode mode,
+            long position, long size)
     throws IOException {
-        long offset = position + fileOffsetAbs;
-        long count = Math.min( dst.remaining(), fileLength - position );
+        if (!isOpen())
+            throw new ClosedChannelException();
+
+        if (position < 0 || size < 0)
+            throw new IllegalArgumentException(
+                    "position and size may not be negative" );
+
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException( "size exceeds Integer.MAX_VALUE" );
+
+        if (position + size > fileLength)
+            throw new IOException( "can't map past end of file" );
+
+        if (shadow == null) {
+            scheduler.call( new IoScheduler.Task<Void>() {
+                    @Override
+                    public Void run()
+                    throws IOException {
+                        if (shadow == null) shadow = loadShadow();
+                        return null;
+                    }
+                }, priority );
+        }
 
-        if (log.isTraceEnabled()) {
-            log.trace( String.format(
-                    "read requested offset=%d count=%d volOffset=%d volCount=%d",
-                    position, dst.remaining(), offset, count
-                ));
+        return shadow.map( mode, position, size );
+    }
+
+    private ShadowImage loadShadow()
+    throws IOException {
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "loadShadow", TraceRecorder.CAT_FILE
+            ).arg( "count", fileLength );
+
+        ShadowImage image = new ShadowImage( fileLength, storage.blockSize() );
+        try {
+            ByteBuffer staging = ByteBuffer.allocate(
+                    storage.transferBlocks( true ) * storage.blockSize() );
+
+            long position = 0;
+            while (position < fileLength) {
+                staging.clear();
+                int read = doRead( staging, position, defaultDeadline() );
+                if (read <= 0)
+                    throw new IOException( "unexpected end of file loading shadow" );
+
+                staging.flip();
+                image.written( position, staging );
+                position += read;
+            }
+
+            return image;
+        } catch (IOException | RuntimeException caught) {
+            image.close();
+            throw caught;
+        } finally {
+            span.end();
         }
+    }
 
-        return storage.read( dst, offset, count );
+    /** Writes changes made through mappings back to the device. */
+    private void writeBack()
+    throws IOException {
+        ShadowImage image = shadow;
+        if (image == null) return;
+
+        List<FileRange> dirty = image.dirtyRanges();
+        if (dirty.isEmpty()) return;
+
+        if (log.isDebugEnabled())
+            log.debug( "writing back " + dirty.size() + " mapped ranges" );
+
+        writingBack = true;
+        try {
+            doWriteRanges( dirty, defaultDeadline() );
+        } finally {
+            writingBack = false;
+        }
+
+        for (FileRange range : dirty) {
+            image.synced( range.position(),
+                    ByteBuffer.wrap( range.buffer().array() ));
+        }
     }
 
+    /** Writes changes made through mappings to the device, and publishes
+     * all writes made so far to new snapshots.
+     *
+     * Channel writes go to the device as they are made, so for them
+     * this only makes them visible to {@link #snapshot()}.
+     */
     @Override
-    protected int implWrite (ByteBuffer src, long position)
+    public void force (boolean metaData)
     throws IOException {
-        long offset = position + fileOffsetAbs;
-        long count = Math.min( src.remaining(), fileLength - position );
+        if (!isOpen())
+            throw new ClosedChannelException();
 
-        if (log.isTraceEnabled()) {
-            log.trace( String.format(
-                    "write requested offset=%d count=%d volOffset=%d volCount=%d",
-                    position, src.remaining(), offset, count
-                ));
-        }
+        if (!versions.isLoaded() && shadow == null) return;
 
-        return storage.write( src, offset, count );
+        scheduler.call( new IoScheduler.Task<Long>() {
+                @Override
+                public Long run()
+                throws IOException {
+                    writeBack();
+                    return versions.publish();
+                }
+            }, priority );
     }
 
     @Override
     protected void implCloseChannel()
     throws IOException {
-        storage.close();
+        // changes made through mappings are kept, as a local file's would
+        // be; if that fails the device is still released, then it's thrown
+        IOException failed = null;
+        if (shadow != null) {
+            try {
+                scheduler.call( new IoScheduler.Task<Void>() {
+                        @Override
+                        public Void run()
+                        throws IOException {
+                            writeBack();
+                            return null;
+                        }
+                    }, priority );
+            } catch (IOException caught) {
+                log.warn( "unable to write back mapped changes on close", caught );
+                failed = caught;
+            }
+        }
+
+        boolean idle = scheduler.shutdown();
+
+        metrics.unregister();
+        storage.setProgress( null );
+        try {
+            // a device with a command still in flight can't be handed on
+            if (idle) pool.checkin( volume );
+            else volume.close();
+        } finally {
+            if (shadow != null) shadow.close();
+        }
+
+        if (failed != null) throw failed;
     }
 }
@@ -0,0 +1,127 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Fixed-bucket latency histogram safe for concurrent recording.
+ *
+ * The bucket bounds are the same for every histogram so that they can be
+ * aggregated across devices. Recording never allocates or locks; a
+ * snapshot is only as consistent as the individual adders it reads.
+ */
+public class LatencyHistogram {
+    /** Inclusive upper bounds of the buckets in microseconds.
+     * An implicit final bucket holds everything above the last bound.
+     */
+    static final long[] BOUNDS_US = {
+            50, 100, 250, 500,
+            1000, 2500, 5000,
+            10000, 25000, 50000,
+            100000, 250000, 500000,
+            1000000, 2500000, 5000000, 10000000
+        };
+
+    private final LongAdder[] buckets = new LongAdder[ BOUNDS_US.length + 1 ];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int idx = 0; idx < buckets.length; idx++)
+            buckets[ idx ] = new LongAdder();
+    }
+
+    void record (long nanos) {
+        long micros = nanos / 1000;
+
+        int idx = 0;
+        while (idx < BOUNDS_US.length && micros > BOUNDS_US[ idx ])
+            idx++;
+
+        buckets[ idx ].increment();
+        sumNanos.add( nanos );
+    }
+
+    Snapshot snapshot() {
+        long[] counts = new long[ buckets.length ];
+        for (int idx = 0; idx < buckets.length; idx++)
+            counts[ idx ] = buckets[ idx ].sum();
+
+        return new Snapshot( counts, sumNanos.sum() / 1000 );
+    }
+
+
+    /** Point-in-time copy of a histogram, suitable for export over JMX. */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long sumMicros;
+        private final long count;
+
+        @ConstructorProperties({ "bucketCounts", "sumMicros" })
+        public Snapshot (long[] bucketCounts, long sumMicros) {
+            this.counts = bucketCounts;
+            this.sumMicros = sumMicros;
+
+            long total = 0;
+            for (long value : bucketCounts) total += value;
+            this.count = total;
+        }
+
+        /** Per-bucket counts, parallel to {@link #getBucketBoundsMicros()}
+         * with one extra trailing bucket for values above the last bound.
+         */
+        public long[] getBucketCounts() {
+            return counts.clone();
+        }
+
+        public long[] getBucketBoundsMicros() {
+            return BOUNDS_US.clone();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSumMicros() {
+            return sumMicros;
+        }
+
+        public long getMeanMicros() {
+            return count == 0 ? 0 : sumMicros / count;
+        }
+
+        public long getP50Micros() {
+            return percentile( 0.50 );
+        }
+
+        public long getP99Micros() {
+            return percentile( 0.99 );
+        }
+
+        /** Upper bound of the bucket containing the given quantile,
+         * or -1 if it falls in the unbounded overflow bucket.
+         */
+        long percentile (double quantile) {
+            if (count == 0) return 0;
+
+            long target = (long) Math.ceil( count * quantile );
+            long seen = 0;
+            for (int idx = 0; idx < counts.length; idx++) {
+                seen += counts[ idx ];
+                if (seen >= target)
+                    return idx < BOUNDS_US.length ? BOUNDS_US[ idx ] : -1;
+            }
+
+            return -1;
+        }
+    }
+}
@@ -12,11 +12,16 @@
 package com.hifiremote.jpsusbraw;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.usb.UsbException;
 
@@ -32,9 +37,13 @@ import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFact
 
 class Main {
     public static void main (String[] args) {
+        started = System.nanoTime();
         (new Main()).run( args );
     }
 
+    // when main was entered, for the startup timing report
+    private static long started;
+
     @Parameter( names="--help", help=true )
     private boolean help;
 
@@ -42,11 +51,59 @@ class Main {
             description="numeric level of log output" )
     private int verbose = 0;
 
+    @Parameter( names="--metrics",
+            description="write I/O metrics in OpenMetrics format to this file" )
+    private String metricsFile;
+
+    @Parameter( names="--trace",
+            description="write a Chrome trace-event timeline to this file" )
+    private String traceFile;
+
+    @Parameter( names="--timeout",
+            description="seconds allowed for each read or write on the"
+                + " device, 0 for no limit" )
+    private int timeout = 0;
+
+    @Parameter( names="--retries",
+            description="times to reopen the device and resume a read or"
+                + " write after it fails" )
+    private int retries = 0;
+
+    @Parameter( names="--startup-timing",
+            description="report how long each phase of startup took" )
+    private boolean startupTiming;
+
+    @Parameter( names="--progress",
+            description="show transfer progress on standard error" )
+    private boolean progress;
+
+    @Parameter( names="--progress-feed",
+            description="append transfer progress as JSON lines to this file" )
+    private String progressFeed;
+
+    // delay before reopening a device after a failed transfer
+    private static final long RETRY_DELAY_MS = 2000;
+
+    // minimum time between progress reports
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    private Writer progressOut = null;
+
+    private JpsUsbRaw device = null;
+
+    private boolean reportsWritten = false;
+
     public void run (String[] args) {
         final JCommander cmd = new JCommander( this );
 
         cmd.addCommand( new CommandRead() );
         cmd.addCommand( new CommandWrite() );
+        cmd.addCommand( new CommandBench() );
+        cmd.addCommand( new CommandTune() );
+        cmd.addCommand( new CommandBackup() );
+        cmd.addCommand( new CommandRestore() );
+        cmd.addCommand( new CommandDump() );
+        cmd.addCommand( new CommandImage() );
 
         try {
             cmd.parse( args );
@@ -60,6 +117,11 @@ class Main {
             System.exit( 1 );
         }
 
+        if (startupTiming) {
+            StartupTimer.start( started );
+            StartupTimer.mark( StartupTimer.PARSED );
+        }
+
         String cmdName = cmd.getParsedCommand();
 
         if (help) {
@@ -89,11 +151,45 @@ class Main {
         }
 
         setupLogging();
+        StartupTimer.mark( StartupTimer.LOGGING );
+
+        if (traceFile != null)
+            TraceRecorder.start();
+
+        // commands end with System.exit on failure, which skips the
+        // calls below; the reports are wanted most from those runs
+        Runtime.getRuntime().addShutdownHook( new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeReports();
+                    } catch (IOException caught) {
+                        System.err.println( "error writing reports: "
+                                + caught.getMessage() );
+                    }
+                }
+            }, "jpsusbraw-reports" ));
 
         try {
             cmdImpl.cmd = cmdArgs;
-            cmdImpl.run();
+
+            TraceRecorder.Span span = TraceRecorder.begin(
+                    cmdName, TraceRecorder.CAT_CLI );
+            try {
+                cmdImpl.run();
+            } finally {
+                span.end();
+            }
+
+            writeReports();
         } catch (Exception caught) {
+            try {
+                writeReports();
+            } catch (IOException caught2) {
+                System.err.println( "error writing reports: "
+                        + caught2.getMessage() );
+            }
+
             String message = caught.getMessage();
             if (message != null) {
                 System.err.println( "error: " + message );
@@ -109,15 +205,25 @@ class Main {
     }
 
     private void setupLogging() {
+        if (verbose <= 0) {
+            // Only errors are shown, which the simple logger in log4j-api
+            // can do without starting log4j-core. Its plugin scan and
+            // configuration are most of a short command's run time.
+            defaultProperty( "log4j2.loggerContextFactory",
+                    "org.apache.logging.log4j.simple.SimpleLoggerContextFactory" );
+            defaultProperty( "org.apache.logging.log4j.simplelog.level", "ERROR" );
+            defaultProperty( "org.apache.logging.log4j.simplelog.logFile",
+                    "system.out" );
+            return;
+        }
+
         Level level;
         if (verbose >= 3) {
             level = Level.TRACE;
         } else if (verbose >= 2) {
             level = Level.DEBUG;
-        } else if (verbose >= 1) {
-            level = Level.INFO;
         } else {
-            level = Level.ERROR;
+            level = Level.INFO;
         }
 
         ConfigurationBuilder<?> builder =
@@ -143,6 +249,11 @@ class Main {
         Configurator.initialize( builder.build() );
     }
 
+    private static void defaultProperty (String name, String value) {
+        if (System.getProperty( name ) == null)
+            System.setProperty( name, value );
+    }
+
 
 
     private abstract class Command {
@@ -203,16 +314,10 @@ class Main {
 
             RandomAccessFile stream = new RandomAccessFile( file, "rw" );
             FileChannel channel = stream.getChannel();
-            channel.truncate( 0 );
-
 
-            long offset = 0;
-            long length = settings.size();
-            while (length > 0) {
-                long count = channel.transferFrom( settings, offset, length );
-                offset += count;
-                length -= count;
-            }
+            ResumableTransfer transfer =
+                ResumableTransfer.fromDevice( settings, file, channel );
+            settings = runTransfer( transfer, settings );
 
 
             if (verify) {
@@ -279,13 +384,9 @@ class Main {
                 System.exit( 3 );
             }
 
-            long offset = 0;
-            long length = channel.size();
-            while (length > 0) {
-                long count = channel.transferTo( offset, length, settings );
-                offset += count;
-                length -= count;
-            }
+            ResumableTransfer transfer =
+                ResumableTransfer.toDevice( settings, channel );
+            settings = runTransfer( transfer, settings );
 
 
             if (verify) {
@@ -301,18 +402,512 @@ class Main {
 
 
 
+    @Parameters( commandNames="backup",
+        commandDescription="store a deduplicated snapshot of the settings" )
+    private class CommandBackup
+    extends Command {
+        @Parameter( names="--store",
+                description="directory of the snapshot store" )
+        private String store;
+
+        @Parameter( names={ "-z", "--compress" },
+                description="deflate newly stored chunks" )
+        private boolean compress;
+
+        public void run()
+        throws Exception {
+            JpsUsbRaw settings = openDefaultDevice();
+            if (settings == null) {
+                System.err.println( "no supported device found" );
+                System.exit( 3 );
+            }
+
+            BackupStore backups = new BackupStore( store != null
+                    ? new File( store ) : BackupStore.defaultRoot(), compress );
+            settings.startProgress( settings.size() );
+            BackupStore.Manifest manifest = backups.backup( settings );
+            settings.finishProgress();
+
+            System.out.println( "stored snapshot " + manifest.name + ": "
+                    + manifest.hashes.size() + " chunks, "
+                    + manifest.newChunks + " new ("
+                    + manifest.storedBytes + " bytes)" );
+
+            settings.close();
+        }
+    }
+
+
+
+    @Parameters( commandNames="restore",
+        commandDescription="write a stored snapshot to the device" )
+    private class CommandRestore
+    extends Command {
+        @Parameter( description="snapshot, or a device identity for its"
+                + " latest snapshot; defaults to this device's latest",
+                arity=1 )
+        private List<String> names;
+
+        @Parameter( names="--store",
+                description="directory of the snapshot store" )
+        private String store;
+
+        @Parameter( names={ "-c", "--check", "--verify" },
+                description="after writing, read back and verify the contents" )
+        private boolean verify;
+
+        public void run()
+        throws Exception {
+            JpsUsbRaw settings = openDefaultDevice();
+            if (settings == null) {
+                System.err.println( "no supported device found" );
+                System.exit( 3 );
+            }
+
+            BackupStore backups = new BackupStore( store != null
+                    ? new File( store ) : BackupStore.defaultRoot(), false );
+            BackupStore.Manifest manifest = backups.load(
+                    names != null && !names.isEmpty()
+                        ? names.get( 0 ) : settings.identity() );
+
+            if (!manifest.name.startsWith( settings.identity() + "/" )) {
+                System.out.println( "note: snapshot " + manifest.name
+                        + " was taken from another device" );
+            }
+
+            settings.startProgress( verify ? 2 * manifest.size : manifest.size );
+            int mismatches = backups.restore( manifest, settings, verify );
+            settings.finishProgress();
+            System.out.println( "restored snapshot " + manifest.name );
+
+            if (mismatches > 0) {
+                System.err.println( "verification failed: "
+                        + mismatches + " chunks differ" );
+                System.exit( 5 );
+            } else if (verify) {
+                System.out.println( "verification completed successfully" );
+            }
+
+            settings.close();
+        }
+    }
+
+
+
+    @Parameters( commandNames="dump",
+        commandDescription="write a hex dump of the settings, or of an"
+            + " image file, to standard output" )
+    private class CommandDump
+    extends Command {
+        // bytes read and formatted at a time; multiples of a dump line
+        private static final int CHUNK = 64 * 1024;
+        private static final int PARALLEL_CHUNK = 1024 * 1024;
+
+        @Parameter( description="image file to dump instead of the device",
+                arity=1 )
+        private List<String> files;
+
+        @Parameter( names="--offset", description="first byte to dump" )
+        private long offset = 0;
+
+        @Parameter( names="--length",
+                description="number of bytes to dump, -1 for the rest" )
+        private long length = -1;
+
+        @Parameter( names={ "-j", "--parallel" },
+                description="format large ranges on all processors" )
+        private boolean parallel;
+
+        public void run()
+        throws Exception {
+            FileChannel source;
+            if (files != null && !files.isEmpty()) {
+                File file = new File( files.get( 0 ));
+                if (!file.isFile()) {
+                    System.err.println( "file '" + file + "' does not exist" );
+                    System.exit( 3 );
+                }
+
+                source = new RandomAccessFile( file, "r" ).getChannel();
+            } else {
+                source = openDefaultDevice();
+                if (source == null) {
+                    System.err.println( "no supported device found" );
+                    System.exit( 3 );
+                }
+            }
+
+            long size = source.size();
+            if (offset < 0 || offset > size) {
+                System.err.println( "offset must be between 0 and " + size );
+                System.exit( 1 );
+            }
+            long end = length < 0 ? size : Math.min( size, offset + length );
+
+            int chunk = parallel ? PARALLEL_CHUNK : CHUNK;
+            ByteBuffer data = ByteBuffer.allocate( chunk );
+            ByteBuffer text = ByteBuffer.allocate(
+                    chunk / HexDump.LINE_BYTES * HexDump.LINE_CHARS );
+
+            // write around System.out's PrintStream; we only emit the dump
+            FileChannel out = new FileOutputStream( FileDescriptor.out ).getChannel();
+
+            TraceRecorder.Span span = TraceRecorder.begin(
+                    "dump", TraceRecorder.CAT_CLI );
+            try {
+                long position = offset;
+                while (position < end) {
+                    data.clear();
+                    data.limit( (int) Math.min( chunk, end - position ));
+                    while (data.hasRemaining()) {
+                        if (source.read( data, position + data.position() ) < 0)
+                            break;
+                    }
+                    data.flip();
+                    if (!data.hasRemaining()) break;
+                    StartupTimer.mark( StartupTimer.FIRST_BYTE );
+
+                    int count = data.limit();
+                    text.clear();
+                    if (parallel) {
+                        HexDump.dumpParallel( data, position, text );
+                    } else {
+                        HexDump.dump( data, position, text );
+                    }
+
+                    text.flip();
+                    while (text.hasRemaining()) out.write( text );
+                    position += count;
+                }
+            } finally {
+                span.end();
+            }
+
+            source.close();
+        }
+    }
+
+
+
+    @Parameters( commandNames="image",
+        commandDescription="copy every block of a USB mass storage device,"
+            + " which need not be a remote, to a file" )
+    private class CommandImage
+    extends Command {
+        // bytes read at a time; the driver splits them into commands
+        private static final int CHUNK = 4 * 1024 * 1024;
+
+        @Parameter( description="file", arity=1, required=true )
+        private List<String> files;
+
+        @Parameter( names={ "-d", "--device" },
+                description="which mass storage device to copy, counting"
+                    + " from 0 in the order they are listed" )
+        private int index = 0;
+
+        @Parameter( names={ "-o", "--overwrite" },
+                description="write the output file even if it exists" )
+        private boolean overwrite;
+
+        @Parameter( names="--force",
+                description="take the device from the operating system's"
+                    + " driver if it has claimed it" )
+        private boolean force;
+
+        @Parameter( names="--long-commands",
+                description="send every read as READ (16), even where"
+                    + " READ (10) would do" )
+        private boolean longCommands;
+
+        public void run()
+        throws Exception {
+            File file = new File( files.get( 0 ) );
+            if (file.exists() && !overwrite) {
+                System.err.println( "file '" + file
+                        + "' exists, refusing to overwrite" );
+                System.exit( 3 );
+            }
+
+            List<DevicePath> paths = RawBlockDevice.findDevices();
+            for (int idx = 0; idx < paths.size(); idx++)
+                System.out.println( idx + ": " + paths.get( idx ));
+
+            if (index < 0 || index >= paths.size()) {
+                System.err.println( "no mass storage device " + index );
+                System.exit( 3 );
+            }
+
+            RawBlockDevice source = RawBlockDevice.open(
+                    paths.get( index ), force );
+            source.setLongCommands( longCommands );
+            System.out.println( "copying " + source.blockCount() + " blocks of "
+                    + source.blockSize() + " bytes from " + source.model() );
+
+            FileChannel out = new RandomAccessFile( file, "rw" ).getChannel();
+            out.truncate( 0 );
+
+            TraceRecorder.Span span = TraceRecorder.begin(
+                    "image", TraceRecorder.CAT_CLI );
+            try {
+                ByteBuffer data = ByteBuffer.allocateDirect( CHUNK );
+                long position = 0;
+                while (true) {
+                    data.clear();
+                    int count = source.read( data, position );
+                    if (count < 0) break;
+
+                    data.flip();
+                    while (data.hasRemaining())
+                        out.write( data, position + data.position() );
+                    position += count;
+                }
+            } finally {
+                span.end();
+                out.close();
+                source.close();
+            }
+        }
+    }
+
+
+
+    @Parameters( commandNames="bench",
+        commandDescription="measure throughput at each transfer size" )
+    private class CommandBench
+    extends Command {
+        @Parameter( names={ "-w", "--write" },
+                description="also measure writes, using free space on the"
+                    + " device so that no file is changed" )
+        protected boolean write;
+
+        @Parameter( names={ "-p", "--passes" },
+                description="number of sweeps over the file per size" )
+        protected int passes = 2;
+
+        public void run()
+        throws Exception {
+            JpsUsbRaw settings = openDefaultDevice();
+            if (settings == null) {
+                System.err.println( "no supported device found" );
+                System.exit( 3 );
+            }
+
+            System.out.println( "device " + settings.model() );
+            for (TransferBenchmark.Result result
+                    : settings.benchmark( write, passes )) {
+                System.out.println( result );
+            }
+
+            settings.close();
+        }
+    }
+
+
+
+    @Parameters( commandNames="tune",
+        commandDescription="benchmark the device and save the best"
+            + " transfer sizes for its model" )
+    private class CommandTune
+    extends CommandBench {
+        public void run()
+        throws Exception {
+            JpsUsbRaw settings = openDefaultDevice();
+            if (settings == null) {
+                System.err.println( "no supported device found" );
+                System.exit( 3 );
+            }
+
+            TransferProfile profile = settings.tune( write, passes );
+            System.out.println( "saved profile for " + settings.model()
+                    + ": " + profile );
+
+            settings.close();
+        }
+    }
+
+
+
+    /** Runs a journaled transfer, reopening the device and resuming
+     * after failures up to the {@code --retries} limit. Returns the
+     * device the transfer finished on.
+     */
+    private JpsUsbRaw runTransfer (ResumableTransfer transfer,
+            JpsUsbRaw settings)
+    throws IOException, UsbException {
+        if (transfer.resumedChunks() > 0) {
+            System.out.println( "resuming an interrupted transfer, "
+                    + transfer.resumedChunks() + " chunks already copied" );
+        }
+
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "transfer", TraceRecorder.CAT_CLI );
+        try {
+            int attempt = 0;
+            while (true) {
+                try {
+                    if (settings == null) {
+                        settings = openDefaultDevice();
+                        if (settings == null)
+                            throw new IOException( "no supported device found" );
+                    }
+
+                    settings.startProgress( transfer.pendingBytes() );
+                    transfer.run( settings );
+                    settings.finishProgress();
+                    break;
+                } catch (IOException caught) {
+                    if (++attempt > retries) {
+                        transfer.suspend();
+                        throw caught;
+                    }
+
+                    System.err.println( "transfer interrupted: "
+                            + caught.getMessage() + "; resuming..." );
+
+                    if (settings != null) {
+                        try {
+                            settings.close();
+                        } catch (IOException ignored) {
+                            // the device is most likely gone already
+                        }
+                        settings = null;
+                    }
+
+                    try {
+                        Thread.sleep( RETRY_DELAY_MS );
+                    } catch (InterruptedException interrupted) {
+                        transfer.suspend();
+                        Thread.currentThread().interrupt();
+                        throw caught;
+                    }
+                }
+            }
+
+            int redone = transfer.verifyResumed( settings );
+            if (redone > 0) {
+                System.out.println( redone + " previously copied chunks"
+                        + " had changed and were copied again" );
+            }
+        } finally {
+            span.end();
+        }
+
+        return settings;
+    }
+
     private JpsUsbRaw openDefaultDevice()
     throws IOException, UsbException {
-        List<DevicePath> devices = JpsUsbRaw.getDevices();
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "find devices", TraceRecorder.CAT_CLI );
+        List<DevicePath> devices;
+        try {
+            devices = JpsUsbRaw.getDevices();
+        } finally {
+            span.end();
+        }
+
         if (devices.size() < 1) {
             return null;
         }
 
-        return JpsUsbRaw.open( devices.get( 0 ) );
+        device = JpsUsbRaw.open( devices.get( 0 ) );
+        device.setTimeout( timeout, TimeUnit.SECONDS );
+        StartupTimer.mark( StartupTimer.DEVICE );
+
+        ProgressListener listener = progressListener( device );
+        if (listener != null) {
+            device.setProgressListener( listener,
+                    PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS );
+        }
+
+        return device;
+    }
+
+    /** Returns the listener for the progress options, or null if none
+     * were given.
+     */
+    private ProgressListener progressListener (JpsUsbRaw settings)
+    throws IOException {
+        final ProgressListener console = progress ? new ConsoleProgress() : null;
+
+        final ProgressListener feed;
+        if (progressFeed != null) {
+            // kept open across reopened devices, closed with the reports
+            if (progressOut == null) {
+                progressOut = new OutputStreamWriter(
+                        new FileOutputStream( progressFeed, true ), "UTF-8" );
+            }
+            feed = new ProgressFeed( progressOut, settings.identity() );
+        } else {
+            feed = null;
+        }
+
+        if (console == null || feed == null)
+            return console != null ? console : feed;
+
+        return new ProgressListener() {
+            @Override
+            public void progress (Progress progress) {
+                console.progress( progress );
+                feed.progress( progress );
+            }
+        };
+    }
+
+    /** Writes the requested reports, once; later calls do nothing. */
+    private synchronized void writeReports()
+    throws IOException {
+        if (reportsWritten) return;
+        reportsWritten = true;
+
+        StartupTimer.report( System.err );
+
+        if (progressOut != null) {
+            progressOut.close();
+            progressOut = null;
+        }
+
+        if (metricsFile != null && device != null) {
+            Writer out = new OutputStreamWriter(
+                    new FileOutputStream( metricsFile ), "UTF-8" );
+            try {
+                device.metrics().writeOpenMetrics( out );
+            } finally {
+                out.close();
+            }
+        }
+
+        TraceRecorder recorder = TraceRecorder.stop();
+        if (traceFile != null && recorder != null) {
+            Writer out = new OutputStreamWriter(
+                    new FileOutputStream( traceFile ), "UTF-8" );
+            try {
+                recorder.writeJson( out );
+            } finally {
+                out.close();
+            }
+        }
     }
 
     private void verify (FileChannel chanExpected,
             FileChannel chanActual, int blockSize)
+    throws IOException {
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "verify", TraceRecorder.CAT_CLI );
+
+        // nobody is waiting on verification, so let other work go first
+        IoPriority before = device.getPriority();
+        device.setPriority( IoPriority.BACKGROUND );
+        try {
+            verifyContents( chanExpected, chanActual, blockSize );
+        } finally {
+            device.setPriority( before );
+            span.end();
+        }
+    }
+
+    private void verifyContents (FileChannel chanExpected,
+            FileChannel chanActual, int blockSize)
     throws IOException {
         long completed = 0;
 
@@ -355,4 +950,40 @@ class Main {
             completed += expected.limit();
         }
     }
+
+
+
+    /** Draws a one-line progress display on standard error. */
+    private static class ConsoleProgress
+    implements ProgressListener {
+        @Override
+        public void progress (Progress progress) {
+            StringBuilder line = new StringBuilder( "\r" );
+            if (progress.fraction() >= 0) {
+                line.append( String.format( "%5.1f%%  ",
+                            progress.fraction() * 100 ));
+            }
+
+            line.append( String.format( "%.1f", progress.bytes() / 1024.0 ));
+            if (progress.totalBytes() >= 0) {
+                line.append( String.format( "/%.1f",
+                            progress.totalBytes() / 1024.0 ));
+            }
+            line.append( String.format( " KiB  %.1f KiB/s  avg %.1f KiB/s",
+                        progress.bytesPerSecond() / 1024,
+                        progress.averageBytesPerSecond() / 1024 ));
+
+            long eta = progress.eta( TimeUnit.SECONDS );
+            if (!progress.isFinished() && eta >= 0) {
+                line.append( String.format( "  ETA %d:%02d", eta / 60, eta % 60 ));
+            }
+
+            // clear whatever is left of a longer previous line
+            line.append( "\033[K" );
+            if (progress.isFinished()) line.append( '\n' );
+
+            System.err.print( line );
+            System.err.flush();
+        }
+    }
 }
@@ -0,0 +1,376 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.usb.UsbDevice;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** A claimed device with its settings file located: the USB Mass
+ * Storage and SCSI layers, and the partition and file found by mounting
+ * its FAT volume.
+ *
+ * This is the part of an open device which is expensive to set up, so
+ * {@link VolumePool} keeps it alive between channels.
+ */
+class MountedVolume {
+    private static final Logger log = LogManager.getLogger();
+
+    /** Blocks at the start of the partition which hold its boot sector,
+     * FATs and root directory.
+     */
+    private static final int SYSTEM_BLOCKS = 16;
+
+    /** Blocks each model's mounts so far have needed to read, by model
+     * key; kept for the life of the process only.
+     */
+    private static final ConcurrentMap<String, Integer> layouts =
+        new ConcurrentHashMap<String, Integer>();
+
+    final DevicePath path;
+    final UsbDevice device;
+    final DeviceMetrics metrics;
+    final ScsiDriver storage;
+    final int partOffset, partLength;
+    final int fileOffset, fileLength;
+    final long fileOffsetAbs;
+    final int volumeId;
+
+    /** The longest run of free clusters, as an absolute block range; its
+     * length is zero if the volume is full.
+     */
+    final long scratchBlock;
+    final int scratchBlocks;
+
+    /** Claims the device and reads its partition table and file system. */
+    MountedVolume (UsbDevice device, DevicePath path)
+    throws IOException {
+        this.path = path;
+        this.device = device;
+
+        metrics = new DeviceMetrics( path.toString() );
+        storage = new ScsiDriver(
+                new UsbMassStorageDriver( device, true, metrics ),
+                metrics
+            );
+
+        // read the partition table, and the FAT system area with it if
+        // the partition starts close enough; see DeviceQuirks.mountBlocks.
+        // Once a model has been mounted its real layout is known, and
+        // that is read instead unless the quirk asks for the MBR alone.
+        int blockSize = storage.blockSize();
+        String modelKey = storage.model().key();
+        int mountBlocks = storage.quirks().mountBlocks();
+        Integer learned = layouts.get( modelKey );
+        if (mountBlocks > 1 && learned != null) mountBlocks = learned;
+
+        int headBlocks = (int) Math.min( storage.blockCount(), Math.min(
+                    mountBlocks, storage.quirks().maxTransferBlocks() ));
+
+        if (log.isDebugEnabled())
+            log.debug( "reading partition table in " + headBlocks + " blocks" );
+
+        ByteBuffer mbr = ByteBuffer.allocate( headBlocks * blockSize );
+        try {
+            storage.rawRead( mbr, 0, headBlocks );
+        } catch (IOException caught) {
+            if (headBlocks == 1) throw caught;
+
+            log.debug( "reading mount blocks failed, reading MBR alone", caught );
+            headBlocks = 1;
+            mbr = ByteBuffer.allocate( blockSize );
+            storage.rawRead( mbr, 0, 1 );
+        }
+        mbr.order( ByteOrder.LITTLE_ENDIAN );
+
+        short signature = mbr.getShort( 0x1FE );
+        if (signature != (short) 0xAA55) {
+            throw new IOException( String.format(
+                        "invalid MBR signature 0x%04X", signature ));
+        }
+
+        byte partType = mbr.get( 0x1BE + 0x4 );
+        if (partType != (byte) 0x01) {
+            throw new IOException( String.format(
+                        "unrecognized partition type 0x%02X", partType ));
+        }
+
+        partOffset = mbr.getInt( 0x1BE + 0x8 );
+        int length = mbr.getInt( 0x1BE + 0xC );
+
+        if (log.isDebugEnabled()) {
+            log.debug( String.format(
+                    "using partition 1: offset=%d length=%d",
+                    partOffset, length
+                ));
+        }
+
+        // sometimes the partition length is set incorrectly; that's only
+        // worth a warning if the device isn't known for it
+        if (partOffset + length > storage.blockCount()) {
+            String message = String.format(
+                    "partition length %d puts end %d after"
+                        + " volume end %d, correcting to %d",
+                    length, partOffset + length, storage.blockCount(),
+                    storage.blockCount() - partOffset
+                );
+            if (storage.quirks().partitionOverrun()) log.debug( message );
+            else log.warn( message );
+
+            length = (int)( storage.blockCount() - partOffset );
+        }
+        partLength = length;
+
+
+
+        ByteBuffer sys;
+        if (partOffset >= 0 && partOffset + SYSTEM_BLOCKS <= headBlocks) {
+            log.debug( "FAT system area was read with the partition table" );
+
+            mbr.position( partOffset * blockSize );
+            mbr.limit( mbr.position() + SYSTEM_BLOCKS * blockSize );
+            sys = mbr.slice();
+        } else {
+            if (headBlocks > 1) metrics.mountFallbacks.increment();
+            log.debug( "reading FAT system area" );
+
+            sys = ByteBuffer.allocate( blockSize * SYSTEM_BLOCKS );
+            storage.rawRead( sys, partOffset, SYSTEM_BLOCKS );
+        }
+        sys.order( ByteOrder.LITTLE_ENDIAN );
+
+        // units of a model may differ, so cover the furthest seen
+        while (true) {
+            Integer known = layouts.putIfAbsent(
+                    modelKey, partOffset + SYSTEM_BLOCKS );
+            if (known == null || known >= partOffset + SYSTEM_BLOCKS
+                    || layouts.replace( modelKey, known,
+                        partOffset + SYSTEM_BLOCKS )) break;
+        }
+
+        // layout from 107-9.2
+        final short sectorSize  = sys.getShort( 11 );
+        final byte  clusterSize = sys.get( 13 );
+        final short reserved    = sys.getShort( 14 );
+        final byte  fatCount    = sys.get( 16 );
+        final short dirEntries  = sys.getShort( 17 );
+        final short sectorCount = sys.getShort( 19 );
+        final short fatSize     = sys.getShort( 22 );
+
+        // the extended boot record, present if its signature is, holds
+        // the volume ID assigned at format time
+        volumeId = sys.get( 38 ) == (byte) 0x29 ? sys.getInt( 39 ) : 0;
+
+        // defined in 107-6.3.4
+        final short systemSize = (short)(
+                reserved + fatCount * fatSize
+                + Math.ceil( 32 * dirEntries / sectorSize )
+            );;
+
+        // defined in 107-10.2.4
+        final short clusterCount = (short) Math.floor(
+                (sectorCount - systemSize) / clusterSize );
+
+        if (log.isTraceEnabled()) {
+            log.trace( String.format(
+                    "FAT parameters: sectorSize=%d sectorCount=%d"
+                        + " clusterSize=%d clusterCount=%d"
+                        + " fatSize=%d fatCount=%d"
+                        + " reserved=%d system=%d dirEntries=%d",
+                    sectorSize, sectorCount, clusterSize, clusterCount,
+                    fatSize, fatCount, reserved, systemSize, dirEntries
+                ));
+        }
+
+        if (sectorSize != storage.blockSize()) {
+            throw new IOException( String.format(
+                    "FAT sector size %d is not equal to device block size %d",
+                    sectorSize, storage.blockSize()
+                ));
+        }
+
+        // extract the first FAT from the system area
+        // position defined in 107-6.3.2
+        sys.position( reserved * sectorSize );
+        sys.limit( sys.position() + fatSize * sectorSize );
+        ByteBuffer fat = sys.slice();
+        fat.order( ByteOrder.LITTLE_ENDIAN );
+
+        // extract the root directory
+        // position defined in 107-6.3.3
+        sys.position( (reserved + fatCount * fatSize) * sectorSize );
+        sys.limit( sys.position() + dirEntries * 32 );
+        ByteBuffer dir = sys.slice();
+        dir.order( ByteOrder.LITTLE_ENDIAN );
+
+        // find the SETTINGS.BIN file in the root directory
+        // directory format defined in 107-11
+        short fileCluster = 0;
+        int foundLength = 0;
+        for (int entry = 0; entry < dirEntries; entry++) {
+            byte first = dir.get( entry * 32 +  0 );
+            byte flags = dir.get( entry * 32 + 11 );
+
+            // skip unused and non-file entries
+            if (first == 0x00 || first == 0xE5 || (flags & 0x18) != 0)
+                continue;
+
+            String name = readString( dir, entry * 32 + 0, 8 );
+            String ext  = readString( dir, entry * 32 + 8, 3 );
+
+            if (log.isTraceEnabled()) {
+                log.trace( String.format(
+                        "considering file %d: '%s.%s'",
+                        entry, name, ext
+                    ));
+            }
+
+            if ("SETTINGS".equalsIgnoreCase( name )
+                    && "BIN".equalsIgnoreCase( ext )) {
+                fileCluster = dir.getShort( entry * 32 + 26 );
+                foundLength  = dir.getInt(   entry * 32 + 28 );
+
+                if (log.isTraceEnabled()) {
+                    log.trace( String.format(
+                            "matched file %d: cluster=0x%03x length=0x%08x",
+                            entry, fileCluster, foundLength
+                        ));
+                }
+
+                break;
+            }
+        }
+
+        if (fileCluster == 0) {
+            throw new IOException( "file SETTINGS.BIN not found" );
+        }
+
+        fileOffset = (fileCluster - 2) * clusterSize + systemSize;
+        fileOffsetAbs = (partOffset + fileOffset) * sectorSize;
+        fileLength = foundLength;
+
+        if (log.isDebugEnabled()) {
+            log.debug( String.format(
+                    "file offset(sectors)=%d abs_offset(bytes)=%d length(bytes)=%d",
+                    fileOffset, fileOffsetAbs, fileLength
+                ));
+        }
+
+        // read the FAT to ensure the file is contiguous
+        // FAT layout defined in 107-10
+        // 12-bit int packing method defined in 107-8.4
+        final int fileSizeClusters = (int) Math.ceil(
+                fileLength / (clusterSize * sectorSize) );
+        boolean lastCluster = false;
+        short cluster = fileCluster;
+        for (int idx = 0; idx <= fileSizeClusters; idx++) {
+            short offset = (short)( Math.floor( (cluster - 2) / 2 ) * 3 + 3 );
+            short value;
+
+            if (cluster % 2 == 0) {
+                value = (short)( fat.getShort( offset ) & 0x0FFF );
+            } else {
+                value = (short)( (fat.getShort( offset + 1 ) & 0xFFF0) >>> 4 );
+            }
+
+            if (log.isTraceEnabled()) {
+                log.trace( String.format(
+                        "cluster %03d num=0x%03x offs=0x%03x value=0x%03x",
+                        idx, cluster, offset, value
+                    ));
+            }
+
+            if (value >= 0xFF8 && value <= 0xFFF) {
+                log.trace( "last cluster" );
+                lastCluster = true;
+                break;
+            } else if (value >= 2 && value < clusterCount + 2) {
+                if (value != cluster + 1) {
+                    throw new IOException( String.format(
+                            "discontiguity at cluster 0x%03x (to 0x%03x);"
+                                + " discontiguous files are not supported",
+                            cluster, value
+                        ));
+                }
+
+                cluster = value;
+            } else {
+                throw new IOException( String.format(
+                        "invalid value for cluster %03x: %03x",
+                        cluster, value
+                    ));
+            }
+        }
+
+        if (!lastCluster) throw new IOException(
+                "did not reach last cluster of file" );
+
+        // find the longest run of free clusters, which no file can be
+        // using, for the write benchmark to work in
+        int bestStart = 2, bestLength = 0, runStart = 2;
+        for (int free = 2; free < clusterCount + 2
+                && free * 3 / 2 + 2 <= fat.limit(); free++) {
+            if (fatEntry( fat, free ) != 0) {
+                runStart = free + 1;
+            } else if (free + 1 - runStart > bestLength) {
+                bestStart = runStart;
+                bestLength = free + 1 - runStart;
+            }
+        }
+
+        scratchBlock = partOffset + systemSize
+            + (long)( bestStart - 2 ) * clusterSize;
+        scratchBlocks = bestLength * clusterSize;
+
+        if (log.isDebugEnabled()) {
+            log.debug( String.format(
+                    "longest free run: cluster=0x%03x clusters=%d",
+                    bestStart, bestLength
+                ));
+        }
+    }
+
+    /** Returns a cluster's entry in a FAT12 table. */
+    private static int fatEntry (ByteBuffer fat, int cluster) {
+        // 12-bit int packing method defined in 107-8.4
+        int offset = cluster * 3 / 2;
+        int value = fat.getShort( offset ) & 0xFFFF;
+        return cluster % 2 == 0 ? value & 0x0FFF : value >>> 4;
+    }
+
+    private static String readString (ByteBuffer buffer, int offset, int length) {
+        byte[] array = new byte[ length ];
+        buffer.position( offset );
+        buffer.get( array );
+
+        try {
+            return new String( array, 0, length,  "US-ASCII" );
+        } catch (UnsupportedEncodingException caught) {
+            // US-ASCII is a required encoding
+            throw new RuntimeException( caught );
+        }
+    }
+
+    /** Releases the device. */
+    void close()
+    throws IOException {
+        storage.close();
+    }
+}
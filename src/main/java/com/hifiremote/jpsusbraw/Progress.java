@@ -0,0 +1,93 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.util.concurrent.TimeUnit;
+
+/** A progress report for the I/O done since an operation started.
+ *
+ * One instance is updated in place for each report, so that reporting
+ * doesn't allocate; see {@link ProgressListener#progress}.
+ */
+public final class Progress {
+    long bytes;
+    long totalBytes = -1;
+    long commands;
+    long elapsedNanos;
+    double bytesPerSecond;
+    boolean finished;
+
+    Progress() {
+    }
+
+    /** Bytes transferred so far. */
+    public long bytes() {
+        return bytes;
+    }
+
+    /** Bytes the operation is expected to transfer, or -1 if unknown. */
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    /** SCSI commands completed so far. */
+    public long commands() {
+        return commands;
+    }
+
+    public long elapsed (TimeUnit unit) {
+        return unit.convert( elapsedNanos, TimeUnit.NANOSECONDS );
+    }
+
+    /** Throughput since the previous report. */
+    public double bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /** Throughput since the operation started. */
+    public double averageBytesPerSecond() {
+        if (elapsedNanos <= 0) return 0;
+        return bytes * 1e9 / elapsedNanos;
+    }
+
+    /** The completed fraction, from 0 to 1, or -1 if the total is unknown. */
+    public double fraction() {
+        if (totalBytes <= 0) return totalBytes == 0 ? 1 : -1;
+        return Math.min( 1.0, (double) bytes / totalBytes );
+    }
+
+    /** Estimated time remaining at the average throughput, or -1 if it
+     * can't be estimated yet.
+     */
+    public long eta (TimeUnit unit) {
+        if (finished) return 0;
+
+        double rate = averageBytesPerSecond();
+        if (totalBytes < 0 || rate <= 0) return -1;
+
+        double seconds = Math.max( 0, totalBytes - bytes ) / rate;
+        return unit.convert( (long)( seconds * 1e9 ), TimeUnit.NANOSECONDS );
+    }
+
+    /** Whether this is the final report for the operation. */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "bytes=%d total=%d commands=%d rate=%.0f avg=%.0f finished=%s",
+                bytes, totalBytes, commands,
+                bytesPerSecond, averageBytesPerSecond(), finished );
+    }
+}
@@ -0,0 +1,72 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Writes progress reports as newline-delimited JSON, one object per
+ * report, for collection by monitoring tools. For example:
+ *
+ * <pre>{"device":"URC-6440/1A2B3C4D","bytes":65536,"total":262144,
+ * "commands":2,"rate":48213,"avg":47102,"eta_ms":4174,"finished":false}</pre>
+ *
+ * (shown wrapped). {@code total} and {@code eta_ms} are -1 when unknown.
+ * Each line is flushed as it is written. If the writer fails, the error
+ * is logged and later reports are dropped.
+ */
+public class ProgressFeed
+implements ProgressListener {
+    private static final Logger log = LogManager.getLogger();
+
+    private final Writer out;
+    private final String device;
+    private final StringBuilder line = new StringBuilder( 192 );
+    private char[] chars = new char[ 192 ];
+    private boolean failed = false;
+
+    public ProgressFeed (Writer out, String device) {
+        this.out = out;
+        this.device = device;
+    }
+
+    @Override
+    public void progress (Progress progress) {
+        if (failed) return;
+
+        line.setLength( 0 );
+        line.append( "{\"device\":\"" ).append( device )
+            .append( "\",\"bytes\":" ).append( progress.bytes() )
+            .append( ",\"total\":" ).append( progress.totalBytes() )
+            .append( ",\"commands\":" ).append( progress.commands() )
+            .append( ",\"rate\":" ).append( (long) progress.bytesPerSecond() )
+            .append( ",\"avg\":" ).append( (long) progress.averageBytesPerSecond() )
+            .append( ",\"eta_ms\":" ).append( progress.eta( TimeUnit.MILLISECONDS ))
+            .append( ",\"finished\":" ).append( progress.isFinished() )
+            .append( "}\n" );
+
+        try {
+            if (chars.length < line.length())
+                chars = new char[ line.length() ];
+            line.getChars( 0, line.length(), chars, 0 );
+            out.write( chars, 0, line.length() );
+            out.flush();
+        } catch (IOException caught) {
+            log.warn( "unable to write progress feed", caught );
+            failed = true;
+        }
+    }
+}
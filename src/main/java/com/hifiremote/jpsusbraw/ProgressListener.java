@@ -0,0 +1,27 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+/** Receives periodic progress reports for a device's I/O.
+ *
+ * @see JpsUsbRaw#setProgressListener
+ */
+public interface ProgressListener {
+    /** Called at most once per reporting interval, and once more when an
+     * operation finishes, on whichever thread completed the last command.
+     *
+     * The report object is reused for every call, so it must not be kept
+     * or used after this returns. Implementations should return quickly,
+     * since the device's I/O waits for them.
+     */
+    void progress (Progress progress);
+}
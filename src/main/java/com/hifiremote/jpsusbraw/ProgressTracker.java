@@ -0,0 +1,88 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Counts the bytes and commands of an operation and reports them to a
+ * listener, no more often than a fixed interval.
+ *
+ * Recording a command is a few field updates and a clock read; a report
+ * reuses a single {@link Progress}.
+ */
+class ProgressTracker {
+    private static final Logger log = LogManager.getLogger();
+
+    private final ProgressListener listener;
+    private final long intervalNanos;
+    private final Progress progress = new Progress();
+
+    private long start, lastReport, lastBytes;
+
+    ProgressTracker (ProgressListener listener, long intervalNanos) {
+        this.listener = listener;
+        this.intervalNanos = intervalNanos;
+        start( -1 );
+    }
+
+    /** Starts a new operation expected to transfer the given number of
+     * bytes, or -1 if unknown.
+     */
+    synchronized void start (long totalBytes) {
+        start = lastReport = System.nanoTime();
+        lastBytes = 0;
+
+        progress.bytes = 0;
+        progress.totalBytes = totalBytes;
+        progress.commands = 0;
+        progress.elapsedNanos = 0;
+        progress.bytesPerSecond = 0;
+        progress.finished = false;
+    }
+
+    /** Records a completed command. */
+    synchronized void record (long bytes) {
+        progress.bytes += bytes;
+        progress.commands++;
+
+        long now = System.nanoTime();
+        if (now - lastReport >= intervalNanos) report( now );
+    }
+
+    /** Sends the final report for the operation. */
+    synchronized void finish() {
+        progress.finished = true;
+        report( System.nanoTime() );
+    }
+
+    private void report (long now) {
+        long interval = now - lastReport;
+        progress.elapsedNanos = now - start;
+
+        // a final report right after a periodic one keeps its rate
+        if (!progress.finished || progress.bytes != lastBytes) {
+            progress.bytesPerSecond = interval > 0
+                ? (progress.bytes - lastBytes) * 1e9 / interval : 0;
+        }
+
+        lastReport = now;
+        lastBytes = progress.bytes;
+
+        try {
+            listener.progress( progress );
+        } catch (RuntimeException caught) {
+            // a broken listener shouldn't fail the I/O it's watching
+            log.warn( "progress listener failed", caught );
+        }
+    }
+}
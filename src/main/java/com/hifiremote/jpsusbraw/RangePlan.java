@@ -0,0 +1,123 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** Groups file ranges into block extents, one command each.
+ *
+ * Ranges are sorted by position and merged while they share blocks or
+ * are separated by a gap small enough that transferring it costs less
+ * than another command would, up to a limit on blocks per command.
+ */
+class RangePlan {
+    // a command's CBW and CSW phases each take at least one (micro)frame,
+    // in which the bus could have moved about this many full packets
+    private static final int COMMAND_COST_PACKETS = 48;
+
+    /** The largest gap, in blocks, worth bridging rather than issuing
+     * a separate command.
+     */
+    static int bridgeBlocks (int maxPacketSize, int blockSize) {
+        return COMMAND_COST_PACKETS * maxPacketSize / blockSize;
+    }
+
+    /** Plans commands for ranges of a file starting at byte {@code base}
+     * of a volume. Empty ranges are left out.
+     */
+    static List<Extent> plan (final List<FileRange> ranges, long base,
+            int blockSize, int maxBlocks, int bridgeBlocks) {
+        Integer[] order = new Integer[ ranges.size() ];
+        for (int idx = 0; idx < order.length; idx++) order[ idx ] = idx;
+
+        Arrays.sort( order, new Comparator<Integer>() {
+                @Override
+                public int compare (Integer a, Integer b) {
+                    return Long.compare(
+                            ranges.get( a ).position(),
+                            ranges.get( b ).position() );
+                }
+            });
+
+        List<Extent> plan = new ArrayList<Extent>();
+        Extent current = null;
+        long coveredTo = 0;
+
+        for (Integer idx : order) {
+            FileRange range = ranges.get( idx );
+            if (range.length() == 0) continue;
+
+            long start = base + range.position();
+            long end = base + range.end();
+            long first = start / blockSize;
+            long last = (end + blockSize - 1) / blockSize;
+
+            if (current != null
+                    && first - current.end() <= bridgeBlocks
+                    && Math.max( last, current.end() )
+                        - current.firstBlock <= maxBlocks) {
+                if (start > coveredTo) current.covered = false;
+                coveredTo = Math.max( coveredTo, end );
+                current.blocks = (int)(
+                        Math.max( last, current.end() ) - current.firstBlock );
+                current.members.add( idx );
+                continue;
+            }
+
+            if (current != null) close( current, coveredTo, blockSize );
+
+            current = new Extent( first, (int)( last - first ));
+            current.covered = start == first * blockSize;
+            current.members.add( idx );
+            coveredTo = end;
+            plan.add( current );
+        }
+
+        if (current != null) close( current, coveredTo, blockSize );
+        return plan;
+    }
+
+    private static void close (Extent extent, long coveredTo, int blockSize) {
+        if (coveredTo < extent.end() * blockSize) extent.covered = false;
+
+        // restore the caller's order so later writes win over earlier ones
+        Collections.sort( extent.members );
+    }
+
+
+    /** A run of blocks transferred by one command. */
+    static class Extent {
+        final long firstBlock;
+        int blocks;
+
+        /** Whether the ranges cover every byte of the blocks, so that
+         * writing them needs no read first.
+         */
+        boolean covered;
+
+        /** Indices of the ranges served, in their original order. */
+        final List<Integer> members = new ArrayList<Integer>();
+
+        Extent (long firstBlock, int blocks) {
+            this.firstBlock = firstBlock;
+            this.blocks = blocks;
+        }
+
+        long end() {
+            return firstBlock + blocks;
+        }
+    }
+}
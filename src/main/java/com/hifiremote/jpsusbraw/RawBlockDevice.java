@@ -0,0 +1,176 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbException;
+import javax.usb.UsbHostManager;
+import javax.usb.UsbHub;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Block-level access to any USB Mass Storage device using the
+ * Bulk-Only transport, for imaging it.
+ *
+ * Unlike {@link JpsUsbRaw} this doesn't require one of UEI's remotes
+ * and doesn't mount a file system: the device is addressed as the
+ * blocks it reports, however large. Ranges which don't fit the 10-byte
+ * commands are sent as READ (16) or WRITE (16); {@link #setLongCommands}
+ * sends every range that way, to try those commands on a small device.
+ *
+ * Transfers are blocking and must only be made from one thread at a
+ * time.
+ */
+public class RawBlockDevice
+implements Closeable {
+    private static final Logger log = LogManager.getLogger();
+
+    private final DeviceMetrics metrics;
+    private final ScsiDriver storage;
+
+    private RawBlockDevice (DeviceMetrics metrics, ScsiDriver storage) {
+        this.metrics = metrics;
+        this.storage = storage;
+    }
+
+    private static void walkDevices (
+            List<DevicePath> results, UsbHub hub, DevicePathBuilder path)
+    throws UsbException {
+        for (UsbDevice device : (List<UsbDevice>) hub.getAttachedUsbDevices()) {
+            path.set( device.getParentUsbPort().getPortNumber() );
+
+            if (device.isUsbHub()) {
+                path.push();
+                walkDevices( results, (UsbHub) device, path );
+                path.pop();
+            } else if (UsbMassStorageDriver.bulkOnlyInterface( device ) != null) {
+                if (log.isDebugEnabled()) {
+                    UsbDeviceDescriptor desc = device.getUsbDeviceDescriptor();
+                    log.debug( String.format(
+                            "matched mass storage device vnd=%04x dev=%04x path=%s",
+                            desc.idVendor(), desc.idProduct(),
+                            path.toString()
+                        ));
+                }
+
+                results.add( path.toDevicePath() );
+            }
+        }
+    }
+
+    /** Returns the paths of every attached Bulk-Only mass storage device,
+     * UEI remotes included.
+     */
+    public static List<DevicePath> findDevices()
+    throws UsbException {
+        log.debug( "searching for USB mass storage devices..." );
+        UsbHub rootHub = UsbHostManager.getUsbServices().getRootUsbHub();
+        List<DevicePath> results = new ArrayList<DevicePath>();
+        walkDevices( results, rootHub, new DevicePathBuilder() );
+
+        log.debug( "found " + results.size() + " devices" );
+        return results;
+    }
+
+    /** Claims the device at a path.
+     *
+     * @param force whether to take the device from a kernel driver
+     *              which has claimed it
+     * @throws IllegalStateException if nothing is attached there
+     */
+    public static RawBlockDevice open (DevicePath path, boolean force)
+    throws IOException {
+        UsbDevice device;
+        try {
+            device = JpsUsbRaw.locate( path );
+        } catch (UsbException caught) {
+            throw new IOException(
+                    "error locating device: " + caught.getMessage(),
+                    caught
+                );
+        }
+
+        if (device == null) {
+            throw new IllegalStateException(
+                    "no device is attached at " + path );
+        }
+
+        DeviceMetrics metrics = new DeviceMetrics( path.toString() );
+        ScsiDriver storage = new ScsiDriver(
+                new UsbMassStorageDriver( device, force, metrics ),
+                metrics
+            );
+
+        metrics.register();
+        return new RawBlockDevice( metrics, storage );
+    }
+
+    /** Returns the vendor, product and release of the device. */
+    public DeviceModel model() {
+        return storage.model();
+    }
+
+    public long size() {
+        return storage.size();
+    }
+
+    public long blockCount() {
+        return storage.blockCount();
+    }
+
+    public int blockSize() {
+        return storage.blockSize();
+    }
+
+    /** Sets whether every transfer is sent as READ (16) or WRITE (16),
+     * overriding the device's transfer.longCommands quirk.
+     */
+    public void setLongCommands (boolean longCommands) {
+        storage.setLongCommands( longCommands );
+    }
+
+    /** Reads into the buffer from the given byte position, as much as
+     * fits or as the device has. Returns the number of bytes read, or -1
+     * at the end of the device.
+     */
+    public int read (ByteBuffer dst, long position)
+    throws IOException {
+        return storage.read( dst, position,
+                Math.min( dst.remaining(), storage.size() - position ));
+    }
+
+    /** Writes the buffer's contents at the given byte position. Returns
+     * the number of bytes written.
+     */
+    public int write (ByteBuffer src, long position)
+    throws IOException {
+        return storage.write( src, position, src.remaining() );
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        try {
+            storage.close();
+        } finally {
+            metrics.unregister();
+        }
+    }
+}
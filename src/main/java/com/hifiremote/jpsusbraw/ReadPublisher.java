@@ -0,0 +1,246 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Publishes a range of the settings file as a stream of buffers.
+ *
+ * Each subscription reads the range from the start. Every buffer the
+ * subscriber requests is one READ (10) command, and at most
+ * {@link #MAX_OUTSTANDING} of them are in flight at once, so the
+ * subscriber's demand directly bounds the work queued on the device.
+ *
+ * Commands go through the device's I/O scheduler at the priority the
+ * channel had when the publisher was made, so they keep their order
+ * against conflicting writes from the channel or other streams.
+ *
+ * Buffers come from a pool and go back to it when {@code onNext}
+ * returns, so a subscriber which keeps the data must copy it.
+ * Signals are delivered on the device's I/O thread.
+ */
+public class ReadPublisher
+implements Flow.Publisher<ByteBuffer> {
+    private static final Logger log = LogManager.getLogger();
+
+    /** Most READ commands one subscription will have in flight. */
+    static final int MAX_OUTSTANDING = 4;
+
+    private final JpsUsbRaw channel;
+    private final long start, end;
+    private final int chunkBlocks;
+    private final IoPriority priority;
+
+    /** @param start      file position of the range
+     *  @param end        file position just past the range
+     *  @param chunkBlocks blocks per READ command
+     */
+    ReadPublisher (JpsUsbRaw channel, long start, long end,
+            int chunkBlocks, IoPriority priority) {
+        this.channel = channel;
+        this.start = start;
+        this.end = end;
+        this.chunkBlocks = chunkBlocks;
+        this.priority = priority;
+    }
+
+    @Override
+    public void subscribe (Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException( "subscriber may not be null" );
+
+        ReadSubscription subscription = new ReadSubscription( subscriber );
+        subscriber.onSubscribe( subscription );
+        subscription.drain();
+    }
+
+
+    private class ReadSubscription
+    implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final BufferPool pool = new BufferPool(
+                chunkBlocks * channel.blockSize(), MAX_OUTSTANDING );
+
+        // all guarded by this; demand, issued and delivered are running
+        // totals, so buffers issued or delivered never exceed demand
+        private final Map<Long, ByteBuffer> ready = new HashMap<Long, ByteBuffer>();
+        private long demand = 0;
+        private long next = start;
+        private long issued = 0, delivered = 0;
+        private int outstanding = 0;
+        private Throwable error = null;
+        private boolean cancelled = false, terminated = false;
+        private boolean delivering = false;
+
+        ReadSubscription (Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request (long count) {
+            synchronized (this) {
+                if (count <= 0) {
+                    // Reactive Streams rule 3.9
+                    error = new IllegalArgumentException(
+                            "request count must be positive" );
+                } else {
+                    demand += count;
+                    if (demand < 0) demand = Long.MAX_VALUE;
+                }
+            }
+
+            issue();
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+            }
+            drain();
+        }
+
+        /** Starts as many READ commands as demand and the window allow. */
+        private void issue() {
+            while (true) {
+                final long seq;
+                final long offset;
+                final int skip, length, blocks;
+
+                synchronized (this) {
+                    if (cancelled || terminated || error != null) return;
+                    if (next >= end) return;
+
+                    if (issued >= demand || outstanding >= MAX_OUTSTANDING)
+                        return;
+
+                    int blockSize = channel.blockSize();
+                    offset = next;
+                    skip = (int)( offset % blockSize );
+                    length = (int) Math.min( end - offset,
+                            pool.capacity() - skip );
+                    blocks = (skip + length + blockSize - 1) / blockSize;
+
+                    seq = issued++;
+                    outstanding++;
+                    next += length;
+                }
+
+                final ByteBuffer buffer = pool.acquire();
+                buffer.limit( blocks * channel.blockSize() );
+
+                if (log.isTraceEnabled()) {
+                    log.trace( String.format(
+                            "stream read seq=%d offset=%d length=%d",
+                            seq, offset, length
+                        ));
+                }
+
+                channel.readBlocksAsync( buffer,
+                        offset - skip, blocks, priority ).whenComplete(
+                    new BiConsumer<Void, Throwable>() {
+                        @Override
+                        public void accept (Void result, Throwable caught) {
+                            buffer.position( skip );
+                            buffer.limit( skip + length );
+                            completed( seq, buffer, caught );
+                        }
+                    });
+            }
+        }
+
+        private void completed (long seq, ByteBuffer buffer, Throwable caught) {
+            synchronized (this) {
+                outstanding--;
+
+                if (caught != null) {
+                    if (error == null) error = caught;
+                    pool.release( buffer );
+                } else {
+                    ready.put( seq, buffer );
+                }
+            }
+
+            drain();
+            issue();
+        }
+
+        /** Delivers ready buffers in order; only one thread at a time. */
+        void drain() {
+            synchronized (this) {
+                if (delivering) return;
+                delivering = true;
+            }
+
+            while (true) {
+                ByteBuffer buffer = null;
+                Throwable failure = null;
+                boolean complete = false;
+
+                synchronized (this) {
+                    if (terminated) {
+                        delivering = false;
+                        return;
+                    }
+
+                    if (cancelled) {
+                        terminated = true;
+                    } else if (error != null) {
+                        failure = error;
+                        terminated = true;
+                    } else if (delivered < issued || next < end) {
+                        if (delivered < demand)
+                            buffer = ready.remove( delivered );
+
+                        if (buffer == null) {
+                            delivering = false;
+                            return;
+                        }
+
+                        delivered++;
+                    } else {
+                        complete = true;
+                        terminated = true;
+                    }
+
+                    if (terminated) {
+                        for (ByteBuffer unused : ready.values())
+                            pool.release( unused );
+                        ready.clear();
+                    }
+                }
+
+                if (failure != null) {
+                    subscriber.onError( failure );
+                } else if (complete) {
+                    subscriber.onComplete();
+                } else if (buffer != null) {
+                    try {
+                        subscriber.onNext( buffer );
+                    } finally {
+                        pool.release( buffer );
+                    }
+
+                    issue();
+                }
+            }
+        }
+    }
+}
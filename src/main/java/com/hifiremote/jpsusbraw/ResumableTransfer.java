@@ -0,0 +1,192 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Copies the settings file between a device and a local file in
+ * journaled chunks, so that an interrupted copy can pick up where it
+ * stopped.
+ *
+ * A copy from the device is keyed by the device's identity and the
+ * local file's path; a copy to the device by its identity and the hash
+ * of the local file's contents. Chunks completed by an earlier run are
+ * skipped, then checked against their recorded digests once the rest
+ * are done, and copied again if they no longer match. Those are always
+ * read back from the device; a copy from it checks the local file too.
+ */
+class ResumableTransfer {
+    private static final Logger log = LogManager.getLogger();
+
+    private final TransferJournal journal;
+    private final FileChannel local;
+    private final boolean toDevice;
+    private final String identity;
+
+    private ResumableTransfer (TransferJournal journal,
+            FileChannel local, boolean toDevice, String identity) {
+        this.journal = journal;
+        this.local = local;
+        this.toDevice = toDevice;
+        this.identity = identity;
+    }
+
+    /** Prepares to copy the device's settings file into a local file. */
+    static ResumableTransfer fromDevice (JpsUsbRaw settings,
+            File file, FileChannel local)
+    throws IOException {
+        byte[] path = file.getCanonicalPath().getBytes( "UTF-8" );
+        String key = "read-" + settings.identity() + "-"
+            + TransferJournal.hex( TransferJournal.digest(
+                        ByteBuffer.wrap( path ))).substring( 0, 16 );
+
+        TransferJournal journal = TransferJournal.open( key, settings.size() );
+
+        // a fresh copy shouldn't keep stale data past the end
+        if (journal.resumedCount() == 0) local.truncate( 0 );
+
+        return new ResumableTransfer(
+                journal, local, false, settings.identity() );
+    }
+
+    /** Prepares to copy a local file into the device's settings file. */
+    static ResumableTransfer toDevice (JpsUsbRaw settings, FileChannel local)
+    throws IOException {
+        MessageDigest digest = TransferJournal.newDigest();
+        long size = local.size();
+        for (long offset = 0; offset < size; offset += TransferJournal.CHUNK_SIZE) {
+            digest.update( local.map( FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min( TransferJournal.CHUNK_SIZE, size - offset )));
+        }
+
+        String key = "write-" + settings.identity() + "-"
+            + TransferJournal.hex( digest.digest() ).substring( 0, 16 );
+
+        return new ResumableTransfer( TransferJournal.open( key, size ),
+                local, true, settings.identity() );
+    }
+
+    /** Chunks completed by an earlier run and not yet checked. */
+    int resumedChunks() {
+        return journal.resumedCount();
+    }
+
+    /** Bytes in the chunks not yet done. */
+    long pendingBytes() {
+        long pending = 0;
+        for (int chunk = 0; chunk < journal.chunks(); chunk++) {
+            if (!journal.isDone( chunk )) pending += journal.length( chunk );
+        }
+        return pending;
+    }
+
+    /** Copies the chunks not yet done, recording each as it completes.
+     * May be called again with a reopened device after a failure.
+     */
+    void run (JpsUsbRaw settings)
+    throws IOException {
+        if (!identity.equals( settings.identity() )) {
+            throw new IOException( "device " + settings.identity()
+                    + " is not the one this transfer started on, "
+                    + identity );
+        }
+
+        for (int chunk = 0; chunk < journal.chunks(); chunk++) {
+            if (!journal.isDone( chunk )) copy( settings, chunk );
+        }
+    }
+
+    /** Checks the chunks done by an earlier run against their digests,
+     * copying any that don't match again, then removes the journal.
+     * Returns the number of chunks which had to be copied again.
+     */
+    int verifyResumed (JpsUsbRaw settings)
+    throws IOException {
+        int redone = 0;
+        for (int chunk = 0; chunk < journal.chunks(); chunk++) {
+            if (!journal.isResumed( chunk )) continue;
+
+            // what a write put on the device; for a read, the device may
+            // have changed since as well as the file
+            boolean same = journal.matches( chunk,
+                    TransferJournal.digest( readDevice( settings, chunk )));
+            if (same && !toDevice) {
+                same = journal.matches( chunk,
+                        TransferJournal.digest( mapLocal( chunk )));
+            }
+
+            if (!same) {
+                log.warn( "chunk " + chunk + " changed since it was copied" );
+                copy( settings, chunk );
+                redone++;
+            }
+        }
+
+        journal.delete();
+        return redone;
+    }
+
+    /** Closes the journal, keeping it for a later run. */
+    void suspend()
+    throws IOException {
+        journal.close();
+    }
+
+    private void copy (JpsUsbRaw settings, int chunk)
+    throws IOException {
+        long offset = journal.offset( chunk );
+        int length = journal.length( chunk );
+
+        if (log.isTraceEnabled()) {
+            log.trace( String.format(
+                    "copying chunk %d offset=%d length=%d",
+                    chunk, offset, length
+                ));
+        }
+
+        long done = 0;
+        while (done < length) {
+            local.position( offset + done );
+            done += toDevice
+                ? settings.transferFrom( local, offset + done, length - done )
+                : settings.transferTo( offset + done, length - done, local );
+        }
+
+        journal.record( chunk, TransferJournal.digest( mapLocal( chunk )));
+    }
+
+    private ByteBuffer mapLocal (int chunk)
+    throws IOException {
+        return local.map( FileChannel.MapMode.READ_ONLY,
+                journal.offset( chunk ), journal.length( chunk ));
+    }
+
+    private ByteBuffer readDevice (JpsUsbRaw settings, int chunk)
+    throws IOException {
+        ByteBuffer data = ByteBuffer.allocate( journal.length( chunk ));
+        long offset = journal.offset( chunk );
+        while (data.hasRemaining()) {
+            if (settings.read( data, offset + data.position() ) < 0)
+                throw new IOException( "unexpected end of file" );
+        }
+
+        data.flip();
+        return data;
+    }
+}
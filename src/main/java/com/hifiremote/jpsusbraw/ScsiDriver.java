@@ -14,6 +14,10 @@ package com.hifiremote.jpsusbraw;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import javax.usb.UsbDevice;
 import javax.usb.UsbException;
@@ -21,43 +25,111 @@ import javax.usb.UsbException;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
+/** Block device access over SCSI commands.
+ *
+ * The blocking methods share a bounce buffer and transfer size state,
+ * so they must only be called from one thread at a time; {@link JpsUsbRaw}
+ * confines them to its device's I/O thread. The asynchronous methods
+ * may be called from any thread.
+ */
 class ScsiDriver {
     private static final Logger log = LogManager.getLogger();
 
     private static final int BUFFER_BLOCKS = 16;
-    private static final int MAX_READ_BLOCKS = 128;
-    private static final int MAX_WRITE_BLOCKS = 128;
+
+    // per-command transfer size limits, adjusted at runtime by TransferSizer
+    private static final int INITIAL_READ_BLOCKS = 128;
+    private static final int INITIAL_WRITE_BLOCKS = 128;
+    private static final int TRANSFER_STEP_BLOCKS = 16;
 
     private final UsbMassStorageDriver driver;
-    private final int blockCount, blockSize;
+    private final DeviceMetrics metrics;
+    private final long blockCount;
+    private final int blockSize;
     private final long size;
     private final ByteBuffer buffer;
+    private final TransferSizer readSizer, writeSizer;
+
+    // send READ/WRITE (16) even when the 10-byte commands would do
+    private volatile boolean longCommands;
 
-    ScsiDriver (final UsbMassStorageDriver driver)
+    // set when the last command hit a recoverable transport error; an
+    // ordinary STALL ending a failed command's data phase doesn't count
+    private boolean congested = false;
+
+    private volatile ProgressTracker progress;
+
+    ScsiDriver (final UsbMassStorageDriver driver, final DeviceMetrics metrics)
     throws IOException {
         this.driver = driver;
+        this.metrics = metrics;
+
+        DeviceQuirks quirks = driver.quirks();
+        if (quirks.hasGeometry()) {
+            // the size is already known, so there's no need to ask
+            blockCount = quirks.geometryBlocks();
+            blockSize  = quirks.geometryBlockSize();
+        } else {
+            log.trace( "reading device capacity" );
+            ByteBuffer data = ByteBuffer.allocate( 8 );
+            ByteBuffer cbd = ByteBuffer.allocate( 10 );
+            cbd.order( ByteOrder.BIG_ENDIAN );
+            cbd.put( 0, (byte) 0x25 ); // READ CAPACITY (10)
+            cbd.put( 4, (byte) data.remaining() ); // ALLOCATION LENGTH
+
+            sendCommand( cbd, data, true );
+
+            long last = data.getInt( 0 ) & 0xFFFFFFFFL;
+            int length = data.getInt( 4 );
+
+            // devices too large for 32-bit addresses report the maximum
+            // and need READ CAPACITY (16) for the real value
+            if (last == 0xFFFFFFFFL) {
+                log.trace( "reading 64-bit device capacity" );
+                data = ByteBuffer.allocate( 32 );
+                cbd = ByteBuffer.allocate( 16 );
+                cbd.order( ByteOrder.BIG_ENDIAN );
+                cbd.put( 0, (byte) 0x9E ); // SERVICE ACTION IN (16)
+                cbd.put( 1, (byte) 0x10 ); // READ CAPACITY (16)
+                cbd.putInt( 10, data.remaining() ); // ALLOCATION LENGTH
+
+                sendCommand( cbd, data, true );
+
+                last = data.getLong( 0 );
+                length = data.getInt( 8 );
+            }
 
-        log.trace( "reading device capacity" );
-        ByteBuffer data = ByteBuffer.allocate( 8 );
-        ByteBuffer cbd = ByteBuffer.allocate( 10 );
-        cbd.order( ByteOrder.BIG_ENDIAN );
-        cbd.put( 0, (byte) 0x25 ); // READ CAPACITY (10)
-        cbd.put( 4, (byte) data.remaining() ); // ALLOCATION LENGTH
-
-        sendCommand( cbd, data, true );
-        blockCount = data.getInt( 0 );
-        blockSize  = data.getInt( 4 );
-        size = blockCount * blockSize;
+            // the field holds the last block's address, but some devices
+            // put the block count there instead
+            blockCount = quirks.capacityTrusted() ? last + 1 : last;
+            blockSize  = length;
 
-        if (log.isTraceEnabled()) {
-            log.trace( String.format(
-                    "received capacity blocks=%d size=%d",
-                    blockCount, blockSize
-                ));
+            if (log.isTraceEnabled()) {
+                log.trace( String.format(
+                        "received capacity blocks=%d size=%d",
+                        blockCount, blockSize
+                    ));
+            }
         }
+        size = blockCount * blockSize;
 
         buffer = ByteBuffer.allocate( BUFFER_BLOCKS * blockSize );
 
+        // start from the tuned sizes for this model if there are any; the
+        // model's limit bounds those too, and only a quirk can raise it
+        TransferProfile profile = TransferProfile.load( driver.model() );
+        readSizer = new TransferSizer( "read",
+                profile != null ? profile.readBlocks() : INITIAL_READ_BLOCKS,
+                1, quirks.maxTransferBlocks(), TRANSFER_STEP_BLOCKS );
+        writeSizer = new TransferSizer( "write",
+                profile != null ? profile.writeBlocks() : INITIAL_WRITE_BLOCKS,
+                1, quirks.maxTransferBlocks(), TRANSFER_STEP_BLOCKS );
+        if (profile != null)
+            driver.setPipelining( profile.irpBytes(), profile.pipelineDepth() );
+        updateSizeMetrics();
+
+        longCommands = quirks.longCommands();
+
         log.trace( "successfully initialized USB Mass Storage channel" );
     }
 
@@ -65,7 +137,7 @@ class ScsiDriver {
         return size;
     }
 
-    public int blockCount() {
+    public long blockCount() {
         return blockCount;
     }
 
@@ -73,6 +145,58 @@ class ScsiDriver {
         return blockSize;
     }
 
+    DeviceModel model() {
+        return driver.model();
+    }
+
+    DeviceQuirks quirks() {
+        return driver.quirks();
+    }
+
+    int maxPacketSize() {
+        return driver.maxPacketSize();
+    }
+
+    /** Returns the current transfer sizes and pipelining as a profile. */
+    TransferProfile transferProfile() {
+        return new TransferProfile( readSizer.current(), writeSizer.current(),
+                driver.irpBytes(), driver.pipelineDepth() );
+    }
+
+    /** Current maximum blocks per READ or WRITE command. */
+    int transferBlocks (boolean in) {
+        return (in ? readSizer : writeSizer).current();
+    }
+
+    /** Restarts transfer size adaptation from the given profile, and
+     * takes up its pipelining.
+     */
+    void applyProfile (TransferProfile profile) {
+        readSizer.reset( profile.readBlocks() );
+        writeSizer.reset( profile.writeBlocks() );
+        driver.setPipelining( profile.irpBytes(), profile.pipelineDepth() );
+        updateSizeMetrics();
+    }
+
+    /** Sets the tracker told about each completed command, or null. */
+    void setProgress (ProgressTracker progress) {
+        this.progress = progress;
+    }
+
+    static String commandName (byte opcode) {
+        switch (opcode & 0xFF) {
+        case 0x00: return "TEST_UNIT_READY";
+        case 0x03: return "REQUEST_SENSE";
+        case 0x25: return "READ_CAPACITY_10";
+        case 0x28: return "READ_10";
+        case 0x2A: return "WRITE_10";
+        case 0x88: return "READ_16";
+        case 0x8A: return "WRITE_16";
+        case 0x9E: return "SERVICE_ACTION_IN_16";
+        default:   return String.format( "OPCODE_%02X", opcode );
+        }
+    }
+
     private void sendCommand (ByteBuffer command)
     throws IOException {
         sendCommand( command, null, 0, false );
@@ -85,80 +209,261 @@ class ScsiDriver {
 
     private void sendCommand (ByteBuffer command,
             ByteBuffer data, int dataLength, boolean in)
+    throws IOException {
+        sendCommand( command, data, dataLength, in, Deadline.NONE );
+    }
+
+    private void sendCommand (ByteBuffer command,
+            ByteBuffer data, int dataLength, boolean in, Deadline deadline)
+    throws IOException {
+        sendSegments( command,
+                data == null ? null : new ByteBuffer[] { data },
+                dataLength, in, deadline );
+    }
+
+    private void sendSegments (ByteBuffer command,
+            ByteBuffer[] data, int dataLength, boolean in, Deadline deadline)
+    throws IOException {
+        final byte opcode = command.get( command.position() );
+        final TraceRecorder.Span span = TraceRecorder
+            .begin( commandName( opcode ), TraceRecorder.CAT_SCSI )
+            .arg( "length", dataLength );
+        final long start = System.nanoTime();
+        final long before = positions( data );
+        boolean ok = false;
+        congested = false;
+
+        try {
+            ok = sendCommandRetrying( command, data, dataLength, in, deadline );
+        } finally {
+            metrics.recordCommand( opcode, System.nanoTime() - start, ok );
+            span.arg( "ok", ok ? 1 : 0 ).end();
+
+            long moved = positions( data ) - before;
+            if (moved > 0) StartupTimer.mark( StartupTimer.FIRST_BYTE );
+
+            ProgressTracker tracker = progress;
+            if (tracker != null) tracker.record( moved );
+        }
+    }
+
+    /** Returns the sum of the buffers' positions, so that the change
+     * across a command is the number of bytes it moved.
+     */
+    private static long positions (ByteBuffer[] data) {
+        long total = 0;
+        if (data != null) {
+            for (ByteBuffer buffer : data)
+                total += buffer.position();
+        }
+        return total;
+    }
+
+    private boolean sendCommandRetrying (ByteBuffer command,
+            ByteBuffer[] data, int dataLength, boolean in, Deadline deadline)
     throws IOException {
         command.mark();
-        data.mark();
+        int[] marks = null;
+        if (data != null) {
+            marks = new int[ data.length ];
+            for (int idx = 0; idx < data.length; idx++)
+                marks[ idx ] = data[ idx ].position();
+        }
 
         for (int retry = 2; retry >= 0; retry--) try {
             command.reset();
-            data.reset();
+            if (data != null) {
+                for (int idx = 0; idx < data.length; idx++)
+                    data[ idx ].position( marks[ idx ] );
+            }
+
+            long before = positions( data );
+            boolean ok = driver.sendSegments(
+                    command, data, dataLength, in, deadline );
+
+            if (data != null) {
+                long moved = positions( data ) - before;
+                if (in) metrics.bytesRead.add( moved );
+                else metrics.bytesWritten.add( moved );
+            }
 
-            boolean ok = driver.sendCommand( command, data, dataLength, in );
-            if (ok) return;
+            if (ok) return true;
 
             break;
         } catch (UsbMassStorageDriver.RecoverableException caught) {
             log.warn( "caught recoverable USBMS error", caught );
+            congested = true;
 
             if (retry <= 0) throw caught;
-            else continue;
+            deadline.check( "retrying command" );
+
+            metrics.retries.increment();
+            continue;
         }
 
         log.trace( "command failed, sending REQUEST SENSE" );
+        metrics.requestSenses.increment();
         ByteBuffer sense = ByteBuffer.allocate( 252 );
         ByteBuffer cbd = ByteBuffer.allocate( 6 );
         cbd.put( 0, (byte) 0x03 ); // REQUEST SENSE
         cbd.put( 4, (byte) sense.capacity() ); // ALLOCATION LENGTH
-        if (!driver.sendCommand( cbd, sense, true )) {
-            log.error( "command failed and REQUEST SENSE also failed" );
-            throw new IOException(
-                    "command failed and retrieving error code also failed" );
+
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "REQUEST_SENSE", TraceRecorder.CAT_SCSI );
+        try {
+            if (!driver.sendCommand( cbd, sense,
+                        sense.remaining(), true, deadline )) {
+                log.error( "command failed and REQUEST SENSE also failed" );
+                throw new IOException(
+                        "command failed and retrieving error code also failed" );
+            }
+        } finally {
+            span.end();
         }
 
         throw new ScsiException( sense.array() );
     }
 
-    public synchronized void rawRead (ByteBuffer dst, long offset, int count)
+    /** Sends TEST UNIT READY, which fails unless the device is present
+     * and ready for media access.
+     */
+    void testUnitReady (Deadline deadline)
+    throws IOException {
+        ByteBuffer cbd = ByteBuffer.allocate( 6 ); // TEST UNIT READY
+        sendCommand( cbd, null, 0, false, deadline );
+    }
+
+    public void rawRead (ByteBuffer dst, long offset, int count)
+    throws IOException {
+        rawRead( dst, offset, count, Deadline.NONE );
+    }
+
+    public void rawRead (ByteBuffer dst,
+            long offset, int count, Deadline deadline)
     throws IOException {
+        ByteBuffer cbd = blockCommand( true, dst, offset, count );
+        if (cbd == null) return;
+
+        transfer( readSizer, cbd, dst, count, true, deadline );
+    }
+
+    /** Sets whether every block transfer is sent as READ (16) or
+     * WRITE (16), overriding the transfer.longCommands quirk.
+     */
+    void setLongCommands (boolean longCommands) {
+        this.longCommands = longCommands;
+    }
+
+    /** Validates a block range and builds a READ or WRITE command for
+     * it, using the 10-byte form whenever the range fits, since that is
+     * all some devices understand, unless long commands are forced.
+     * Returns null if there is nothing to transfer.
+     */
+    private ByteBuffer blockCommand (boolean in,
+            ByteBuffer data, long offset, int count) {
+        ByteBuffer cbd = blockCommand( in, offset, count );
+
+        String name = in ? "dst" : "src";
+        if (cbd == null) {
+            return null;
+        } else if (data == null) {
+            throw new IllegalArgumentException( name + " may not be null" );
+        } else if (data.remaining() < (long) count * blockSize) {
+            throw new IllegalArgumentException(
+                    name + " buffer is not large enough" );
+        }
+
+        return cbd;
+    }
+
+    private ByteBuffer blockCommand (boolean in, long offset, int count) {
+        String op = in ? "read" : "write";
+
         if (offset < 0) {
             throw new IllegalArgumentException( "offset may not be negative" );
         } else if (offset >= blockCount) {
             throw new IllegalArgumentException(
                     "offset is beyond end of volume" );
-        } else if (offset > Math.pow(2, 32) - 1) {
-            throw new UnsupportedOperationException(
-                    "only 32-bit LBAs are supported" );
         }
 
         if (count < 0) {
             throw new IllegalArgumentException( "count may not be negative" );
         } else if (count == 0) {
-            return;
+            return null;
         } else if (count > blockCount - offset) {
             throw new IllegalArgumentException(
-                    "cannot read past end of volume" );
-        } else if (count > Math.pow(2, 16) - 1) {
-            throw new UnsupportedOperationException(
-                    "only 16-bit read lengths are supported" );
+                    "cannot " + op + " past end of volume" );
         }
 
-        if (dst == null) {
-            throw new IllegalArgumentException( "dst may not be null" );
-        } else if (dst.remaining() < count * blockSize) {
-            throw new IllegalArgumentException( "dst buffer is not large enough" );
+        if (longCommands || offset > 0xFFFFFFFFL || count > 0xFFFF) {
+            ByteBuffer cbd = ByteBuffer.allocate( 16 );
+            cbd.order( ByteOrder.BIG_ENDIAN );
+            cbd.put( 0, (byte)(in ? 0x88 : 0x8A) ); // READ (16) or WRITE (16)
+            cbd.putLong( 2, offset ); // LOGICAL BLOCK ADDRESS
+            cbd.putInt( 10, count );  // TRANSFER LENGTH
+            return cbd;
         }
 
         ByteBuffer cbd = ByteBuffer.allocate( 10 );
         cbd.order( ByteOrder.BIG_ENDIAN );
-        cbd.put( 0, (byte) 0x28 ); // READ (10)
+        cbd.put( 0, (byte)(in ? 0x28 : 0x2A) ); // READ (10) or WRITE (10)
         cbd.putInt( 2, (int) offset ); // LOGICAL BLOCK ADDRESS
         cbd.putShort( 7, (short) count );  // TRANSFER LENGTH
+        return cbd;
+    }
 
-        sendCommand( cbd, dst, count * blockSize, true );
+    /** Sends a block transfer command and feeds the outcome to the sizer
+     * which chose its length.
+     */
+    private void transfer (TransferSizer sizer, ByteBuffer cbd,
+            ByteBuffer data, int count, boolean in, Deadline deadline)
+    throws IOException {
+        transfer( sizer, cbd, new ByteBuffer[] { data }, count, in, deadline );
     }
 
+    private void transfer (TransferSizer sizer, ByteBuffer cbd,
+            ByteBuffer[] data, int count, boolean in, Deadline deadline)
+    throws IOException {
+        final long start = System.nanoTime();
+
+        try {
+            sendSegments( cbd, data, count * blockSize, in, deadline );
+        } catch (IOException caught) {
+            // CHECK CONDITION says nothing about the transfer size, but
+            // timeouts and transport errors do
+            if (congested || !(caught instanceof ScsiException)) {
+                sizeFailed( sizer );
+            }
+            throw caught;
+        }
 
-    public synchronized int read (ByteBuffer dst, long offset, long count)
+        if (congested) {
+            sizeFailed( sizer );
+        } else {
+            sizer.succeeded( count, System.nanoTime() - start );
+            updateSizeMetrics();
+        }
+    }
+
+    private void sizeFailed (TransferSizer sizer) {
+        sizer.failed();
+        metrics.transferSizeReductions.increment();
+        updateSizeMetrics();
+    }
+
+    private void updateSizeMetrics() {
+        metrics.readTransferBlocks = readSizer.current();
+        metrics.writeTransferBlocks = writeSizer.current();
+    }
+
+
+    public int read (ByteBuffer dst, long offset, long count)
+    throws IOException {
+        return read( dst, offset, count, Deadline.NONE );
+    }
+
+    public int read (ByteBuffer dst,
+            long offset, long count, Deadline deadline)
     throws IOException {
         if (offset < 0) {
             throw new IllegalArgumentException( "offset may not be negative" );
@@ -211,7 +516,7 @@ class ScsiDriver {
             if (drop != 0) blockCount--;
 
             // don't read too much at once
-            blockCount = Math.min( blockCount, MAX_READ_BLOCKS );
+            blockCount = Math.min( blockCount, readSizer.current() );
 
             if (log.isTraceEnabled()) {
                 log.trace( String.format(
@@ -220,15 +525,17 @@ class ScsiDriver {
                     ));
             }
 
-            rawRead( dst, blockOffset, blockCount );
+            metrics.directReads.increment();
+            rawRead( dst, blockOffset, blockCount, deadline );
             return blockCount * blockSize;
         }
 
         buffer.clear();
 
         // don't read more than will fit in the read buffer
-        if (blockCount > BUFFER_BLOCKS) {
-            blockCount = BUFFER_BLOCKS;
+        int bufferLimit = Math.min( BUFFER_BLOCKS, readSizer.current() );
+        if (blockCount > bufferLimit) {
+            blockCount = bufferLimit;
             drop = 0;
         }
 
@@ -239,7 +546,8 @@ class ScsiDriver {
                 ));
         }
 
-        rawRead( buffer, blockOffset, blockCount );
+        metrics.bufferedReads.increment();
+        rawRead( buffer, blockOffset, blockCount, deadline );
 
         buffer.flip();
         buffer.position( skip );
@@ -252,47 +560,131 @@ class ScsiDriver {
 
 
 
-    public synchronized void rawWrite (ByteBuffer src, long offset, int count)
+    public void rawWrite (ByteBuffer src, long offset, int count)
     throws IOException {
-        if (offset < 0) {
-            throw new IllegalArgumentException( "offset may not be negative" );
-        } else if (offset >= blockCount) {
-            throw new IllegalArgumentException(
-                    "offset is beyond end of volume" );
-        } else if (offset > Math.pow(2, 32) - 1) {
-            throw new UnsupportedOperationException(
-                    "only 32-bit LBAs are supported" );
-        }
+        rawWrite( src, offset, count, Deadline.NONE );
+    }
 
-        if (count < 0) {
-            throw new IllegalArgumentException( "count may not be negative" );
-        } else if (count == 0) {
-            return;
-        } else if (count > blockCount - offset) {
-            throw new IllegalArgumentException(
-                    "cannot read past end of volume" );
-        } else if (count > Math.pow(2, 16) - 1) {
-            throw new UnsupportedOperationException(
-                    "only 16-bit read lengths are supported" );
-        }
+    public void rawWrite (ByteBuffer src,
+            long offset, int count, Deadline deadline)
+    throws IOException {
+        ByteBuffer cbd = blockCommand( false, src, offset, count );
+        if (cbd == null) return;
 
-        if (src == null) {
-            throw new IllegalArgumentException( "src may not be null" );
-        } else if (src.remaining() < count * blockSize) {
-            throw new IllegalArgumentException( "src buffer is not large enough" );
-        }
+        transfer( writeSizer, cbd, src, count, false, deadline );
+    }
 
-        ByteBuffer cbd = ByteBuffer.allocate( 10 );
-        cbd.order( ByteOrder.BIG_ENDIAN );
-        cbd.put( 0, (byte) 0x2A ); // WRITE (10)
-        cbd.putInt( 2, (int) offset ); // LOGICAL BLOCK ADDRESS
-        cbd.putShort( 7, (short) count );  // TRANSFER LENGTH
 
-        sendCommand( cbd, src, count * blockSize, false );
+    /** Reads blocks without blocking the calling thread.
+     *
+     * The future completes once the data is in {@code dst}, whose position
+     * is then advanced past it. Unlike {@link #rawRead}, this does not
+     * take part in transfer size adaptation, and the future completes on
+     * a USB event thread. See {@link UsbMassStorageDriver#sendCommandAsync}.
+     */
+    public CompletableFuture<Void> rawReadAsync (ByteBuffer dst,
+            long offset, int count) {
+        return rawReadAsync( dst, offset, count, Deadline.NONE );
+    }
+
+    CompletableFuture<Void> rawReadAsync (ByteBuffer dst,
+            long offset, int count, Deadline deadline) {
+        ByteBuffer cbd = blockCommand( true, dst, offset, count );
+        if (cbd == null) return CompletableFuture.completedFuture( null );
+
+        return sendCommandAsync( cbd, dst, count * blockSize, true, deadline );
+    }
+
+    /** Writes blocks without blocking the calling thread.
+     *
+     * @see #rawReadAsync
+     */
+    public CompletableFuture<Void> rawWriteAsync (ByteBuffer src,
+            long offset, int count) {
+        return rawWriteAsync( src, offset, count, Deadline.NONE );
+    }
+
+    CompletableFuture<Void> rawWriteAsync (ByteBuffer src,
+            long offset, int count, Deadline deadline) {
+        ByteBuffer cbd = blockCommand( false, src, offset, count );
+        if (cbd == null) return CompletableFuture.completedFuture( null );
+
+        return sendCommandAsync( cbd, src, count * blockSize, false, deadline );
+    }
+
+    private CompletableFuture<Void> sendCommandAsync (ByteBuffer command,
+            ByteBuffer data, int dataLength, boolean in, Deadline deadline) {
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+        sendCommandAsync( command, data, dataLength, in, deadline, 2, result );
+        return result;
     }
 
+    private void sendCommandAsync (final ByteBuffer command,
+            final ByteBuffer data, final int dataLength, final boolean in,
+            final Deadline deadline,
+            final int retries, final CompletableFuture<Void> result) {
+        final byte opcode = command.get( command.position() );
+        final ByteBuffer sense = ByteBuffer.allocate( 252 );
+        final int before = data.position();
+        final long start = System.nanoTime();
+
+        driver.sendCommandAsync( command.duplicate(),
+                data, dataLength, in, sense, deadline ).whenComplete(
+            new BiConsumer<UsbMassStorageDriver.CommandStatus, Throwable>() {
+                @Override
+                public void accept (UsbMassStorageDriver.CommandStatus status,
+                        Throwable error) {
+                    boolean ok = error == null && status.passed();
+                    metrics.recordCommand( opcode,
+                            System.nanoTime() - start, ok );
+
+                    if (error instanceof UsbMassStorageDriver.RecoverableException
+                            && retries > 0) {
+                        log.warn( "caught recoverable USBMS error", error );
+                        metrics.retries.increment();
+                        sendCommandAsync( command, data, dataLength, in,
+                                deadline, retries - 1, result );
+                        return;
+                    }
+
+                    if (error != null) {
+                        result.completeExceptionally( error );
+                        return;
+                    }
+
+                    int moved = data.position() - before;
+                    if (in) metrics.bytesRead.add( moved );
+                    else metrics.bytesWritten.add( moved );
+
+                    ProgressTracker tracker = progress;
+                    if (tracker != null) tracker.record( moved );
+
+                    if (ok) {
+                        result.complete( null );
+                        return;
+                    }
+
+                    metrics.requestSenses.increment();
+                    if (status.senseValid()) {
+                        result.completeExceptionally(
+                                new ScsiException( sense.array() ));
+                    } else {
+                        log.error( "command failed and REQUEST SENSE also failed" );
+                        result.completeExceptionally( new IOException(
+                                "command failed and retrieving error code also failed" ));
+                    }
+                }
+            });
+    }
+
+
+    public int write (ByteBuffer src, long offset, long count)
+    throws IOException {
+        return write( src, offset, count, Deadline.NONE );
+    }
 
-    public synchronized int write (ByteBuffer src, long offset, long count)
+    public int write (ByteBuffer src,
+            long offset, long count, Deadline deadline)
     throws IOException {
         if (offset < 0) {
             throw new IllegalArgumentException( "offset may not be negative" );
@@ -344,7 +736,7 @@ class ScsiDriver {
             if (drop != 0) blockCount--;
 
             // don't write too much at once
-            blockCount = Math.min( blockCount, MAX_WRITE_BLOCKS );
+            blockCount = Math.min( blockCount, writeSizer.current() );
 
             if (log.isTraceEnabled()) {
                 log.trace( String.format(
@@ -353,15 +745,19 @@ class ScsiDriver {
                     ));
             }
 
-            rawWrite( src, blockOffset, blockCount );
+            metrics.directWrites.increment();
+            rawWrite( src, blockOffset, blockCount, deadline );
             return blockCount * blockSize;
         }
 
         buffer.clear();
 
-        // don't write more than will fit in the buffer
-        if (blockCount > BUFFER_BLOCKS) {
-            blockCount = BUFFER_BLOCKS;
+        // don't write more than will fit in the buffer, and take no more
+        // from the source than the blocks that will be written hold
+        int bufferLimit = Math.min( BUFFER_BLOCKS, writeSizer.current() );
+        if (blockCount > bufferLimit) {
+            blockCount = bufferLimit;
+            count = Math.min( count, (long) blockCount * blockSize - skip );
             drop = 0;
         }
 
@@ -372,19 +768,283 @@ class ScsiDriver {
                 ));
         }
 
+        metrics.bufferedWrites.increment();
         if (skip != 0 || drop != 0) {
             log.trace( "reading to get unaligned block contents" );
-            rawRead( buffer, blockOffset, blockCount );
+            metrics.readModifyWrites.increment();
+            rawRead( buffer, blockOffset, blockCount, deadline );
             buffer.rewind();
         }
 
         src.get( buffer.array(), skip, (int) count );
         buffer.limit( blockCount * blockSize );
 
-        rawWrite( buffer, blockOffset, blockCount );
-        return buffer.position() - skip;
+        rawWrite( buffer, blockOffset, blockCount, deadline );
+        return (int) count;
+    }
+
+
+
+    /** Reads whole blocks, in as few commands as the current transfer
+     * size allows.
+     */
+    void readBlocks (ByteBuffer dst,
+            long offset, int count, Deadline deadline)
+    throws IOException {
+        while (count > 0) {
+            int chunk = Math.min( count, readSizer.current() );
+            rawRead( dst, offset, chunk, deadline );
+            offset += chunk;
+            count -= chunk;
+        }
     }
 
+    /** Writes whole blocks, in as few commands as the current transfer
+     * size allows.
+     */
+    void writeBlocks (ByteBuffer src,
+            long offset, int count, Deadline deadline)
+    throws IOException {
+        while (count > 0) {
+            int chunk = Math.min( count, writeSizer.current() );
+            rawWrite( src, offset, chunk, deadline );
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    /** Reads into a sequence of buffers with a single READ command.
+     *
+     * The command covers the blocks spanning {@code count} bytes from
+     * {@code offset}, up to the current transfer size, and its data is
+     * scattered across the buffers in order. Returns the number of bytes
+     * read, which may be less than {@code count}.
+     *
+     * When the read starts on a block boundary and the buffers line up
+     * with USB packets, the data phase goes straight into them with an
+     * IRP per buffer, stopping at the last whole block. Otherwise it goes
+     * through a bounce buffer.
+     */
+    public long read (ByteBuffer[] dsts, int first, int length,
+            long offset, long count, Deadline deadline)
+    throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException( "offset may not be negative" );
+        } else if (offset >= size) {
+            return -1;
+        }
+
+        if (count < 0) {
+            throw new IllegalArgumentException( "count may not be negative" );
+        } else if (count == 0) {
+            return 0;
+        } else if (count > size - offset) {
+            throw new IllegalArgumentException( "cannot read past end of volume" );
+        } else if (count > remaining( dsts, first, length )) {
+            throw new IllegalArgumentException( "dst buffers are not large enough" );
+        }
+
+        long blockOffset = offset / blockSize;
+        int skip = (int)( offset % blockSize );
+        int blockCount = (int) Math.min( readSizer.current(),
+                (count + skip + blockSize - 1) / blockSize );
+        int span = (int) Math.min( count, (long) blockCount * blockSize - skip );
+
+        if (log.isTraceEnabled()) {
+            log.trace( String.format(
+                    "reading vectored blockOffset=0x%08x blockCount=0x%04x"
+                        + " skip=%d span=%d buffers=%d",
+                    blockOffset, blockCount, skip, span, length
+                ));
+        }
+
+        int whole = span / blockSize;
+        ByteBuffer[] segments = skip == 0 && whole > 0
+            ? segments( dsts, first, length, whole * blockSize, true )
+            : null;
+        if (segments != null) {
+            log.trace( "reading vectored directly" );
+            metrics.vectoredReads.increment();
+            transfer( readSizer, blockCommand( true, blockOffset, whole ),
+                    segments, whole, true, deadline );
+            advance( dsts, first, length, segments );
+            return whole * blockSize;
+        }
+
+        ByteBuffer staging = staging( blockCount );
+        metrics.vectoredReads.increment();
+        rawRead( staging, blockOffset, blockCount, deadline );
+
+        staging.flip();
+        staging.position( skip );
+        staging.limit( skip + span );
+
+        for (int idx = first; idx < first + length
+                && staging.hasRemaining(); idx++) {
+            ByteBuffer dst = dsts[ idx ];
+            ByteBuffer part = staging.duplicate();
+            part.limit( part.position()
+                    + Math.min( dst.remaining(), part.remaining() ));
+
+            staging.position( part.limit() );
+            dst.put( part );
+        }
+
+        return span;
+    }
+
+    /** Writes from a sequence of buffers with a single WRITE command.
+     *
+     * The buffers are gathered in order into the blocks spanning
+     * {@code count} bytes from {@code offset}, up to the current transfer
+     * size. Partial blocks at either end are read first. Returns the
+     * number of bytes written, which may be less than {@code count}.
+     *
+     * As for reads, buffers which line up with blocks and USB packets are
+     * sent directly with an IRP each, up to the last whole block.
+     */
+    public long write (ByteBuffer[] srcs, int first, int length,
+            long offset, long count, Deadline deadline)
+    throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException( "offset may not be negative" );
+        } else if (offset >= size) {
+            return -1;
+        }
+
+        if (count < 0) {
+            throw new IllegalArgumentException( "count may not be negative" );
+        } else if (count == 0) {
+            return 0;
+        } else if (count > size - offset) {
+            throw new IllegalArgumentException( "cannot write past end of volume" );
+        } else if (count > remaining( srcs, first, length )) {
+            throw new IllegalArgumentException( "src buffers are not large enough" );
+        }
+
+        long blockOffset = offset / blockSize;
+        int skip = (int)( offset % blockSize );
+        int blockCount = (int) Math.min( writeSizer.current(),
+                (count + skip + blockSize - 1) / blockSize );
+        int span = (int) Math.min( count, (long) blockCount * blockSize - skip );
+        int drop = blockCount * blockSize - skip - span;
+
+        if (log.isTraceEnabled()) {
+            log.trace( String.format(
+                    "writing vectored blockOffset=0x%08x blockCount=0x%04x"
+                        + " skip=%d drop=%d buffers=%d",
+                    blockOffset, blockCount, skip, drop, length
+                ));
+        }
+
+        int whole = span / blockSize;
+        ByteBuffer[] segments = skip == 0 && whole > 0
+            ? segments( srcs, first, length, whole * blockSize, false )
+            : null;
+        if (segments != null) {
+            log.trace( "writing vectored directly" );
+            metrics.vectoredWrites.increment();
+            transfer( writeSizer, blockCommand( false, blockOffset, whole ),
+                    segments, whole, false, deadline );
+            advance( srcs, first, length, segments );
+            return whole * blockSize;
+        }
+
+        ByteBuffer staging = staging( blockCount );
+        metrics.vectoredWrites.increment();
+
+        // only the partial blocks at the ends need their old contents
+        if (skip != 0 || drop != 0) {
+            log.trace( "reading to get unaligned block contents" );
+            metrics.readModifyWrites.increment();
+        }
+        if (skip != 0) {
+            staging.limit( blockSize );
+            rawRead( staging, blockOffset, 1, deadline );
+        }
+        if (drop != 0 && (skip == 0 || blockCount > 1)) {
+            staging.limit( blockCount * blockSize );
+            staging.position( (blockCount - 1) * blockSize );
+            rawRead( staging, blockOffset + blockCount - 1, 1, deadline );
+        }
+
+        staging.limit( skip + span );
+        staging.position( skip );
+        for (int idx = first; idx < first + length
+                && staging.hasRemaining(); idx++) {
+            ByteBuffer src = srcs[ idx ];
+            ByteBuffer part = src.duplicate();
+            part.limit( part.position()
+                    + Math.min( part.remaining(), staging.remaining() ));
+
+            src.position( part.limit() );
+            staging.put( part );
+        }
+
+        staging.position( 0 );
+        staging.limit( blockCount * blockSize );
+        rawWrite( staging, blockOffset, blockCount, deadline );
+        return span;
+    }
+
+    /** Returns views of the buffers covering the next {@code count}
+     * bytes, for use as the segments of one data phase, or null if they
+     * can't carry it directly: one isn't array-backed, or a view other
+     * than the last ends partway through a USB packet.
+     */
+    private ByteBuffer[] segments (ByteBuffer[] buffers,
+            int first, int length, int count, boolean in) {
+        int packet = driver.packetSize( in );
+        List<ByteBuffer> views = new ArrayList<ByteBuffer>();
+
+        int left = count;
+        for (int idx = first; idx < first + length && left > 0; idx++) {
+            ByteBuffer buffer = buffers[ idx ];
+            int share = Math.min( left, buffer.remaining() );
+            if (share == 0) continue;
+
+            left -= share;
+            if (!buffer.hasArray()
+                    || (left > 0 && packet > 0 && share % packet != 0))
+                return null;
+
+            ByteBuffer view = buffer.duplicate();
+            view.limit( view.position() + share );
+            views.add( view );
+        }
+
+        return views.toArray( new ByteBuffer[ views.size() ] );
+    }
+
+    /** Moves the buffers' positions to where their segment views ended. */
+    private static void advance (ByteBuffer[] buffers,
+            int first, int length, ByteBuffer[] segments) {
+        int next = 0;
+        for (int idx = first; idx < first + length
+                && next < segments.length; idx++) {
+            if (!buffers[ idx ].hasRemaining()) continue;
+            buffers[ idx ].position( segments[ next++ ].position() );
+        }
+    }
+
+    /** Returns a cleared array-backed buffer for the given number of
+     * blocks, reusing the bounce buffer when it is large enough.
+     */
+    private ByteBuffer staging (int blocks) {
+        if (blocks <= BUFFER_BLOCKS) {
+            buffer.clear();
+            return buffer;
+        }
+
+        return ByteBuffer.allocate( blocks * blockSize );
+    }
+
+    static long remaining (ByteBuffer[] buffers, int first, int length) {
+        long total = 0;
+        for (int idx = first; idx < first + length; idx++)
+            total += buffers[ idx ].remaining();
+        return total;
+    }
 
 
     public void close()
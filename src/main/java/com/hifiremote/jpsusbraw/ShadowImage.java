@@ -0,0 +1,144 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** A local copy of the settings file backing memory mappings.
+ *
+ * The copy lives in a temporary file holding two images: the working
+ * image, which callers map, and a clean image of what the device holds.
+ * Changes made through mappings are found by comparing the two in
+ * chunks, so no page-level dirty tracking is needed.
+ *
+ * All methods except {@link #map} are only called on the device's I/O
+ * thread.
+ */
+class ShadowImage
+implements Closeable {
+    private static final Logger log = LogManager.getLogger();
+
+    private final File file;
+    private final RandomAccessFile stream;
+    private final FileChannel channel;
+    private final int length;
+    private final int chunk;
+    private final MappedByteBuffer working, clean;
+
+    /** Creates an empty image of the given length, compared in chunks of
+     * the given size.
+     */
+    ShadowImage (int length, int chunk)
+    throws IOException {
+        this.length = length;
+        this.chunk = chunk;
+
+        file = File.createTempFile( "jpsusbraw-", ".img" );
+        file.deleteOnExit();
+
+        stream = new RandomAccessFile( file, "rw" );
+        channel = stream.getChannel();
+        stream.setLength( 2L * length );
+
+        working = channel.map( FileChannel.MapMode.READ_WRITE, 0, length );
+        clean = channel.map( FileChannel.MapMode.READ_WRITE, length, length );
+
+        if (log.isDebugEnabled())
+            log.debug( "created shadow image " + file );
+    }
+
+    /** Maps part of the working image. */
+    MappedByteBuffer map (FileChannel.MapMode mode, long position, long size)
+    throws IOException {
+        return channel.map( mode, position, size );
+    }
+
+    /** Records data read from or written to the device in both images. */
+    void written (long position, ByteBuffer data) {
+        put( working, position, data );
+        put( clean, position, data );
+    }
+
+    /** Records data from the working image as written to the device. */
+    void synced (long position, ByteBuffer data) {
+        put( clean, position, data );
+    }
+
+    private static void put (MappedByteBuffer image,
+            long position, ByteBuffer data) {
+        ByteBuffer target = image.duplicate();
+        target.position( (int) position );
+        target.put( data.duplicate() );
+    }
+
+    /** Returns copies of the runs of chunks which differ between the
+     * working and clean images.
+     */
+    List<FileRange> dirtyRanges() {
+        List<FileRange> ranges = new ArrayList<FileRange>();
+        ByteBuffer mine = working.duplicate();
+        ByteBuffer theirs = clean.duplicate();
+
+        int start = -1;
+        for (int offset = 0; offset < length; offset += chunk) {
+            int end = Math.min( length, offset + chunk );
+            mine.limit( end );
+            mine.position( offset );
+            theirs.limit( end );
+            theirs.position( offset );
+
+            if (!mine.equals( theirs )) {
+                if (start < 0) start = offset;
+            } else if (start >= 0) {
+                ranges.add( copy( start, offset ));
+                start = -1;
+            }
+        }
+
+        if (start >= 0)
+            ranges.add( copy( start, length ));
+
+        return ranges;
+    }
+
+    private FileRange copy (int start, int end) {
+        ByteBuffer source = working.duplicate();
+        source.limit( end );
+        source.position( start );
+
+        byte[] data = new byte[ end - start ];
+        source.get( data );
+        return new FileRange( start, ByteBuffer.wrap( data ));
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        try {
+            stream.close();
+        } finally {
+            if (!file.delete())
+                log.warn( "unable to delete shadow image " + file );
+        }
+    }
+}
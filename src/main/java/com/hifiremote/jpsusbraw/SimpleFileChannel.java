@@ -95,6 +95,15 @@ extends FileChannel {
         return implRead( dst, position );
     }
 
+    /** Reads into a sequence of buffers from the given position.
+     *
+     * Unlike {@link #implRead(ByteBuffer, long)}, this may be called with
+     * no bytes remaining in any of the buffers.
+     */
+    protected abstract long implRead (ByteBuffer[] dsts,
+            int offset, int length, long position)
+    throws IOException;
+
     @Override
     public long read (ByteBuffer[] dsts, int offset, int length)
     throws IOException {
@@ -104,16 +113,16 @@ extends FileChannel {
         if (length < 0 || length > dsts.length - offset)
             throw new IndexOutOfBoundsException();
 
-        long total = 0;
-        for (int idx = offset; idx < offset + length; idx++) {
-            ByteBuffer buffer = dsts[ idx ];
-            long count = this.read( buffer );
+        if (!this.isOpen())
+            throw new ClosedChannelException();
+
+        if (this.position >= this.size())
+            return -1;
 
-            if (count < 0)
-                return count;
+        long total = implRead( dsts, offset, length, this.position );
 
-            total += count;
-        }
+        if (total > 0)
+            this.position += total;
 
         return total;
     }
@@ -143,6 +152,13 @@ extends FileChannel {
         return this.implWrite( src, position );
     }
 
+    /** Writes from a sequence of buffers at the given position, which is
+     * within the file.
+     */
+    protected abstract long implWrite (ByteBuffer[] srcs,
+            int offset, int length, long position)
+    throws IOException;
+
     @Override
     public long write (ByteBuffer[] srcs, int offset, int length)
     throws IOException {
@@ -152,12 +168,14 @@ extends FileChannel {
         if (length < 0 || length > srcs.length - offset)
             throw new IndexOutOfBoundsException();
 
-        long total = 0;
-        for (int idx = offset; idx < offset + length; idx++) {
-            ByteBuffer buffer = srcs[ idx ];
-            total += this.write( buffer );
-        }
+        if (!this.isOpen())
+            throw new ClosedChannelException();
 
+        if (this.position >= this.size())
+            throw new IOException("can't write past end of file");
+
+        long total = implWrite( srcs, offset, length, this.position );
+        this.position += total;
         return total;
     }
 
@@ -188,7 +206,8 @@ extends FileChannel {
 
 
     @Override
-    public void force (boolean metaData) {
+    public void force (boolean metaData)
+    throws IOException {
         // no-op; we don't perform write caching
     }
 
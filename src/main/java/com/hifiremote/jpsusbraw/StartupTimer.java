@@ -0,0 +1,84 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Records when the phases of a command's startup finish, such as the
+ * first byte arriving from the device, relative to the JVM's start.
+ *
+ * As with {@link TraceRecorder}, at most one timer is active per JVM and
+ * {@link #mark} does nothing while none is. Only the first mark of each
+ * name is kept.
+ */
+final class StartupTimer {
+    static final String MAIN       = "main";
+    static final String PARSED     = "arguments parsed";
+    static final String LOGGING    = "logging ready";
+    static final String DEVICE     = "device open";
+    static final String FIRST_BYTE = "first byte";
+
+    private static volatile StartupTimer active = null;
+
+    private final Map<String, Long> marks = new LinkedHashMap<String, Long>();
+
+    private StartupTimer() {
+    }
+
+    /** Starts timing, with {@link #MAIN} reached at the given
+     * {@link System#nanoTime} reading.
+     */
+    static void start (long main) {
+        StartupTimer timer = new StartupTimer();
+        timer.put( MAIN, main );
+        active = timer;
+    }
+
+    /** Notes that a phase has finished. */
+    static void mark (String name) {
+        StartupTimer timer = active;
+        if (timer != null) timer.put( name, System.nanoTime() );
+    }
+
+    /** Stops timing and prints each phase's time since the JVM started,
+     * if a timer was active.
+     */
+    static void report (PrintStream out) {
+        StartupTimer timer = active;
+        active = null;
+        if (timer == null) return;
+
+        long now = System.nanoTime();
+
+        // The management classes are loaded only now, after every mark,
+        // so they don't add to the times they measure.
+        double uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+
+        synchronized (timer.marks) {
+            for (Map.Entry<String, Long> entry : timer.marks.entrySet()) {
+                out.println( String.format( "%9.1f ms  %s",
+                            uptime - (now - entry.getValue()) / 1e6,
+                            entry.getKey() ));
+            }
+        }
+        out.println( String.format( "%9.1f ms  %s", uptime, "done" ));
+    }
+
+    private void put (String name, long time) {
+        synchronized (marks) {
+            if (!marks.containsKey( name )) marks.put( name, time );
+        }
+    }
+}
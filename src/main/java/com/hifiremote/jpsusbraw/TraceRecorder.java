@@ -0,0 +1,207 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** Records a session timeline in the Chrome trace-event format.
+ *
+ * Spans are recorded as complete ({@code "ph":"X"}) events, which the
+ * Chrome and Perfetto viewers nest by time containment on each thread.
+ * At most one recorder is active per JVM; while none is, {@link #begin}
+ * returns a shared no-op span so instrumented code pays almost nothing.
+ *
+ * The format is described in "Trace Event Format" by Google, available
+ * from the Catapult project documentation.
+ */
+public class TraceRecorder {
+    static final String CAT_CLI  = "cli";
+    static final String CAT_FILE = "file";
+    static final String CAT_SCSI = "scsi";
+    static final String CAT_BOT  = "bot";
+
+    private static volatile TraceRecorder active = null;
+
+    private final long origin = System.nanoTime();
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<Span>();
+    private final Map<Long, String> threads =
+        new TreeMap<Long, String>();
+
+    /** Starts recording a new session, discarding any active one. */
+    public static TraceRecorder start() {
+        TraceRecorder recorder = new TraceRecorder();
+        active = recorder;
+        return recorder;
+    }
+
+    /** Stops recording and returns the recorder for the session, if any. */
+    public static TraceRecorder stop() {
+        TraceRecorder recorder = active;
+        active = null;
+        return recorder;
+    }
+
+    static boolean isActive() {
+        return active != null;
+    }
+
+    /** Begins a span on the current thread.
+     * The caller must {@link Span#end()} it, normally in a finally block.
+     */
+    static Span begin (String name, String category) {
+        TraceRecorder recorder = active;
+        if (recorder == null) return Span.NONE;
+
+        return new Span( recorder, name, category );
+    }
+
+
+    /** Writes the recorded session as a trace-event JSON object. */
+    public void writeJson (Writer out)
+    throws IOException {
+        out.write( "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n" );
+
+        boolean first = true;
+        synchronized (threads) {
+            for (Map.Entry<Long, String> entry : threads.entrySet()) {
+                if (!first) out.write( ",\n" );
+                first = false;
+
+                out.write( "{\"ph\":\"M\",\"pid\":1,\"tid\":" );
+                out.write( Long.toString( entry.getKey() ) );
+                out.write( ",\"name\":\"thread_name\",\"args\":{\"name\":" );
+                string( out, entry.getValue() );
+                out.write( "}}" );
+            }
+        }
+
+        for (Span span : spans) {
+            if (!first) out.write( ",\n" );
+            first = false;
+
+            out.write( "{\"ph\":\"X\",\"pid\":1,\"tid\":" );
+            out.write( Long.toString( span.thread ) );
+            out.write( ",\"name\":" );
+            string( out, span.name );
+            out.write( ",\"cat\":" );
+            string( out, span.category );
+            out.write( ",\"ts\":" );
+            micros( out, span.start - origin );
+            out.write( ",\"dur\":" );
+            micros( out, span.end - span.start );
+
+            if (span.args != null) {
+                out.write( ",\"args\":{" );
+                boolean firstArg = true;
+                for (Map.Entry<String, Object> arg : span.args.entrySet()) {
+                    if (!firstArg) out.write( ',' );
+                    firstArg = false;
+
+                    string( out, arg.getKey() );
+                    out.write( ':' );
+                    if (arg.getValue() instanceof Number) {
+                        out.write( arg.getValue().toString() );
+                    } else {
+                        string( out, String.valueOf( arg.getValue() ) );
+                    }
+                }
+                out.write( '}' );
+            }
+
+            out.write( '}' );
+        }
+
+        out.write( "\n]}\n" );
+    }
+
+    private static void micros (Writer out, long nanos)
+    throws IOException {
+        out.write( Long.toString( nanos / 1000 ) );
+        out.write( '.' );
+        out.write( String.format( "%03d", nanos % 1000 ) );
+    }
+
+    private static void string (Writer out, String value)
+    throws IOException {
+        out.write( '"' );
+        for (int idx = 0; idx < value.length(); idx++) {
+            char ch = value.charAt( idx );
+            if (ch == '"' || ch == '\\') {
+                out.write( '\\' );
+                out.write( ch );
+            } else if (ch < 0x20) {
+                out.write( String.format( "\\u%04x", (int) ch ) );
+            } else {
+                out.write( ch );
+            }
+        }
+        out.write( '"' );
+    }
+
+    private void record (Span span) {
+        spans.add( span );
+
+        synchronized (threads) {
+            if (!threads.containsKey( span.thread )) {
+                threads.put( span.thread, Thread.currentThread().getName() );
+            }
+        }
+    }
+
+
+    /** A single timed operation on one thread. */
+    static class Span {
+        static final Span NONE = new Span( null, null, null );
+
+        private final TraceRecorder recorder;
+        private final String name, category;
+        private final long thread;
+        private final long start;
+        private long end;
+        private Map<String, Object> args = null;
+
+        private Span (TraceRecorder recorder, String name, String category) {
+            this.recorder = recorder;
+            this.name = name;
+            this.category = category;
+
+            if (recorder != null) {
+                this.thread = Thread.currentThread().getId();
+                this.start = System.nanoTime();
+            } else {
+                this.thread = 0;
+                this.start = 0;
+            }
+        }
+
+        /** Attaches an argument shown in the viewer's detail pane. */
+        Span arg (String key, Object value) {
+            if (recorder == null) return this;
+
+            if (args == null) args = new TreeMap<String, Object>();
+            args.put( key, value );
+            return this;
+        }
+
+        void end() {
+            if (recorder == null) return;
+
+            end = System.nanoTime();
+            recorder.record( this );
+        }
+    }
+}
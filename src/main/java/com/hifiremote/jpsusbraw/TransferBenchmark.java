@@ -0,0 +1,318 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Measures raw transfer throughput across candidate command sizes,
+ * and across the bulk IRP sizes and pipeline depths a command's data
+ * phase can be split into.
+ *
+ * Reads and writes each probe a caller-supplied block range. For
+ * {@link JpsUsbRaw}, reads sweep the settings file, which is harmless,
+ * while writes go to a run of free clusters which no file is using,
+ * so the file system is never changed.
+ */
+public class TransferBenchmark {
+    private static final Logger log = LogManager.getLogger();
+
+    /** Candidate block counts, before alignment filtering. */
+    private static final int[] CANDIDATES = {
+            8, 16, 32, 64, 128, 256, 512, 1024
+        };
+
+    /** Candidate IRP size limits in bytes; the driver cuts each to whole
+     * packets of the pipe.
+     */
+    private static final int[] IRP_CANDIDATES = {
+            16 * 1024, 32 * 1024, 64 * 1024, 128 * 1024, 256 * 1024
+        };
+
+    /** Candidate numbers of data IRPs queued at once. */
+    private static final int[] DEPTH_CANDIDATES = { 1, 2, 4, 8 };
+
+    /** Results within this fraction of the best are considered equal,
+     * in which case the smaller transfer wins.
+     */
+    private static final double TOLERANCE = 0.05;
+
+    private final ScsiDriver storage;
+    private final long readFirst, writeFirst;
+    private final int readBlocks, writeBlocks;
+
+    /** @param readFirst   first block of the range reads may sweep
+     *  @param readBlocks  length of that range
+     *  @param writeFirst  first block of the range writes may overwrite
+     *  @param writeBlocks length of that range, zero if there is none
+     */
+    TransferBenchmark (ScsiDriver storage,
+            long readFirst, int readBlocks, long writeFirst, int writeBlocks) {
+        this.storage = storage;
+        this.readFirst = readFirst;
+        this.readBlocks = readBlocks;
+        this.writeFirst = writeFirst;
+        this.writeBlocks = writeBlocks;
+    }
+
+    /** Returns the candidate block counts usable on this device.
+     *
+     * Each must fit the read range and produce a data phase which is a
+     * whole number of bulk packets, so no transfer ends in a short packet.
+     */
+    int[] candidates() {
+        return candidates( readBlocks );
+    }
+
+    private int[] candidates (int regionBlocks) {
+        int packet = storage.maxPacketSize();
+        int count = 0;
+        int[] result = new int[ CANDIDATES.length ];
+
+        for (int blocks : CANDIDATES) {
+            if (blocks > regionBlocks
+                    || blocks > storage.quirks().maxTransferBlocks()) break;
+            if ((blocks * storage.blockSize()) % packet != 0) continue;
+            result[ count++ ] = blocks;
+        }
+
+        int[] trimmed = new int[ count ];
+        System.arraycopy( result, 0, trimmed, 0, count );
+        return trimmed;
+    }
+
+    /** Runs the probe for every candidate size.
+     *
+     * @param write  whether to probe writes as well as reads
+     * @param passes how many times to sweep the region per candidate
+     */
+    List<Result> run (boolean write, int passes)
+    throws IOException {
+        if (write && candidates( writeBlocks ).length == 0)
+            throw new IOException( "no free space to probe writes in" );
+
+        List<Result> results = new ArrayList<Result>();
+        int[] writable = write ? candidates( writeBlocks ) : new int[ 0 ];
+
+        for (int blocks : candidates()) {
+            results.add( measure( blocks, false, passes ) );
+            for (int fits : writable) {
+                if (fits == blocks) results.add( measure( blocks, true, passes ) );
+            }
+        }
+
+        return results;
+    }
+
+    /** Runs the read probe at one command size for every candidate IRP
+     * size and pipeline depth. IRP sizes past the command's data phase
+     * would split it the same way as the first one that holds it all,
+     * so they are skipped.
+     */
+    List<Result> runPipelining (int blocks, int passes)
+    throws IOException {
+        int bytes = blocks * storage.blockSize();
+        TransferProfile before = storage.transferProfile();
+
+        List<Result> results = new ArrayList<Result>();
+        try {
+            for (int irp : IRP_CANDIDATES) {
+                for (int depth : DEPTH_CANDIDATES) {
+                    storage.applyProfile( before.withPipelining( irp, depth ));
+                    results.add( measure( blocks, false, passes ).pipelined() );
+                }
+                if (irp >= bytes) break;
+            }
+        } finally {
+            storage.applyProfile( before );
+        }
+
+        return results;
+    }
+
+    private Result measure (int blocks, boolean write, int passes)
+    throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate( blocks * storage.blockSize() );
+        LatencyHistogram latency = new LatencyHistogram();
+        long bytes = 0;
+        long elapsed = 0;
+
+        long firstBlock = write ? writeFirst : readFirst;
+        int regionBlocks = write ? writeBlocks : readBlocks;
+
+        for (int pass = 0; pass < passes; pass++) {
+            for (int done = 0; done + blocks <= regionBlocks; done += blocks) {
+                long lba = firstBlock + done;
+
+                buffer.clear();
+                long start = System.nanoTime();
+                if (write) {
+                    storage.rawWrite( buffer, lba, blocks );
+                } else {
+                    storage.rawRead( buffer, lba, blocks );
+                }
+                long nanos = System.nanoTime() - start;
+
+                latency.record( nanos );
+                elapsed += nanos;
+                bytes += buffer.capacity();
+            }
+        }
+
+        Result result = new Result( blocks, write, bytes, elapsed,
+                latency.snapshot(), storage.transferProfile() );
+
+        if (log.isDebugEnabled())
+            log.debug( "benchmark " + result );
+
+        return result;
+    }
+
+    /** Chooses the best block count for one direction of a probe.
+     * Returns 0 if the results contain no measurement for it.
+     */
+    static int best (List<Result> results, boolean write) {
+        double top = 0;
+        for (Result result : results) {
+            if (result.isWrite() == write && !result.isPipelining())
+                top = Math.max( top, result.bytesPerSecond() );
+        }
+
+        int choice = 0;
+        for (Result result : results) {
+            if (result.isWrite() != write || result.isPipelining()) continue;
+            if (result.bytesPerSecond() < top * (1 - TOLERANCE)) continue;
+
+            if (choice == 0 || result.blocks() < choice)
+                choice = result.blocks();
+        }
+
+        return choice;
+    }
+
+    /** Chooses the best pipelining among the results of
+     * {@link #runPipelining}, as a profile otherwise like the given one.
+     * Among results within the tolerance of the best, the shallowest
+     * pipeline wins, then the largest IRPs, as they cost the least.
+     * Returns the given profile if there are no such results.
+     */
+    static TransferProfile bestPipelining (List<Result> results,
+            TransferProfile profile) {
+        double top = 0;
+        for (Result result : results) {
+            if (result.isPipelining())
+                top = Math.max( top, result.bytesPerSecond() );
+        }
+
+        Result choice = null;
+        for (Result result : results) {
+            if (!result.isPipelining()) continue;
+            if (result.bytesPerSecond() < top * (1 - TOLERANCE)) continue;
+
+            if (choice == null
+                    || result.pipelineDepth() < choice.pipelineDepth()
+                    || (result.pipelineDepth() == choice.pipelineDepth()
+                        && result.irpBytes() > choice.irpBytes()))
+                choice = result;
+        }
+
+        if (choice == null) return profile;
+        return profile.withPipelining(
+                choice.irpBytes(), choice.pipelineDepth() );
+    }
+
+
+    /** Measurements for one direction, command size and pipelining. */
+    public static class Result {
+        private final int blocks;
+        private final boolean write;
+        private final long bytes, nanos;
+        private final LatencyHistogram.Snapshot latency;
+        private final int irpBytes, pipelineDepth;
+        private final boolean pipelining;
+
+        Result (int blocks, boolean write, long bytes, long nanos,
+                LatencyHistogram.Snapshot latency, TransferProfile profile) {
+            this( blocks, write, bytes, nanos, latency,
+                    profile.irpBytes(), profile.pipelineDepth(), false );
+        }
+
+        private Result (int blocks, boolean write, long bytes, long nanos,
+                LatencyHistogram.Snapshot latency,
+                int irpBytes, int pipelineDepth, boolean pipelining) {
+            this.blocks = blocks;
+            this.write = write;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.latency = latency;
+            this.irpBytes = irpBytes;
+            this.pipelineDepth = pipelineDepth;
+            this.pipelining = pipelining;
+        }
+
+        /** Returns this result marked as part of a pipelining probe. */
+        Result pipelined() {
+            return new Result( blocks, write, bytes, nanos, latency,
+                    irpBytes, pipelineDepth, true );
+        }
+
+        public int blocks() {
+            return blocks;
+        }
+
+        public boolean isWrite() {
+            return write;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        public double bytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+        }
+
+        public LatencyHistogram.Snapshot latency() {
+            return latency;
+        }
+
+        public int irpBytes() {
+            return irpBytes;
+        }
+
+        public int pipelineDepth() {
+            return pipelineDepth;
+        }
+
+        /** Whether this measures pipelining rather than command size. */
+        public boolean isPipelining() {
+            return pipelining;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%-5s blocks=%-4d irp=%-3dK depth=%d"
+                        + " %9.1f KiB/s  mean=%dus p99<=%dus",
+                    write ? "write" : "read", blocks,
+                    irpBytes / 1024, pipelineDepth,
+                    bytesPerSecond() / 1024,
+                    latency.getMeanMicros(), latency.getP99Micros()
+                );
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** An on-disk record of the chunks of a transfer which have completed.
+ *
+ * Each completed chunk is appended to the journal with the SHA-256
+ * digest of its data and synced to disk, so an interrupted transfer can
+ * be resumed by a later run with the same key. Journals are kept in
+ * {@code ~/.jpsusbraw/journals} unless the {@code jpsusbraw.journals}
+ * system property names another directory.
+ */
+class TransferJournal
+implements Closeable {
+    private static final Logger log = LogManager.getLogger();
+
+    /** Bytes of the file covered by each journal entry. */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String HEADER = "# JpsUsbRaw transfer journal";
+
+    private final File file;
+    private final long size;
+    private final byte[][] digests;
+    private final BitSet resumed = new BitSet();
+    private final FileOutputStream out;
+
+    private TransferJournal (File file, long size)
+    throws IOException {
+        this.file = file;
+        this.size = size;
+        this.digests = new byte[ (int)( (size + CHUNK_SIZE - 1) / CHUNK_SIZE ) ][];
+
+        boolean valid = file.isFile() && load();
+        if (!valid) {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException( "unable to create directory " + dir );
+        }
+
+        out = new FileOutputStream( file, valid );
+        if (!valid) append( HEADER + "\nsize=" + size + " chunk=" + CHUNK_SIZE + "\n" );
+    }
+
+    static File journalDir() {
+        String path = System.getProperty( "jpsusbraw.journals" );
+        if (path != null) return new File( path );
+
+        return new File( new File( System.getProperty( "user.home" ),
+                    ".jpsusbraw" ), "journals" );
+    }
+
+    /** Opens the journal for a transfer, creating it if there is none or
+     * the existing one doesn't match the transfer size.
+     */
+    static TransferJournal open (String key, long size)
+    throws IOException {
+        return new TransferJournal(
+                new File( journalDir(), key + ".journal" ), size );
+    }
+
+    /** Reads the entries of an existing journal. Returns false if the
+     * journal is for a different transfer shape. A torn last line, left
+     * by a crash mid-append, is ignored.
+     */
+    private boolean load()
+    throws IOException {
+        BufferedReader in = new BufferedReader( new InputStreamReader(
+                    new FileInputStream( file ), StandardCharsets.US_ASCII ));
+        try {
+            String line = in.readLine();
+            if (!HEADER.equals( line )) return false;
+
+            line = in.readLine();
+            if (!("size=" + size + " chunk=" + CHUNK_SIZE).equals( line ))
+                return false;
+
+            while (null != (line = in.readLine())) {
+                String[] fields = line.split( " " );
+                if (fields.length != 2 || fields[ 1 ].length() != 64) continue;
+
+                int chunk;
+                byte[] digest;
+                try {
+                    chunk = Integer.parseInt( fields[ 0 ] );
+                    digest = unhex( fields[ 1 ] );
+                } catch (NumberFormatException caught) {
+                    continue;
+                }
+                if (chunk < 0 || chunk >= digests.length) continue;
+
+                digests[ chunk ] = digest;
+                resumed.set( chunk );
+            }
+        } finally {
+            in.close();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug( String.format(
+                    "resuming from journal %s with %d of %d chunks done",
+                    file, resumed.cardinality(), digests.length
+                ));
+        }
+
+        return true;
+    }
+
+    int chunks() {
+        return digests.length;
+    }
+
+    long offset (int chunk) {
+        return (long) chunk * CHUNK_SIZE;
+    }
+
+    int length (int chunk) {
+        return (int) Math.min( CHUNK_SIZE, size - offset( chunk ));
+    }
+
+    boolean isDone (int chunk) {
+        return digests[ chunk ] != null;
+    }
+
+    /** Whether the chunk was completed by an earlier run. */
+    boolean isResumed (int chunk) {
+        return resumed.get( chunk );
+    }
+
+    int resumedCount() {
+        return resumed.cardinality();
+    }
+
+    /** Whether the digest of some data matches the one recorded. */
+    boolean matches (int chunk, byte[] digest) {
+        return Arrays.equals( digests[ chunk ], digest );
+    }
+
+    /** Records a chunk as complete and syncs the journal to disk. */
+    void record (int chunk, byte[] digest)
+    throws IOException {
+        digests[ chunk ] = digest;
+        resumed.clear( chunk );
+        append( chunk + " " + hex( digest ) + "\n" );
+    }
+
+    private void append (String text)
+    throws IOException {
+        out.write( text.getBytes( StandardCharsets.US_ASCII ));
+        out.getFD().sync();
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        out.close();
+    }
+
+    /** Closes and removes the journal once the transfer is complete. */
+    void delete()
+    throws IOException {
+        close();
+        if (!file.delete())
+            log.warn( "unable to delete transfer journal " + file );
+    }
+
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance( "SHA-256" );
+        } catch (NoSuchAlgorithmException caught) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException( caught );
+        }
+    }
+
+    static byte[] digest (ByteBuffer data) {
+        MessageDigest digest = newDigest();
+        digest.update( data.duplicate() );
+        return digest.digest();
+    }
+
+    static String hex (byte[] data) {
+        StringBuilder text = new StringBuilder( data.length * 2 );
+        for (byte value : data)
+            text.append( String.format( "%02x", value ));
+        return text.toString();
+    }
+
+    private static byte[] unhex (String text) {
+        byte[] data = new byte[ text.length() / 2 ];
+        for (int idx = 0; idx < data.length; idx++) {
+            data[ idx ] = (byte) Integer.parseInt(
+                    text.substring( idx * 2, idx * 2 + 2 ), 16 );
+        }
+        return data;
+    }
+}
@@ -0,0 +1,192 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Tuned transfer settings for a device model.
+ *
+ * Profiles are produced by {@link JpsUsbRaw#tune} and stored in a
+ * properties file shared by all models, keyed by {@link DeviceModel#key()}.
+ * The file is {@code ~/.jpsusbraw/transfer-profiles.properties} unless
+ * the {@code jpsusbraw.profiles} system property names another.
+ */
+public class TransferProfile {
+    private static final Logger log = LogManager.getLogger();
+
+    private final int readBlocks, writeBlocks;
+    private final int irpBytes, pipelineDepth;
+
+    /** A profile with the default IRP size and pipeline depth. */
+    public TransferProfile (int readBlocks, int writeBlocks) {
+        this( readBlocks, writeBlocks, UsbMassStorageDriver.MAX_IRP_BYTES,
+                UsbMassStorageDriver.PIPELINE_DEPTH );
+    }
+
+    public TransferProfile (int readBlocks, int writeBlocks,
+            int irpBytes, int pipelineDepth) {
+        if (readBlocks < 1 || writeBlocks < 1)
+            throw new IllegalArgumentException( "block counts must be positive" );
+        if (irpBytes < UsbMassStorageDriver.MIN_IRP_BYTES)
+            throw new IllegalArgumentException( "IRP size is too small" );
+        if (pipelineDepth < 1)
+            throw new IllegalArgumentException( "depth must be positive" );
+
+        this.readBlocks = readBlocks;
+        this.writeBlocks = writeBlocks;
+        this.irpBytes = irpBytes;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /** Blocks per READ command. */
+    public int readBlocks() {
+        return readBlocks;
+    }
+
+    /** Blocks per WRITE command. */
+    public int writeBlocks() {
+        return writeBlocks;
+    }
+
+    /** Largest bulk IRP a data phase is split into. */
+    public int irpBytes() {
+        return irpBytes;
+    }
+
+    /** Data IRPs queued on a pipe at once. */
+    public int pipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /** Returns this profile with another IRP size and pipeline depth. */
+    TransferProfile withPipelining (int irpBytes, int pipelineDepth) {
+        return new TransferProfile(
+                readBlocks, writeBlocks, irpBytes, pipelineDepth );
+    }
+
+    @Override
+    public String toString() {
+        return "read=" + readBlocks + " write=" + writeBlocks
+            + " irp=" + irpBytes + " depth=" + pipelineDepth;
+    }
+
+
+    static File profileFile() {
+        String path = System.getProperty( "jpsusbraw.profiles" );
+        if (path != null) return new File( path );
+
+        return new File( new File( System.getProperty( "user.home" ),
+                    ".jpsusbraw" ), "transfer-profiles.properties" );
+    }
+
+    private static Properties loadAll (File file)
+    throws IOException {
+        Properties props = new Properties();
+        if (!file.isFile()) return props;
+
+        InputStream in = new FileInputStream( file );
+        try {
+            props.load( in );
+        } finally {
+            in.close();
+        }
+
+        return props;
+    }
+
+    /** Returns the stored profile for a model, or null if it has none.
+     * An unreadable or malformed profile is logged and ignored.
+     */
+    static TransferProfile load (DeviceModel model) {
+        File file = profileFile();
+        String key = model.key();
+
+        try {
+            Properties props = loadAll( file );
+            String read = props.getProperty( key + ".read.blocks" );
+            String write = props.getProperty( key + ".write.blocks" );
+            if (read == null || write == null) return null;
+
+            // profiles saved before pipelining was tuned have no IRP shape
+            String irp = props.getProperty( key + ".irp.bytes" );
+            String depth = props.getProperty( key + ".irp.depth" );
+
+            TransferProfile profile = new TransferProfile(
+                    Integer.parseInt( read ), Integer.parseInt( write ),
+                    irp != null ? Integer.parseInt( irp )
+                        : UsbMassStorageDriver.MAX_IRP_BYTES,
+                    depth != null ? Integer.parseInt( depth )
+                        : UsbMassStorageDriver.PIPELINE_DEPTH );
+
+            if (log.isDebugEnabled())
+                log.debug( "loaded transfer profile " + key + ": " + profile );
+
+            return profile;
+        } catch (IOException caught) {
+            log.warn( "unable to read transfer profiles from " + file, caught );
+        } catch (IllegalArgumentException caught) {
+            log.warn( "ignoring invalid transfer profile " + key, caught );
+        }
+
+        return null;
+    }
+
+    /** Stores this as the profile for a model, replacing any existing one. */
+    void save (DeviceModel model)
+    throws IOException {
+        File file = profileFile();
+        Properties props = loadAll( file );
+
+        String key = model.key();
+        props.setProperty( key + ".read.blocks", Integer.toString( readBlocks ));
+        props.setProperty( key + ".write.blocks", Integer.toString( writeBlocks ));
+        props.setProperty( key + ".irp.bytes", Integer.toString( irpBytes ));
+        props.setProperty( key + ".irp.depth", Integer.toString( pipelineDepth ));
+        storeAll( file, props );
+
+        if (log.isDebugEnabled())
+            log.debug( "saved transfer profile " + key + ": " + this );
+    }
+
+    private static void storeAll (File file, Properties props)
+    throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException( "unable to create directory " + dir );
+
+        // write to a temporary file and rename it over the old one, so
+        // other processes and crashes never see a partial file
+        File temp = File.createTempFile( "profiles-", ".tmp", dir );
+        try {
+            OutputStream out = new FileOutputStream( temp );
+            try {
+                props.store( out, "JpsUsbRaw transfer profiles" );
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo( file ))
+                throw new IOException( "unable to replace " + file );
+        } finally {
+            if (temp.exists()) temp.delete();
+        }
+    }
+}
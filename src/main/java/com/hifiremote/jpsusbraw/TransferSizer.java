@@ -0,0 +1,93 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Chooses the number of blocks to move per SCSI command.
+ *
+ * This is an additive-increase/multiplicative-decrease controller like
+ * the one TCP uses for its congestion window. Each command which used
+ * the full current size and completed quickly grows the size by a fixed
+ * step; each timeout or transport error halves it. Commands the device
+ * merely rejects, with a STALL and CHECK CONDITION, leave it alone.
+ * Devices behind slow hubs therefore settle on transfers they can
+ * finish, while fast devices work up to large ones.
+ */
+class TransferSizer {
+    private static final Logger log = LogManager.getLogger();
+
+    /** Commands completing faster than this are eligible to grow. */
+    private static final long FAST_COMMAND_NS = 250L * 1000 * 1000;
+
+    private final String name;
+    private final int minBlocks, maxBlocks, stepBlocks;
+    private volatile int current;
+
+    TransferSizer (String name,
+            int initialBlocks, int minBlocks, int maxBlocks, int stepBlocks) {
+        if (minBlocks < 1 || minBlocks > maxBlocks)
+            throw new IllegalArgumentException( "invalid block limits" );
+
+        this.name = name;
+        this.minBlocks = minBlocks;
+        this.maxBlocks = maxBlocks;
+        this.stepBlocks = stepBlocks;
+        this.current = Math.max( minBlocks, Math.min( maxBlocks, initialBlocks ));
+    }
+
+    /** Returns the maximum number of blocks to send in one command. */
+    int current() {
+        return current;
+    }
+
+    /** Restarts adaptation from the given size, e.g. a tuned profile. */
+    synchronized void reset (int blocks) {
+        current = Math.max( minBlocks, Math.min( maxBlocks, blocks ));
+    }
+
+    /** Records a command which completed without transport trouble. */
+    synchronized void succeeded (int blocks, long nanos) {
+        // only grow when the limit was actually what bounded the command
+        if (blocks < current || nanos > FAST_COMMAND_NS)
+            return;
+
+        int next = Math.min( maxBlocks, current + stepBlocks );
+        if (next != current) {
+            if (log.isTraceEnabled()) {
+                log.trace( String.format(
+                        "%s transfer size %d -> %d blocks after %d us",
+                        name, current, next, nanos / 1000
+                    ));
+            }
+
+            current = next;
+        }
+    }
+
+    /** Records a timeout or transport error. */
+    synchronized void failed() {
+        int next = Math.max( minBlocks, current / 2 );
+
+        if (next != current) {
+            if (log.isDebugEnabled()) {
+                log.debug( String.format(
+                        "%s transfer size %d -> %d blocks after failure",
+                        name, current, next
+                    ));
+            }
+
+            current = next;
+        }
+    }
+}
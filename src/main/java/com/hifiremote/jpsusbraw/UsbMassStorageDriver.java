@@ -13,10 +13,27 @@ package com.hifiremote.jpsusbraw;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import javax.usb.UsbConfiguration;
 import javax.usb.UsbControlIrp;
@@ -31,6 +48,9 @@ import javax.usb.UsbInterfacePolicy;
 import javax.usb.UsbIrp;
 import javax.usb.UsbPipe;
 import javax.usb.UsbStallException;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
 import javax.usb.util.UsbUtil;
 
 import org.apache.logging.log4j.Logger;
@@ -48,8 +68,34 @@ class UsbMassStorageDriver
 implements Closeable {
     private static final Logger log = LogManager.getLogger();
 
+    /** Timeout for control transfers during recovery. */
     private static final long IRP_TIMEOUT_MS = 5000;
 
+    /** Allowance for every bulk phase regardless of its length. */
+    private static final long PHASE_BASE_MS = 1000;
+
+    /** Slowest bandwidths we expect from a working device. Writes are
+     * lower because the device may program its EEPROM before it sends
+     * the CSW, so the status phase of a write is scaled by them too.
+     */
+    private static final long MIN_READ_BYTES_PER_SEC  = 64 * 1024;
+    private static final long MIN_WRITE_BYTES_PER_SEC = 16 * 1024;
+
+    /** Largest data IRP submitted at once unless a transfer profile
+     * says otherwise; longer data phases are split into several. IRPs
+     * are cut to whole packets, so only the last IRP of a phase can end
+     * in a short packet.
+     */
+    static final int MAX_IRP_BYTES = 128 * 1024;
+
+    /** Data phases shorter than this go in a single IRP. */
+    static final int MIN_IRP_BYTES = 16 * 1024;
+
+    /** Most data IRPs queued on a pipe at once within one command,
+     * unless a transfer profile says otherwise.
+     */
+    static final int PIPELINE_DEPTH = 4;
+
     public static class RecoverableException
     extends IOException {
         RecoverableException (String message) {
@@ -57,21 +103,75 @@ implements Closeable {
         }
     }
 
+    private static class IrpTimeoutException
+    extends UsbException {
+        private static final long serialVersionUID = 1L;
+
+        IrpTimeoutException (String message) {
+            super( message );
+        }
+    }
+
+    /** Fires the phase timeouts of asynchronous commands. */
+    private static final ScheduledThreadPoolExecutor timers =
+        new ScheduledThreadPoolExecutor( 1, new ThreadFactory() {
+                @Override
+                public Thread newThread (Runnable task) {
+                    Thread thread = new Thread( task, "jpsusbraw-timeout" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            });
+
+    static {
+        timers.setRemoveOnCancelPolicy( true );
+    }
+
     private final UsbDevice device;
+    private final DeviceModel model;
+    private final DeviceQuirks quirks;
+    private final DeviceMetrics metrics;
     private final UsbInterface iface;
     private final UsbPipe pipeIn;
     private final UsbPipe pipeOut;
     private final Random rand = new Random();
 
-    private boolean needResetRecovery = false;
+    // the IRP limit and pipeline depth in use; see setPipelining
+    private volatile int irpBytes = MAX_IRP_BYTES;
+    private volatile int pipelineDepth = PIPELINE_DEPTH;
 
-    UsbMassStorageDriver (final UsbDevice device, final boolean force)
-    throws IOException {
-        this.device = device;
+    private volatile boolean needResetRecovery = false;
 
-        // locate the Mass Storage Bulk-Only interface
-        UsbInterface foundIface = null;
+    // only one command may use the Bulk-Only transport at a time; async
+    // commands queue here while another is in flight
+    private final Object transport = new Object();
+    private final Queue<AsyncCommand> waiting = new ArrayDeque<AsyncCommand>();
+    private AsyncCommand active = null;
+    private boolean transportBusy = false;
+    private boolean closed = false;
+
+    private final Map<UsbIrp, IrpCallback> callbacks =
+        Collections.synchronizedMap( new IdentityHashMap<UsbIrp, IrpCallback>() );
+
+    private final UsbPipeListener pipeListener = new UsbPipeListener() {
+            @Override
+            public void dataEventOccurred (UsbPipeDataEvent event) {
+                dispatch( event.getUsbIrp() );
+            }
+
+            @Override
+            public void errorEventOccurred (UsbPipeErrorEvent event) {
+                if (event.hasUsbIrp()) dispatch( event.getUsbIrp() );
+            }
+        };
+
+    /** Returns the device's Mass Storage Bulk-Only interface using the
+     * SCSI command set, or null if it has none.
+     */
+    static UsbInterface bulkOnlyInterface (UsbDevice device) {
         UsbConfiguration config = device.getActiveUsbConfiguration();
+        if (config == null) return null;
+
         for (UsbInterface cand : (List<UsbInterface>) config.getUsbInterfaces()) {
             UsbInterfaceDescriptor desc = cand.getUsbInterfaceDescriptor();
 
@@ -99,11 +199,23 @@ implements Closeable {
                         ));
                 }
 
-                foundIface = cand;
-                break;
+                return cand;
             }
         }
 
+        return null;
+    }
+
+    UsbMassStorageDriver (final UsbDevice device, final boolean force,
+            final DeviceMetrics metrics)
+    throws IOException {
+        this.device = device;
+        this.model = new DeviceModel( device.getUsbDeviceDescriptor() );
+        this.quirks = DeviceQuirks.forModel( model );
+        this.metrics = metrics;
+
+        // locate the Mass Storage Bulk-Only interface
+        UsbInterface foundIface = bulkOnlyInterface( device );
         if (foundIface == null)
             throw new IllegalArgumentException("device has no suitable interface");
 
@@ -187,33 +299,135 @@ implements Closeable {
                 );
         }
 
+        pipeIn.addUsbPipeListener( pipeListener );
+        pipeOut.addUsbPipeListener( pipeListener );
+
         log.debug( "successfully initialized USB Mass Storage device" );
     }
 
+    /** Creates a driver with no USB device behind it, for a subclass
+     * which carries commands itself by overriding {@link #sendSegments}.
+     */
+    UsbMassStorageDriver (DeviceModel model, DeviceMetrics metrics) {
+        this.device = null;
+        this.model = model;
+        this.quirks = DeviceQuirks.forModel( model );
+        this.metrics = metrics;
+        this.iface = null;
+        this.pipeIn = null;
+        this.pipeOut = null;
+    }
+
+
+    /** Returns the timeout for a bulk phase moving the given number of
+     * bytes, limited to what remains of the deadline.
+     */
+    private static long phaseTimeout (int bytes, boolean in, Deadline deadline) {
+        long rate = in ? MIN_READ_BYTES_PER_SEC : MIN_WRITE_BYTES_PER_SEC;
+        return deadline.limit( PHASE_BASE_MS + bytes * 1000L / rate );
+    }
 
-    private void submitIrp (UsbPipe pipe, UsbIrp irp)
+    private void submitIrp (UsbPipe pipe, UsbIrp irp, long timeoutMs)
     throws UsbException {
+        if (timeoutMs <= 0)
+            throw new IrpTimeoutException( "deadline expired before USB IRP" );
+
         pipe.asyncSubmit( irp );
-        irp.waitUntilComplete( IRP_TIMEOUT_MS );
+        awaitIrp( pipe, irp, timeoutMs );
+    }
+
+    /** Waits for an IRP already submitted to a pipe. */
+    private void awaitIrp (UsbPipe pipe, UsbIrp irp, long timeoutMs)
+    throws UsbException {
+        if (timeoutMs <= 0) {
+            pipe.abortAllSubmissions();
+            needResetRecovery = true;
+            throw new IrpTimeoutException( "deadline expired during USB IRP" );
+        }
+
+        irp.waitUntilComplete( timeoutMs );
 
         if (!irp.isComplete()) {
-            throw new UsbException(
-                    "USB IRP timed out after " + IRP_TIMEOUT_MS + " ms" );
+            // cancel the transfer so it can't complete into a later
+            // command's buffers, and resynchronize before the next command
+            pipe.abortAllSubmissions();
+            needResetRecovery = true;
+
+            throw new IrpTimeoutException(
+                    "USB IRP timed out after " + timeoutMs + " ms" );
         }
+
+        if (irp.isUsbException()) throw irp.getUsbException();
     }
 
-    private void submitDeviceIrp (UsbControlIrp irp)
+    private void submitDeviceIrp (UsbControlIrp irp, long timeoutMs)
     throws UsbException {
+        if (timeoutMs <= 0)
+            throw new IrpTimeoutException( "deadline expired before USB IRP" );
+
         device.asyncSubmit( irp );
-        irp.waitUntilComplete( IRP_TIMEOUT_MS );
+        irp.waitUntilComplete( timeoutMs );
 
         if (!irp.isComplete()) {
-            throw new UsbException(
-                    "USB IRP timed out after " + IRP_TIMEOUT_MS + " ms" );
+            throw new IrpTimeoutException(
+                    "USB IRP timed out after " + timeoutMs + " ms" );
         }
+
+        if (irp.isUsbException()) throw irp.getUsbException();
+    }
+
+    DeviceModel model() {
+        return model;
+    }
+
+    DeviceQuirks quirks() {
+        return quirks;
+    }
+
+    int irpBytes() {
+        return irpBytes;
+    }
+
+    int pipelineDepth() {
+        return pipelineDepth;
     }
 
-    private void clearPipe (UsbPipe pipe)
+    /** Sets the largest data IRP and how many are queued at once. The
+     * IRP size is cut to whole packets of each pipe when used.
+     */
+    void setPipelining (int irpBytes, int pipelineDepth) {
+        if (irpBytes < MIN_IRP_BYTES)
+            throw new IllegalArgumentException(
+                    "IRP size may not be less than " + MIN_IRP_BYTES );
+        if (pipelineDepth < 1)
+            throw new IllegalArgumentException( "depth must be positive" );
+
+        this.irpBytes = irpBytes;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /** Returns the smaller of the bulk endpoints' maximum packet sizes. */
+    int maxPacketSize() {
+        return Math.min(
+                pipeIn.getUsbEndpoint().getUsbEndpointDescriptor()
+                    .wMaxPacketSize() & 0xFFFF,
+                pipeOut.getUsbEndpoint().getUsbEndpointDescriptor()
+                    .wMaxPacketSize() & 0xFFFF
+            );
+    }
+
+    /** Wraps a transport error, preserving whether it was a timeout. */
+    private static IOException wrap (String message, UsbException caught) {
+        if (caught instanceof IrpTimeoutException) {
+            return new DeviceTimeoutException(
+                    message + ": " + caught.getMessage(), caught );
+        } else {
+            return new IOException(
+                    message + ": " + caught.getMessage(), caught );
+        }
+    }
+
+    private void clearPipe (UsbPipe pipe, Deadline deadline)
     throws UsbException {
         pipe.abortAllSubmissions();
 
@@ -226,10 +440,10 @@ implements Closeable {
                 pipe.getUsbEndpoint()
                     .getUsbEndpointDescriptor()
                     .bEndpointAddress()
-            ));
+            ), deadline.limit( IRP_TIMEOUT_MS ));
     }
 
-    private void resetBulkOnly()
+    private void resetBulkOnly (Deadline deadline)
     throws UsbException {
         submitDeviceIrp( device.createUsbControlIrp(
                 (byte)( UsbConst.REQUESTTYPE_TYPE_CLASS
@@ -239,15 +453,21 @@ implements Closeable {
                 (byte) 0x00, // no parameter for this request
                 iface.getUsbInterfaceDescriptor()
                     .bInterfaceNumber()
-            ));
+            ), deadline.limit( IRP_TIMEOUT_MS ));
     }
 
-    private void resetRecovery()
+    private void resetRecovery (Deadline deadline)
     throws UsbException {
-        // BBB 5.3.4
-        resetBulkOnly();
-        clearPipe( pipeIn );
-        clearPipe( pipeOut );
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "reset recovery", TraceRecorder.CAT_BOT );
+        try {
+            // BBB 5.3.4
+            resetBulkOnly( deadline );
+            clearPipe( pipeIn, deadline );
+            clearPipe( pipeOut, deadline );
+        } finally {
+            span.end();
+        }
     }
 
 
@@ -264,24 +484,93 @@ implements Closeable {
     public boolean sendCommand (ByteBuffer command,
             ByteBuffer data, int dataLength, boolean in)
     throws IOException {
-        if (needResetRecovery) {
-            log.trace( "performing needed reset recovery" );
+        return sendCommand( command, data, dataLength, in, Deadline.NONE );
+    }
 
-            try {
-                this.resetRecovery();
-                needResetRecovery = false;
-            } catch (UsbException caught) {
-                log.error( "reset recovery failed", caught );
-                throw new IOException(
-                        "USBMS Bulk-Only reset recovery was needed"
-                            + " and failed: " + caught.getMessage(),
-                        caught
-                    );
+    /** Sends a command, bounding each phase by the given deadline.
+     *
+     * Each bulk phase gets a timeout scaled to its length, limited to the
+     * time remaining. A phase which times out is aborted and the device
+     * is reset before the next command. If asynchronous commands are in
+     * flight, this waits for them to finish first.
+     *
+     * @throws DeviceTimeoutException if a phase or the deadline expired
+     */
+    public boolean sendCommand (ByteBuffer command,
+            ByteBuffer data, int dataLength, boolean in, Deadline deadline)
+    throws IOException {
+        checkCommand( command, data, dataLength );
+
+        return sendSegments( command,
+                data == null ? null : new ByteBuffer[] { data },
+                dataLength, in, deadline );
+    }
+
+    /** Sends a command whose data phase is split across several buffers.
+     *
+     * The data runs through the buffers in order, taking the remaining
+     * bytes of each until {@code dataLength} is reached, and each buffer
+     * gets its own IRPs, so nothing is copied. Since only the last IRP of
+     * a phase may end in a short packet, every buffer but the last one
+     * used must hold a whole number of packets; see {@link #packetSize}.
+     * Positions are advanced past the data the device reports moving.
+     *
+     * @see #sendCommand(ByteBuffer, ByteBuffer, int, boolean, Deadline)
+     */
+    boolean sendSegments (ByteBuffer command,
+            ByteBuffer[] data, int dataLength, boolean in, Deadline deadline)
+    throws IOException {
+        checkSegments( command, data, dataLength, packetSize( in ));
+
+        acquireTransport( deadline );
+        try {
+            return transact( command, data, dataLength, in, deadline );
+        } finally {
+            releaseTransport();
+        }
+    }
+
+    /** Returns the maximum packet size of the bulk endpoint for one
+     * direction.
+     */
+    int packetSize (boolean in) {
+        return packetSize( in ? pipeIn : pipeOut );
+    }
+
+    private static int packetSize (UsbPipe pipe) {
+        return pipe.getUsbEndpoint().getUsbEndpointDescriptor()
+            .wMaxPacketSize() & 0x07FF;
+    }
+
+    private static void checkSegments (ByteBuffer command,
+            ByteBuffer[] data, int dataLength, int packet) {
+        checkCommand( command, null, dataLength );
+        if (data == null) return;
+
+        int left = dataLength;
+        for (ByteBuffer segment : data) {
+            if (left == 0) break;
+
+            if (segment == null)
+                throw new IllegalArgumentException( "data buffer may not be null" );
+
+            if (!segment.hasArray())
+                throw new IllegalArgumentException( "data buffer must be array-backed" );
+
+            int length = Math.min( left, segment.remaining() );
+            left -= length;
+            if (left > 0 && packet > 0 && length % packet != 0) {
+                throw new IllegalArgumentException(
+                        "data buffer holds a partial packet" );
             }
         }
 
-        log.trace( "preparing to send command" );
+        if (left > 0)
+            throw new IllegalArgumentException( "data buffer too small" );
+    }
 
+    private static void checkCommand (ByteBuffer command,
+            ByteBuffer data, int dataLength) {
         if (command == null)
             throw new IllegalArgumentException("command may not be null");
 
@@ -296,15 +585,19 @@ implements Closeable {
 
         if (data != null && !data.hasArray())
             throw new IllegalArgumentException("data buffer must be array-backed");
+    }
 
+    /** Builds a Command Block Wrapper, consuming the command buffer. */
+    private ByteBuffer buildCbw (ByteBuffer command,
+            ByteBuffer data, int dataLength, boolean in, int tag)
+    throws IOException {
         ByteBuffer cbw = ByteBuffer.allocate( 31 );
         cbw.order( ByteOrder.LITTLE_ENDIAN );
 
         // write the fixed signature to dCBWSignature
         cbw.putInt( 0, 0x43425355 );
 
-        // write a random tag to dCBWTag
-        final int tag = rand.nextInt();
+        // write the tag to dCBWTag
         cbw.putInt( 4, tag );
         if (log.isTraceEnabled())
             log.trace( String.format( "selected tag %08x", tag ));
@@ -349,54 +642,73 @@ implements Closeable {
             log.trace( str.toString() );
         }
 
+        return cbw;
+    }
+
+    private boolean transact (ByteBuffer command,
+            ByteBuffer[] data, int dataLength, boolean in, Deadline deadline)
+    throws IOException {
+        if (needResetRecovery) {
+            log.trace( "performing needed reset recovery" );
+
+            try {
+                this.resetRecovery( deadline );
+                needResetRecovery = false;
+            } catch (UsbException caught) {
+                log.error( "reset recovery failed", caught );
+                throw wrap( "USBMS Bulk-Only reset recovery was needed"
+                        + " and failed", caught );
+            }
+        }
+
+        log.trace( "preparing to send command" );
+
+        final int tag = rand.nextInt();
+        ByteBuffer cbw = buildCbw( command,
+                data == null ? null : data[ 0 ], dataLength, in, tag );
 
         UsbIrp cbwIrp = pipeOut.createUsbIrp();
         cbwIrp.setData( cbw.array() );
         cbwIrp.setAcceptShortPacket( true );
 
 
-        UsbIrp dataIrp = null;
-        if (data != null) {
-            dataIrp = (in ? pipeIn : pipeOut).createUsbIrp();
-            dataIrp.setData( data.array(), data.position(), dataLength );
-            dataIrp.setAcceptShortPacket( true );
-        }
-
-
         ByteBuffer csw = ByteBuffer.allocate( 13 );
         csw.order( ByteOrder.LITTLE_ENDIAN );
 
-        UsbIrp cswIrp = pipeIn.createUsbIrp();
-        cswIrp.setData( csw.array() );
-        cswIrp.setAcceptShortPacket( true );
-
 
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "CBW", TraceRecorder.CAT_BOT );
         try {
             log.trace( "sending CBW IRP" );
-            submitIrp( pipeOut, cbwIrp );
+            submitIrp( pipeOut, cbwIrp, phaseTimeout( 0, false, deadline ));
         } catch (UsbStallException caught) {
             log.warn( "device STALLed on CBW" );
+            metrics.stalls.increment();
             // BBB 6.6.1 - the CBW is not valid
             // BBB 5.3.1 - host must perform Reset Recovery
             needResetRecovery = true;
             throw new IOException( "error sending command", caught );
         } catch (UsbException caught) {
             log.error( "CBW IRP failed", caught );
-            throw new IOException(
-                    "error sending command: " + caught.getMessage(),
-                    caught
-                );
+            throw wrap( "error sending command", caught );
+        } finally {
+            span.end();
         }
 
-        if (dataIrp != null) try {
-            log.trace( "sending data IRP" );
-            submitIrp( in ? pipeIn : pipeOut, dataIrp );
+        DataPhase phase = new DataPhase();
+        if (data != null) try {
+            span = TraceRecorder.begin(
+                    in ? "data IN" : "data OUT", TraceRecorder.CAT_BOT
+                ).arg( "length", dataLength );
+
+            transferData( data, dataLength, in, deadline, csw, phase );
         } catch (UsbStallException caught) {
             log.warn( "device STALLed on data; continuing to read CSW" );
+            metrics.stalls.increment();
             // BBB 6.7.2 host 3 - clear the Bulk-In pipe and read CSW
             // BBB 6.7.3 host 3 - clear the Buld-Out pipe and read CSW
             try {
-                clearPipe( in ? pipeIn : pipeOut );
+                clearPipe( in ? pipeIn : pipeOut, deadline );
             } catch (UsbException caught2) {
                 log.error( "clearing pipe after data stall failed", caught2 );
                 throw new IOException(
@@ -407,20 +719,45 @@ implements Closeable {
             }
         } catch (UsbException caught) {
             log.error( "data IRP failed", caught );
-            throw new IOException(
-                    "error " + (in ? "receiving" : "sending")
-                        + " data: " + caught.getMessage(),
-                    caught
-                );
+            throw wrap( "error " + (in ? "receiving" : "sending") + " data",
+                    caught );
+        } finally {
+            span.end();
+        }
+
+        // a write's status arrives only once the device has stored the data
+        if (!phase.cswReceived) {
+            receiveCsw( csw, phaseTimeout(
+                        data != null && !in ? dataLength : 0, false, deadline ),
+                    deadline );
         }
 
+        return checkCsw( csw, tag, data, dataLength,
+                phase.failed ? -1 : phase.transferred ).passed();
+    }
+
+    private void receiveCsw (ByteBuffer csw, long cswTimeout, Deadline deadline)
+    throws IOException {
+        UsbIrp cswIrp = pipeIn.createUsbIrp();
+        cswIrp.setData( csw.array() );
+        cswIrp.setAcceptShortPacket( true );
+
+        TraceRecorder.Span span = TraceRecorder.begin(
+                "CSW", TraceRecorder.CAT_BOT );
         try {
             log.trace( "sending CSW IRP" );
-            submitIrp( pipeIn, cswIrp );
+            submitIrp( pipeIn, cswIrp, cswTimeout );
         } catch (UsbStallException caught) {
+            metrics.stalls.increment();
+            if (!quirks.cswStallRetry()) {
+                log.warn( "device STALLed on CSW read" );
+                needResetRecovery = true;
+                throw new RecoverableException( "device requires bulk-only reset" );
+            }
+
             log.warn( "device STALLed on first CSW read, retrying" );
             try {
-                clearPipe( pipeIn );
+                clearPipe( pipeIn, deadline );
             } catch (UsbException caught2) {
                 log.error( "clearing pipe after CSW stall failed", caught2 );
                 throw new IOException(
@@ -435,27 +772,163 @@ implements Closeable {
             cswIrp.setAcceptShortPacket( true );
 
             try {
-                submitIrp( pipeIn, cswIrp );
+                submitIrp( pipeIn, cswIrp, deadline.limit( cswTimeout ));
             } catch (UsbStallException caught2) {
                 log.warn( "device STALLed on second CSW read" );
+                metrics.stalls.increment();
                 // BBB fig 2 - host must perform Reset Recovery
                 needResetRecovery = true;
                 throw new RecoverableException( "device requires bulk-only reset" );
             } catch (UsbException caught2) {
                 log.error( "second CSW IRP failed", caught );
-                throw new IOException(
-                        "error reading status: " + caught2.getMessage(),
-                        caught2
-                    );
+                throw wrap( "error reading status", caught2 );
             }
         } catch (UsbException caught) {
             log.error( "first CSW IRP failed", caught );
-            throw new IOException(
-                    "error reading status: " + caught.getMessage(),
-                    caught
-                );
+            throw wrap( "error reading status", caught );
+        } finally {
+            span.end();
         }
+    }
+
+    /** Progress of a command's data phase. */
+    private static class DataPhase {
+        /** Bytes moved by the IRPs which completed. */
+        int transferred = 0;
+
+        /** Whether an IRP failed, leaving the amount moved unknown. */
+        boolean failed = false;
+
+        /** Whether an IRP queued past the end of the phase got the CSW. */
+        boolean cswReceived = false;
+    }
+
+    /** Returns the length of each IRP in a data phase: enough to spread
+     * it over the pipeline, in whole packets, within the IRP size limits.
+     */
+    private int irpLength (UsbPipe pipe, int dataLength, int depth) {
+        int packet = packetSize( pipe );
+        if (packet == 0 || dataLength <= MIN_IRP_BYTES) return dataLength;
+
+        int length = (dataLength / depth + packet - 1) / packet * packet;
+        length = Math.max( length, MIN_IRP_BYTES / packet * packet );
+        return Math.min( length, irpBytes / packet * packet );
+    }
+
+    /** Runs a data phase as a series of IRPs, keeping up to the
+     * pipeline depth of them queued on the pipe so it moves
+     * straight on to the next as each completes. Each is waited for with
+     * a timeout scaled to its own length. No IRP spans two buffers. The
+     * buffers' positions are left alone for {@link #checkCsw} to advance.
+     *
+     * A short transfer ends the phase early, and the IRPs queued behind
+     * it are aborted; see {@link #drainQueued}.
+     */
+    private void transferData (ByteBuffer[] data, int dataLength,
+            boolean in, Deadline deadline, ByteBuffer csw, DataPhase phase)
+    throws UsbException {
+        UsbPipe pipe = in ? pipeIn : pipeOut;
+        int depth = pipelineDepth;
+        int irpLength = irpLength( pipe, dataLength, depth );
+        Queue<UsbIrp> queued = new ArrayDeque<UsbIrp>();
+
+        int submitted = 0;
+        int segment = 0, offset = 0;
+        try {
+            while (true) {
+                while (queued.size() < depth && submitted < dataLength) {
+                    while (offset == data[ segment ].remaining()) {
+                        segment++;
+                        offset = 0;
+                    }
+
+                    ByteBuffer buffer = data[ segment ];
+                    int length = Math.min( irpLength, Math.min(
+                                buffer.remaining() - offset,
+                                dataLength - submitted ));
+                    UsbIrp irp = pipe.createUsbIrp();
+                    irp.setData( buffer.array(),
+                            buffer.arrayOffset() + buffer.position() + offset,
+                            length );
+                    irp.setAcceptShortPacket( true );
+
+                    if (log.isTraceEnabled()) {
+                        log.trace( String.format(
+                                "queueing data IRP offset=%d length=%d",
+                                submitted, length ));
+                    }
+
+                    pipe.asyncSubmit( irp );
+                    queued.add( irp );
+                    submitted += length;
+                    offset += length;
+                }
+
+                UsbIrp irp = queued.poll();
+                if (irp == null) return;
 
+                awaitIrp( pipe, irp, phaseTimeout( irp.getLength(), in, deadline ));
+                phase.transferred += irp.getActualLength();
+
+                if (irp.getActualLength() < irp.getLength()) {
+                    if (!queued.isEmpty())
+                        phase.cswReceived = drainQueued( pipe, queued, csw );
+                    return;
+                }
+            }
+        } catch (UsbException | RuntimeException caught) {
+            phase.failed = true;
+            // don't leave IRPs to complete into a later command's phases
+            if (!queued.isEmpty()) pipe.abortAllSubmissions();
+            throw caught;
+        }
+    }
+
+    /** Aborts the IRPs still queued after one ended the data phase early.
+     *
+     * On the IN pipe the device may have sent its CSW before the abort
+     * took effect, in which case the first of them to complete holds it;
+     * returns whether so, having copied it into {@code csw}. This waits
+     * for the pipe's event thread, so it must not be called from there.
+     */
+    private boolean drainQueued (UsbPipe pipe,
+            Collection<UsbIrp> queued, ByteBuffer csw) {
+        pipe.abortAllSubmissions();
+
+        boolean received = false;
+        for (UsbIrp late : queued) {
+            // aborted IRPs never complete, so nothing else will remove these
+            callbacks.remove( late );
+
+            if (received || pipe != pipeIn || !late.isComplete()
+                    || late.isUsbException() || late.getActualLength() == 0)
+                continue;
+
+            log.trace( "CSW arrived in a data IRP queued past a short transfer" );
+            System.arraycopy( late.getData(), late.getOffset(), csw.array(),
+                    csw.arrayOffset(), Math.min( late.getActualLength(),
+                        csw.capacity() ));
+            received = true;
+        }
+
+        return received;
+    }
+
+    private CommandStatus checkCsw (ByteBuffer csw, int tag,
+            ByteBuffer data, int dataLength, int transferred)
+    throws IOException {
+        return checkCsw( csw, tag,
+                data == null ? null : new ByteBuffer[] { data },
+                dataLength, transferred );
+    }
+
+    /** Validates a received Command Status Wrapper and advances the data
+     * buffers past the bytes the device reports having transferred, but
+     * never past those the data IRPs actually moved, if that is known.
+     */
+    private CommandStatus checkCsw (ByteBuffer csw, int tag,
+            ByteBuffer[] data, int dataLength, int transferred)
+    throws IOException {
         if (log.isTraceEnabled())
             log.trace( "received CSW " + UsbUtil.toHexString( " ", csw.array() ) );
 
@@ -468,9 +941,10 @@ implements Closeable {
         }
 
         // check dCSWTag matches value from CDW
-        // some UEI devices only copy the low-order two bytes, so accept that
+        // some devices only copy the low-order two bytes; see DeviceQuirks
         int cswTag = csw.getInt( 4 );
-        if (cswTag != tag && cswTag != (tag & 0x0000FFFF)) {
+        if (cswTag != tag && !(quirks.shortCswTag()
+                    && cswTag == (tag & 0x0000FFFF))) {
             log.warn( String.format(
                     "CSW tag mismatch: expected %08x got %08x",
                     tag, csw.getInt( 4 )
@@ -481,31 +955,43 @@ implements Closeable {
 
         // advance the data buffer position by the number of
         // valid bytes transferred from dCSWDataResidue
+        int residue = csw.getInt( 8 );
         if (data != null) {
-            if (log.isTraceEnabled())
-                log.trace( "data position before read: " + data.position() );
-
-            int residue = csw.getInt( 8 );
-            data.position( data.position() + dataLength - residue );
+            int limit = transferred < 0 ? dataLength : transferred;
+            int moved = Math.max( 0, dataLength - residue );
+            if (moved > limit) {
+                log.warn( String.format(
+                        "CSW residue %d disagrees with %d of %d bytes"
+                            + " transferred", residue, limit, dataLength ));
+                moved = limit;
+            }
+            residue = dataLength - moved;
 
+            StringBuilder str = null;
             if (log.isTraceEnabled()) {
-                StringBuilder str = new StringBuilder();
+                str = new StringBuilder();
                 str.append( String.format(
-                        "received data length=%d residue=%d position=%d",
-                        dataLength, residue, data.position()
+                        "received data length=%d residue=%d",
+                        dataLength, residue
                     ));
+            }
 
-                if (dataLength - residue > 0) {
+            for (int idx = 0; moved > 0; idx++) {
+                ByteBuffer buffer = data[ idx ];
+                int count = Math.min( moved, buffer.remaining() );
+                if (str != null && count > 0) {
                     str.append( ":\n" );
-                    HexDump.dump( dataIrp.getData(),
-                            dataIrp.getOffset(),
-                            dataIrp.getLength() - residue,
-                            str, 0
+                    HexDump.dump( buffer.array(),
+                            buffer.arrayOffset() + buffer.position(),
+                            count, str, 0
                         );
                 }
 
-                log.trace( str.toString() );
+                buffer.position( buffer.position() + count );
+                moved -= count;
             }
+
+            if (str != null) log.trace( str.toString() );
         }
 
         // check the status in bCSWStatus
@@ -513,11 +999,11 @@ implements Closeable {
         switch (status) {
         case 0x00: // Command Passed
             log.trace( "command completed successfully" );
-            return true;
+            return new CommandStatus( true, residue );
 
         case 0x01: // Command Failed
             log.trace( "command failed" );
-            return false;
+            return new CommandStatus( false, residue );
 
         case 0x02: // Phase Error
             // BBB 5.3.3.1 - host must perform Reset Recovery
@@ -529,9 +1015,648 @@ implements Closeable {
         }
     }
 
+
+    /** Sends a command without blocking the calling thread.
+     *
+     * The CBW, data and CSW phases are chained from the completion events
+     * of each other's IRPs, so no thread waits on the device. Commands are
+     * queued behind any others in flight, synchronous ones included. The
+     * command buffer is consumed immediately; the data buffer must not be
+     * touched until the future completes, at which point its position has
+     * been advanced as for {@link #sendCommand}.
+     *
+     * Phases are timed as for {@link #sendCommand}, but with no overall
+     * deadline; closing the driver fails whatever is pending. The future
+     * completes on a USB event thread or the timeout thread, so dependent
+     * stages must not send blocking commands unless they run on another
+     * executor.
+     *
+     * @throws IllegalArgumentException if the command or buffer is invalid
+     */
+    public CompletableFuture<CommandStatus> sendCommandAsync (
+            ByteBuffer command, ByteBuffer data, int dataLength, boolean in) {
+        return sendCommandAsync( command, data, dataLength, in,
+                null, Deadline.NONE );
+    }
+
+    /** Sends a command without blocking, fetching sense data if it fails.
+     *
+     * If the device reports Command Failed, a REQUEST SENSE is sent into
+     * the given buffer before any other queued command can run and clear
+     * the sense data. {@link CommandStatus#senseValid()} reports whether
+     * that succeeded.
+     *
+     * @see #sendCommandAsync(ByteBuffer, ByteBuffer, int, boolean)
+     */
+    public CompletableFuture<CommandStatus> sendCommandAsync (
+            ByteBuffer command, ByteBuffer data, int dataLength, boolean in,
+            ByteBuffer sense) {
+        return sendCommandAsync( command, data, dataLength, in,
+                sense, Deadline.NONE );
+    }
+
+    /** Sends a command without blocking, bounding it by a deadline.
+     *
+     * Each phase is timed as for {@link #sendCommand}, limited to the
+     * time remaining. A phase which times out has its IRPs aborted and
+     * fails the future with {@link DeviceTimeoutException}, and the device
+     * is reset before the next command. Waiting in the queue behind other
+     * commands counts toward the deadline.
+     *
+     * @see #sendCommandAsync(ByteBuffer, ByteBuffer, int, boolean, ByteBuffer)
+     */
+    CompletableFuture<CommandStatus> sendCommandAsync (
+            ByteBuffer command, ByteBuffer data, int dataLength, boolean in,
+            ByteBuffer sense, Deadline deadline) {
+        checkCommand( command, data, dataLength );
+        if (sense != null && !sense.hasArray())
+            throw new IllegalArgumentException( "sense buffer must be array-backed" );
+
+        int tag = rand.nextInt();
+        ByteBuffer cbw;
+        try {
+            cbw = buildCbw( command, data, dataLength, in, tag );
+        } catch (IOException caught) {
+            CompletableFuture<CommandStatus> failed =
+                new CompletableFuture<CommandStatus>();
+            failed.completeExceptionally( caught );
+            return failed;
+        }
+
+        AsyncCommand pending = new AsyncCommand(
+                cbw, tag, data, dataLength, in, sense, deadline );
+
+        synchronized (transport) {
+            if (closed) {
+                pending.future.completeExceptionally(
+                        new ClosedChannelException() );
+                return pending.future;
+            }
+
+            if (transportBusy) {
+                waiting.add( pending );
+                return pending.future;
+            }
+
+            transportBusy = true;
+        }
+
+        begin( pending );
+        return pending.future;
+    }
+
+    /** Waits until no other command is using the transport, then claims it. */
+    private void acquireTransport (Deadline deadline)
+    throws IOException {
+        synchronized (transport) {
+            while (transportBusy) {
+                if (closed) throw new ClosedChannelException();
+                deadline.check( "waiting for queued commands" );
+
+                try {
+                    transport.wait( deadline.isBounded()
+                            ? Math.max( 1, deadline.remainingMillis() ) : 0 );
+                } catch (InterruptedException caught) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "interrupted waiting for queued commands" );
+                }
+            }
+
+            if (closed) throw new ClosedChannelException();
+            transportBusy = true;
+        }
+    }
+
+    /** Releases the transport, handing it to the next queued command. */
+    private void releaseTransport() {
+        AsyncCommand next;
+        synchronized (transport) {
+            active = null;
+            next = closed ? null : waiting.poll();
+            if (next == null) {
+                transportBusy = false;
+                transport.notifyAll();
+                return;
+            }
+        }
+
+        begin( next );
+    }
+
+    private void begin (AsyncCommand command) {
+        synchronized (transport) {
+            active = command;
+        }
+
+        command.start();
+    }
+
+    private void submitAsync (UsbPipe pipe, UsbIrp irp, IrpCallback callback)
+    throws UsbException {
+        callbacks.put( irp, callback );
+        try {
+            pipe.asyncSubmit( irp );
+        } catch (UsbException | RuntimeException caught) {
+            callbacks.remove( irp );
+            throw caught;
+        }
+    }
+
+    private void dispatch (UsbIrp irp) {
+        IrpCallback callback = callbacks.remove( irp );
+        if (callback == null) return; // submitted synchronously
+
+        callback.completed( irp.isUsbException() ? irp.getUsbException() : null );
+    }
+
+    /** Clears a halted endpoint without aborting its queue, which is
+     * safe from that pipe's event thread when nothing else is queued.
+     */
+    private void clearHalt (UsbPipe pipe)
+    throws UsbException {
+        submitDeviceIrp( device.createUsbControlIrp(
+                (byte)( UsbConst.REQUESTTYPE_TYPE_STANDARD
+                    | UsbConst.REQUESTTYPE_DIRECTION_OUT
+                    | UsbConst.REQUESTTYPE_RECIPIENT_ENDPOINT ),
+                UsbConst.REQUEST_CLEAR_FEATURE,
+                UsbConst.FEATURE_SELECTOR_ENDPOINT_HALT,
+                pipe.getUsbEndpoint()
+                    .getUsbEndpointDescriptor()
+                    .bEndpointAddress()
+            ), IRP_TIMEOUT_MS );
+    }
+
+
+    /** Status of a command sent with {@link #sendCommandAsync}. */
+    public static class CommandStatus {
+        private final boolean passed;
+        private final int residue;
+        private final boolean senseValid;
+
+        CommandStatus (boolean passed, int residue) {
+            this( passed, residue, false );
+        }
+
+        CommandStatus (boolean passed, int residue, boolean senseValid) {
+            this.passed = passed;
+            this.residue = residue;
+            this.senseValid = senseValid;
+        }
+
+        /** Whether the device reported Command Passed. */
+        public boolean passed() {
+            return passed;
+        }
+
+        /** Bytes of the requested data phase which were not transferred. */
+        public int residue() {
+            return residue;
+        }
+
+        /** Whether sense data was fetched for a failed command. */
+        public boolean senseValid() {
+            return senseValid;
+        }
+    }
+
+    private interface IrpCallback {
+        void completed (UsbException error);
+    }
+
+    /** State of one asynchronous command as it moves through its phases. */
+    private class AsyncCommand {
+        final CompletableFuture<CommandStatus> future =
+            new CompletableFuture<CommandStatus>();
+
+        private final ByteBuffer cbw, data, sense;
+        private final ByteBuffer csw = ByteBuffer.allocate( 13 );
+        private final int tag, dataLength;
+        private final boolean in;
+        private final Deadline deadline;
+        private final DataPhase phase = new DataPhase();
+        private boolean cswRetried = false;
+
+        // data IRPs in flight, oldest first; guarded by this
+        private final Queue<UsbIrp> dataIrps = new ArrayDeque<UsbIrp>();
+        private int dataQueued = 0;
+        private boolean draining = false;
+
+        // timeout of the phase in flight; guarded by this
+        private ScheduledFuture<?> timer = null;
+        private int armed = 0;
+        private boolean timedOut = false;
+
+        AsyncCommand (ByteBuffer cbw, int tag,
+                ByteBuffer data, int dataLength, boolean in, ByteBuffer sense,
+                Deadline deadline) {
+            this.cbw = cbw;
+            this.tag = tag;
+            this.data = data;
+            this.dataLength = dataLength;
+            this.in = in;
+            this.sense = sense;
+            this.deadline = deadline;
+            csw.order( ByteOrder.LITTLE_ENDIAN );
+        }
+
+        void start() {
+            if (!needResetRecovery) {
+                sendCbw();
+                return;
+            }
+
+            // reset recovery aborts pipe submissions and waits for control
+            // transfers, which deadlocks on a pipe's event thread, so do it
+            // somewhere else
+            ForkJoinPool.commonPool().execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        recover();
+                    }
+                });
+        }
+
+        private void recover() {
+            log.trace( "performing needed reset recovery" );
+
+            try {
+                resetRecovery( deadline );
+                needResetRecovery = false;
+            } catch (UsbException caught) {
+                log.error( "reset recovery failed", caught );
+                fail( wrap( "USBMS Bulk-Only reset recovery was needed"
+                            + " and failed", caught ));
+                return;
+            }
+
+            sendCbw();
+        }
+
+        private void sendCbw() {
+
+            UsbIrp cbwIrp = pipeOut.createUsbIrp();
+            cbwIrp.setData( cbw.array() );
+            cbwIrp.setAcceptShortPacket( true );
+
+            log.trace( "sending async CBW IRP" );
+            arm( pipeOut, phaseTimeout( 0, false, deadline ));
+            submit( pipeOut, cbwIrp, new IrpCallback() {
+                    @Override
+                    public void completed (UsbException error) {
+                        cbwDone( error );
+                    }
+                });
+        }
+
+        /** Starts the timeout for a phase on a pipe, replacing the last
+         * phase's. When it fires, the pipe's IRPs are aborted and the
+         * command fails.
+         */
+        private synchronized void arm (final UsbPipe pipe, final long timeoutMs) {
+            if (timer != null) timer.cancel( false );
+
+            final int phase = ++armed;
+            timer = timers.schedule( new Runnable() {
+                    @Override
+                    public void run() {
+                        expired( pipe, phase, timeoutMs );
+                    }
+                }, Math.max( 0, timeoutMs ), TimeUnit.MILLISECONDS );
+        }
+
+        /** Stops the current phase's timeout. Returns false if it already
+         * fired, in which case the command has failed and the completion
+         * being handled is moot.
+         */
+        synchronized boolean disarm() {
+            if (timedOut) return false;
+
+            if (timer != null) timer.cancel( false );
+            timer = null;
+            armed++;
+            return true;
+        }
+
+        private void expired (UsbPipe pipe, int phase, long timeoutMs) {
+            synchronized (this) {
+                if (phase != armed || timedOut) return;
+                timedOut = true;
+                // stop the data phase from queueing more IRPs
+                draining = true;
+            }
+
+            log.warn( "async command timed out after " + timeoutMs + " ms" );
+
+            // cancel the transfer so it can't complete into a later
+            // command's buffers, and resynchronize before the next command
+            needResetRecovery = true;
+            try {
+                pipe.abortAllSubmissions();
+            } catch (RuntimeException caught) {
+                log.error( "aborting timed out IRPs failed", caught );
+            }
+
+            fail( new DeviceTimeoutException( deadline.isExpired()
+                        ? "deadline expired during USB IRP"
+                        : "USB IRP timed out after " + timeoutMs + " ms" ));
+        }
+
+        private void cbwDone (UsbException error) {
+            if (!disarm()) return;
+
+            if (error instanceof UsbStallException) {
+                log.warn( "device STALLed on CBW" );
+                metrics.stalls.increment();
+                // BBB 5.3.1 - host must perform Reset Recovery
+                needResetRecovery = true;
+                fail( new IOException( "error sending command", error ));
+                return;
+            } else if (error != null) {
+                log.error( "CBW IRP failed", error );
+                needResetRecovery = true;
+                fail( wrap( "error sending command", error ));
+                return;
+            }
+
+            if (data == null || dataLength == 0) {
+                readCsw();
+                return;
+            }
+
+            arm( in ? pipeIn : pipeOut, phaseTimeout( dataLength, in, deadline ));
+            sendData();
+        }
+
+        /** Tops up the data phase's queue of IRPs; see
+         * {@link #transferData}.
+         */
+        private synchronized void sendData() {
+            UsbPipe pipe = in ? pipeIn : pipeOut;
+            int depth = pipelineDepth;
+            int irpLength = irpLength( pipe, dataLength, depth );
+
+            while (!draining && dataIrps.size() < depth
+                    && dataQueued < dataLength) {
+                int length = Math.min( irpLength, dataLength - dataQueued );
+                final UsbIrp irp = pipe.createUsbIrp();
+                irp.setData( data.array(),
+                        data.arrayOffset() + data.position() + dataQueued,
+                        length );
+                irp.setAcceptShortPacket( true );
+                dataIrps.add( irp );
+                dataQueued += length;
+
+                log.trace( "sending async data IRP" );
+                // once the command has failed, later completions are moot
+                draining = !submit( pipe, irp, new IrpCallback() {
+                        @Override
+                        public void completed (UsbException error) {
+                            dataIrpDone( irp, error );
+                        }
+                    });
+            }
+        }
+
+        private void dataIrpDone (UsbIrp irp, final UsbException error) {
+            boolean drain;
+            synchronized (this) {
+                // anything completing now is examined by drainData, or
+                // was aborted by the timeout
+                if (draining) return;
+
+                dataIrps.remove( irp );
+                if (error != null) {
+                    phase.failed = true;
+                } else {
+                    phase.transferred += irp.getActualLength();
+                    if (irp.getActualLength() == irp.getLength()) {
+                        sendData();
+                        if (!dataIrps.isEmpty()) return;
+                    }
+                }
+
+                drain = draining = !dataIrps.isEmpty();
+            }
+
+            if (!drain) {
+                if (disarm()) dataDone( error );
+                return;
+            }
+
+            // the phase ended early with IRPs still queued; aborting them
+            // waits for this pipe's event thread, so do it somewhere else
+            ForkJoinPool.commonPool().execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        drainData( error );
+                    }
+                });
+        }
+
+        private void drainData (UsbException error) {
+            // the queue no longer changes once draining is set, and holding
+            // the lock here would block the completions the abort waits for
+            try {
+                phase.cswReceived = drainQueued(
+                        in ? pipeIn : pipeOut, dataIrps, csw );
+            } catch (RuntimeException caught) {
+                if (!disarm()) return;
+                needResetRecovery = true;
+                fail( caught );
+                return;
+            }
+
+            if (!disarm()) return;
+            if (phase.cswReceived) {
+                cswDone( null );
+            } else {
+                dataDone( error );
+            }
+        }
+
+        private void dataDone (UsbException error) {
+            if (error instanceof UsbStallException) {
+                log.warn( "device STALLed on data; continuing to read CSW" );
+                metrics.stalls.increment();
+                // BBB 6.7.2 host 3 / 6.7.3 host 3 - clear the pipe, read CSW
+                try {
+                    clearHalt( in ? pipeIn : pipeOut );
+                } catch (UsbException caught) {
+                    log.error( "clearing pipe after data stall failed", caught );
+                    needResetRecovery = true;
+                    fail( wrap( "error recovering from issue sending data",
+                                caught ));
+                    return;
+                }
+            } else if (error != null) {
+                log.error( "data IRP failed", error );
+                needResetRecovery = true;
+                fail( wrap( "error " + (in ? "receiving" : "sending")
+                            + " data", error ));
+                return;
+            }
+
+            readCsw();
+        }
+
+        private void readCsw() {
+            UsbIrp cswIrp = pipeIn.createUsbIrp();
+            cswIrp.setData( csw.array() );
+            cswIrp.setAcceptShortPacket( true );
+
+            log.trace( "sending async CSW IRP" );
+            // a write's status arrives only once the device has stored the data
+            arm( pipeIn, phaseTimeout(
+                        data != null && !in ? dataLength : 0, false, deadline ));
+            submit( pipeIn, cswIrp, new IrpCallback() {
+                    @Override
+                    public void completed (UsbException error) {
+                        cswDone( error );
+                    }
+                });
+        }
+
+        private void cswDone (UsbException error) {
+            if (!disarm()) return;
+
+            if (error instanceof UsbStallException) {
+                metrics.stalls.increment();
+
+                if (cswRetried || !quirks.cswStallRetry()) {
+                    log.warn( "device STALLed on CSW read" );
+                    // BBB fig 2 - host must perform Reset Recovery
+                    needResetRecovery = true;
+                    fail( new RecoverableException(
+                                "device requires bulk-only reset" ));
+                    return;
+                }
+
+                log.warn( "device STALLed on first CSW read, retrying" );
+                cswRetried = true;
+                try {
+                    clearHalt( pipeIn );
+                } catch (UsbException caught) {
+                    log.error( "clearing pipe after CSW stall failed", caught );
+                    needResetRecovery = true;
+                    fail( wrap( "error recovering from issue reading status",
+                                caught ));
+                    return;
+                }
+
+                readCsw();
+                return;
+            } else if (error != null) {
+                log.error( "CSW IRP failed", error );
+                needResetRecovery = true;
+                fail( wrap( "error reading status", error ));
+                return;
+            }
+
+            CommandStatus status;
+            try {
+                status = checkCsw( csw, tag, data, dataLength,
+                        phase.failed ? -1 : phase.transferred );
+            } catch (IOException | RuntimeException caught) {
+                fail( caught );
+                return;
+            }
+
+            if (!status.passed() && sense != null) {
+                requestSense( status );
+                return;
+            }
+
+            releaseTransport();
+            future.complete( status );
+        }
+
+        /** Sends REQUEST SENSE while still holding the transport, then
+         * completes this command with the original status.
+         */
+        private void requestSense (final CommandStatus status) {
+            log.trace( "async command failed, sending REQUEST SENSE" );
+
+            int length = Math.min( sense.remaining(), 0xFF );
+            ByteBuffer cbd = ByteBuffer.allocate( 6 );
+            cbd.put( 0, (byte) 0x03 ); // REQUEST SENSE
+            cbd.put( 4, (byte) length ); // ALLOCATION LENGTH
+
+            final AsyncCommand request;
+            try {
+                int senseTag = rand.nextInt();
+                request = new AsyncCommand(
+                        buildCbw( cbd, sense, length, true, senseTag ),
+                        senseTag, sense, length, true, null, deadline );
+            } catch (IOException caught) {
+                fail( caught );
+                return;
+            }
+
+            request.future.whenComplete(
+                new BiConsumer<CommandStatus, Throwable>() {
+                    @Override
+                    public void accept (CommandStatus result, Throwable error) {
+                        if (error != null) {
+                            future.completeExceptionally( error );
+                        } else {
+                            future.complete( new CommandStatus( false,
+                                        status.residue(), result.passed() ));
+                        }
+                    }
+                });
+
+            synchronized (transport) {
+                active = request;
+            }
+            request.start();
+        }
+
+        /** Submits an IRP, failing the command if that fails. */
+        private boolean submit (UsbPipe pipe, UsbIrp irp, IrpCallback callback) {
+            try {
+                submitAsync( pipe, irp, callback );
+                return true;
+            } catch (UsbException caught) {
+                if (!disarm()) return false;
+                needResetRecovery = true;
+                fail( wrap( "error submitting USB IRP", caught ));
+            } catch (RuntimeException caught) {
+                if (!disarm()) return false;
+                fail( caught );
+            }
+            return false;
+        }
+
+        void fail (Throwable cause) {
+            releaseTransport();
+            future.completeExceptionally( cause );
+        }
+    }
+
+
     @Override
     public void close()
     throws IOException {
+        List<AsyncCommand> pending;
+        synchronized (transport) {
+            closed = true;
+            pending = new ArrayList<AsyncCommand>( waiting );
+            waiting.clear();
+            if (active != null) pending.add( active );
+            transport.notifyAll();
+        }
+
+        // aborted IRPs never complete, so nothing else will finish these
+        for (AsyncCommand command : pending) {
+            command.disarm();
+            command.future.completeExceptionally(
+                    new AsynchronousCloseException() );
+        }
+
+        pipeIn.removeUsbPipeListener( pipeListener );
+        pipeOut.removeUsbPipeListener( pipeListener );
+
         try {
             pipeOut.abortAllSubmissions();
             pipeOut.close();
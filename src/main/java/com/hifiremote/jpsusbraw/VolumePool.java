@@ -0,0 +1,236 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbException;
+import javax.usb.UsbHostManager;
+import javax.usb.event.UsbServicesEvent;
+import javax.usb.event.UsbServicesListener;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Keeps the volumes of closed channels claimed and mounted for a while,
+ * so that opening the same device again costs only its data transfer.
+ *
+ * At most one idle volume is kept per device path. It is released once
+ * it has been idle for the pool's idle time, when its device is
+ * unplugged, or when it fails TEST UNIT READY on checkout.
+ */
+class VolumePool {
+    private static final Logger log = LogManager.getLogger();
+
+    // time allowed for the check of a pooled volume on checkout
+    private static final long CHECK_TIMEOUT_MS = 1000;
+
+    private final Map<DevicePath, Idle> idle = new HashMap<DevicePath, Idle>();
+    private long idleNanos = 0;
+    private ScheduledExecutorService reaper = null;
+    private boolean listening = false;
+
+    /** Sets how long a volume may stay idle, releasing any pooled now.
+     * Zero disables pooling.
+     */
+    void setIdleTime (long nanos) {
+        synchronized (this) {
+            idleNanos = nanos;
+        }
+        releaseAll();
+    }
+
+    /** Takes the pooled volume for a device path, if there is one that
+     * is still fresh and responding, or returns null.
+     */
+    MountedVolume checkout (DevicePath path) {
+        Idle entry;
+        long limit;
+        synchronized (this) {
+            entry = idle.remove( path );
+            limit = idleNanos;
+        }
+        if (entry == null) return null;
+
+        if (System.nanoTime() - entry.since >= limit) {
+            release( entry.volume );
+            return null;
+        }
+
+        try {
+            entry.volume.storage.testUnitReady(
+                    Deadline.after( CHECK_TIMEOUT_MS, TimeUnit.MILLISECONDS ));
+        } catch (IOException caught) {
+            if (log.isDebugEnabled())
+                log.debug( "pooled device " + path + " failed its check", caught );
+            release( entry.volume );
+            return null;
+        }
+
+        entry.volume.metrics.pooledOpens.increment();
+        return entry.volume;
+    }
+
+    /** Returns the volume of a closed channel to the pool, or releases it
+     * if pooling is disabled.
+     */
+    void checkin (MountedVolume volume)
+    throws IOException {
+        long delay;
+        Idle replaced = null;
+        synchronized (this) {
+            delay = idleNanos;
+            if (delay > 0) {
+                replaced = idle.put( volume.path,
+                        new Idle( volume, System.nanoTime() ));
+                reaper().schedule( new Runnable() {
+                        @Override
+                        public void run() {
+                            reap();
+                        }
+                    }, delay, TimeUnit.NANOSECONDS );
+            }
+        }
+
+        if (delay <= 0) {
+            volume.close();
+            return;
+        }
+
+        if (replaced != null) release( replaced.volume );
+        listen();
+    }
+
+    /** Releases every pooled volume. */
+    void releaseAll() {
+        List<MountedVolume> released = new ArrayList<MountedVolume>();
+        synchronized (this) {
+            for (Idle entry : idle.values())
+                released.add( entry.volume );
+            idle.clear();
+        }
+
+        for (MountedVolume volume : released)
+            release( volume );
+    }
+
+    private void reap() {
+        List<MountedVolume> released = new ArrayList<MountedVolume>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            Iterator<Idle> entries = idle.values().iterator();
+            while (entries.hasNext()) {
+                Idle entry = entries.next();
+                if (now - entry.since >= idleNanos) {
+                    released.add( entry.volume );
+                    entries.remove();
+                }
+            }
+        }
+
+        for (MountedVolume volume : released) {
+            if (log.isDebugEnabled())
+                log.debug( "releasing idle device " + volume.path );
+            release( volume );
+        }
+    }
+
+    private void detached (UsbDevice device) {
+        List<MountedVolume> released = new ArrayList<MountedVolume>();
+        synchronized (this) {
+            Iterator<Idle> entries = idle.values().iterator();
+            while (entries.hasNext()) {
+                Idle entry = entries.next();
+                if (entry.volume.device.equals( device )) {
+                    released.add( entry.volume );
+                    entries.remove();
+                }
+            }
+        }
+
+        for (MountedVolume volume : released) {
+            if (log.isDebugEnabled())
+                log.debug( "releasing unplugged device " + volume.path );
+            release( volume );
+        }
+    }
+
+    private static void release (MountedVolume volume) {
+        try {
+            volume.close();
+        } catch (IOException caught) {
+            // most likely the device is already gone
+            log.debug( "error releasing pooled device", caught );
+        }
+    }
+
+    private ScheduledExecutorService reaper() {
+        if (reaper == null) {
+            reaper = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread (Runnable task) {
+                        Thread thread = new Thread( task, "jpsusbraw-pool" );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                });
+        }
+
+        return reaper;
+    }
+
+    /** Starts watching for unplugged devices, once. */
+    private void listen() {
+        synchronized (this) {
+            if (listening) return;
+            listening = true;
+        }
+
+        try {
+            UsbHostManager.getUsbServices().addUsbServicesListener(
+                new UsbServicesListener() {
+                    @Override
+                    public void usbDeviceAttached (UsbServicesEvent event) {
+                    }
+
+                    @Override
+                    public void usbDeviceDetached (UsbServicesEvent event) {
+                        detached( event.getUsbDevice() );
+                    }
+                });
+        } catch (UsbException caught) {
+            log.warn( "unable to watch for unplugged devices", caught );
+        }
+    }
+
+
+    private static class Idle {
+        final MountedVolume volume;
+        final long since;
+
+        Idle (MountedVolume volume, long since) {
+            this.volume = volume;
+            this.since = since;
+        }
+    }
+}
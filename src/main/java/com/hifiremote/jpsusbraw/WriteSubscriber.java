@@ -0,0 +1,226 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/** Writes a stream of buffers to the settings file.
+ *
+ * Incoming data is copied into pooled buffers of one WRITE (10) command
+ * each. Items are requested one at a time, and only while fewer than
+ * {@link ReadPublisher#MAX_OUTSTANDING} commands are in flight, so a
+ * slow device holds back the publisher rather than filling memory.
+ * If the stream ends partway through a block, the rest of that block
+ * is read from the device first so it isn't overwritten.
+ *
+ * Commands go through the device's I/O scheduler like the channel's
+ * own writes, so they keep their order against conflicting requests
+ * and update the channel's in-memory copies of the file.
+ *
+ * The {@link #completion()} future gives the number of bytes written
+ * once every command has finished.
+ */
+public class WriteSubscriber
+implements Flow.Subscriber<ByteBuffer> {
+    private static final Logger log = LogManager.getLogger();
+
+    private final JpsUsbRaw channel;
+    private final long end;
+    private final IoPriority priority;
+    private final BufferPool pool;
+    private final CompletableFuture<Long> completion =
+        new CompletableFuture<Long>();
+
+    // all guarded by this
+    private Flow.Subscription subscription = null;
+    private ByteBuffer staging = null;
+    private long next;
+    private long accepted = 0;
+    private int outstanding = 0;
+    private boolean wantMore = false;
+    private boolean upstreamDone = false;
+    private boolean finished = false;
+
+    /** @param start      file position to start writing, block-aligned
+     *  @param end        file position the stream may not pass
+     *  @param chunkBlocks blocks per WRITE command
+     */
+    WriteSubscriber (JpsUsbRaw channel, long start, long end,
+            int chunkBlocks, IoPriority priority) {
+        if (start % channel.blockSize() != 0)
+            throw new IllegalArgumentException( "start must be block-aligned" );
+
+        this.channel = channel;
+        this.next = start;
+        this.end = end;
+        this.priority = priority;
+        this.pool = new BufferPool( chunkBlocks * channel.blockSize(),
+                ReadPublisher.MAX_OUTSTANDING + 1 );
+    }
+
+    /** Completes with the number of bytes written, or with the error
+     * which stopped the stream.
+     */
+    public CompletableFuture<Long> completion() {
+        return completion;
+    }
+
+    @Override
+    public void onSubscribe (Flow.Subscription subscription) {
+        synchronized (this) {
+            if (this.subscription != null || finished) {
+                subscription.cancel();
+                return;
+            }
+
+            this.subscription = subscription;
+        }
+
+        subscription.request( 1 );
+    }
+
+    @Override
+    public void onNext (ByteBuffer item) {
+        boolean request;
+
+        synchronized (this) {
+            if (finished) return;
+
+            if (next + (staging == null ? 0 : staging.position())
+                    + item.remaining() > end) {
+                subscription.cancel();
+                fail( new IOException( "can't write past end of file" ));
+                return;
+            }
+
+            accepted += item.remaining();
+            while (item.hasRemaining()) {
+                if (staging == null) staging = pool.acquire();
+
+                int count = Math.min( item.remaining(), staging.remaining() );
+                ByteBuffer part = item.duplicate();
+                part.limit( part.position() + count );
+                staging.put( part );
+                item.position( item.position() + count );
+
+                if (!staging.hasRemaining()) flush();
+            }
+
+            request = outstanding < ReadPublisher.MAX_OUTSTANDING;
+            wantMore = !request;
+        }
+
+        if (request) subscription.request( 1 );
+    }
+
+    @Override
+    public void onError (Throwable cause) {
+        synchronized (this) {
+            fail( cause );
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            if (finished) return;
+            upstreamDone = true;
+
+            if (staging != null && staging.position() == 0) {
+                pool.release( staging );
+                staging = null;
+            } else if (staging != null) {
+                flush();
+            }
+
+            checkDone();
+        }
+    }
+
+    /** Starts a WRITE of the staging buffer. */
+    private void flush() {
+        final ByteBuffer buffer = staging;
+        staging = null;
+
+        final int length = buffer.position();
+        buffer.flip();
+
+        final long offset = next;
+        next += length;
+        outstanding++;
+
+        if (log.isTraceEnabled()) {
+            log.trace( String.format(
+                    "stream write offset=%d length=%d", offset, length ));
+        }
+
+        channel.writeBlocksAsync( buffer, offset, priority ).whenComplete(
+            new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept (Void result, Throwable caught) {
+                    written( buffer, caught );
+                }
+            });
+    }
+
+    private void written (ByteBuffer buffer, Throwable caught) {
+        boolean request = false;
+
+        synchronized (this) {
+            outstanding--;
+            pool.release( buffer );
+
+            if (caught != null) {
+                if (subscription != null && !upstreamDone)
+                    subscription.cancel();
+                fail( caught );
+                return;
+            }
+
+            if (wantMore && !finished
+                    && outstanding < ReadPublisher.MAX_OUTSTANDING) {
+                wantMore = false;
+                request = true;
+            }
+
+            checkDone();
+        }
+
+        if (request) subscription.request( 1 );
+    }
+
+    private void checkDone() {
+        if (upstreamDone && outstanding == 0 && staging == null && !finished) {
+            finished = true;
+            completion.complete( accepted );
+        }
+    }
+
+    private void fail (Throwable cause) {
+        if (finished) return;
+        finished = true;
+
+        if (staging != null) {
+            pool.release( staging );
+            staging = null;
+        }
+
+        completion.completeExceptionally( cause );
+    }
+}
@@ -0,0 +1,229 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IoSchedulerTest {
+    private static final int SIZE = 4096;
+    private static final long WAIT_SECONDS = 5;
+
+    /** An in-memory file which records the writes sent to it. */
+    private static class MemoryFile
+    implements IoScheduler.Target {
+        final byte[] data = new byte[ SIZE ];
+        final List<String> writes =
+            Collections.synchronizedList( new ArrayList<String>() );
+
+        @Override
+        public long size() {
+            return data.length;
+        }
+
+        @Override
+        public int doRead (ByteBuffer dst, long position, Deadline deadline) {
+            if (position >= data.length) return -1;
+
+            int count = (int) Math.min( dst.remaining(), data.length - position );
+            dst.put( data, (int) position, count );
+            return count;
+        }
+
+        @Override
+        public int doWrite (ByteBuffer src, long position, Deadline deadline) {
+            int count = (int) Math.min( src.remaining(), data.length - position );
+            src.get( data, (int) position, count );
+            writes.add( position + "+" + count );
+            return count;
+        }
+    }
+
+    /** A write whose outcome is kept in a future. */
+    private static class Write
+    extends IoScheduler.Request {
+        final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+        Write (long position, int length, int fill) {
+            super( IoScheduler.Kind.WRITE, filled( length, fill ), position,
+                    IoPriority.NORMAL, Deadline.NONE );
+        }
+
+        @Override
+        protected void completed (int result) {
+            future.complete( result );
+        }
+
+        @Override
+        protected void failed (Throwable cause) {
+            future.completeExceptionally( cause );
+        }
+
+        int result()
+        throws Exception {
+            return future.get( WAIT_SECONDS, TimeUnit.SECONDS );
+        }
+    }
+
+    private static ByteBuffer filled (int length, int fill) {
+        byte[] bytes = new byte[ length ];
+        Arrays.fill( bytes, (byte) fill );
+        return ByteBuffer.wrap( bytes );
+    }
+
+    private MemoryFile file;
+    private IoScheduler scheduler;
+    private CountDownLatch gate;
+
+    @Before
+    public void setUp() {
+        file = new MemoryFile();
+        scheduler = new IoScheduler( file, new DeviceMetrics( "test" ));
+    }
+
+    @After
+    public void tearDown() {
+        if (gate != null) gate.countDown();
+        scheduler.shutdown();
+    }
+
+    /** Holds the I/O thread so that what's submitted next is run as
+     * one batch once {@link #release} is called.
+     */
+    private void hold() {
+        gate = new CountDownLatch( 1 );
+        scheduler.submit( new IoScheduler.Task<Void>() {
+                @Override
+                public Void run() {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException caught) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                }
+            }, 0, -1, true, IoPriority.NORMAL );
+    }
+
+    private void release() {
+        gate.countDown();
+    }
+
+    private void assertFilled (int fill, int from, int to) {
+        byte[] expected = new byte[ to - from ];
+        Arrays.fill( expected, (byte) fill );
+        assertArrayEquals( expected, Arrays.copyOfRange( file.data, from, to ));
+    }
+
+    @Test
+    public void abuttingWritesAreSentAsOne() throws Exception {
+        hold();
+        Write first = new Write( 0, 512, 1 );
+        Write second = new Write( 512, 512, 2 );
+        scheduler.submit( second );
+        scheduler.submit( first );
+        release();
+
+        assertEquals( 512, first.result() );
+        assertEquals( 512, second.result() );
+        assertEquals( 0, first.buffer.remaining() );
+        assertEquals( 0, second.buffer.remaining() );
+        assertEquals( Arrays.asList( "0+1024" ), file.writes );
+        assertFilled( 1, 0, 512 );
+        assertFilled( 2, 512, 1024 );
+    }
+
+    @Test
+    public void writeCrossingEndRunsAlone() throws Exception {
+        hold();
+        Write inside = new Write( SIZE - 1024, 512, 1 );
+        Write crossing = new Write( SIZE - 512, 1024, 2 );
+        scheduler.submit( inside );
+        scheduler.submit( crossing );
+        release();
+
+        assertEquals( 512, inside.result() );
+        assertEquals( 512, crossing.result() );
+        assertEquals( 512, crossing.buffer.remaining() );
+        assertEquals( 2, file.writes.size() );
+        assertFilled( 1, SIZE - 1024, SIZE - 512 );
+        assertFilled( 2, SIZE - 512, SIZE );
+    }
+
+    @Test
+    public void chosenWriteCrossingEndRunsAlone() throws Exception {
+        // the crossing write is older, so it's the one picked
+        hold();
+        Write crossing = new Write( SIZE - 512, 1024, 2 );
+        Write inside = new Write( SIZE - 1024, 512, 1 );
+        scheduler.submit( crossing );
+        scheduler.submit( inside );
+        release();
+
+        assertEquals( 512, crossing.result() );
+        assertEquals( 512, inside.result() );
+        assertEquals( 2, file.writes.size() );
+        assertFilled( 1, SIZE - 1024, SIZE - 512 );
+        assertFilled( 2, SIZE - 512, SIZE );
+    }
+
+    @Test
+    public void writePastEndFailsAlone() throws Exception {
+        hold();
+        Write inside = new Write( SIZE - 512, 512, 1 );
+        Write past = new Write( SIZE, 512, 2 );
+        scheduler.submit( inside );
+        scheduler.submit( past );
+        release();
+
+        assertEquals( 512, inside.result() );
+        try {
+            past.result();
+            fail( "write past the end succeeded" );
+        } catch (ExecutionException caught) {
+            assertTrue( caught.getCause() instanceof IOException );
+        }
+        assertEquals( Arrays.asList( (SIZE - 512) + "+512" ), file.writes );
+    }
+
+    @Test
+    public void gappedWritesAreSentSeparately() throws Exception {
+        hold();
+        Write first = new Write( 0, 512, 1 );
+        Write second = new Write( 1024, 512, 2 );
+        scheduler.submit( first );
+        scheduler.submit( second );
+        release();
+
+        assertEquals( 512, first.result() );
+        assertEquals( 512, second.result() );
+        assertEquals( Arrays.asList( "0+512", "1024+512" ), file.writes );
+        assertFilled( 0, 512, 1024 );
+    }
+}
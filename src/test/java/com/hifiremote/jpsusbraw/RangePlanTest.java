@@ -0,0 +1,120 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RangePlanTest {
+    private static final int BLOCK_SIZE = 512;
+    private static final int MAX_BLOCKS = 64;
+
+    private static FileRange range (long position, int length) {
+        return new FileRange( position, ByteBuffer.allocate( length ));
+    }
+
+    private static List<RangePlan.Extent> plan (
+            int bridgeBlocks, FileRange... ranges) {
+        return RangePlan.plan( Arrays.asList( ranges ), 0,
+                BLOCK_SIZE, MAX_BLOCKS, bridgeBlocks );
+    }
+
+    @Test
+    public void bridgesGapsUpToTheLimit() {
+        // blocks 0 and 4, three blocks apart
+        FileRange first = range( 0, 100 );
+        FileRange second = range( 4 * BLOCK_SIZE, 100 );
+
+        List<RangePlan.Extent> bridged = plan( 3, first, second );
+        assertEquals( 1, bridged.size() );
+        assertEquals( 0, bridged.get( 0 ).firstBlock );
+        assertEquals( 5, bridged.get( 0 ).blocks );
+        assertEquals( Arrays.asList( 0, 1 ), bridged.get( 0 ).members );
+
+        List<RangePlan.Extent> split = plan( 2, first, second );
+        assertEquals( 2, split.size() );
+        assertEquals( 0, split.get( 0 ).firstBlock );
+        assertEquals( 1, split.get( 0 ).blocks );
+        assertEquals( 4, split.get( 1 ).firstBlock );
+        assertEquals( 1, split.get( 1 ).blocks );
+    }
+
+    @Test
+    public void doesNotBridgePastMaxBlocks() {
+        List<RangePlan.Extent> plan = RangePlan.plan(
+                Arrays.asList( range( 0, BLOCK_SIZE ),
+                    range( 4 * BLOCK_SIZE, BLOCK_SIZE )),
+                0, BLOCK_SIZE, 4, 8 );
+
+        assertEquals( 2, plan.size() );
+        assertEquals( 1, plan.get( 0 ).blocks );
+        assertEquals( 4, plan.get( 1 ).firstBlock );
+    }
+
+    @Test
+    public void abuttingWholeBlocksAreCovered() {
+        // given out of order; members come back in the caller's order
+        List<RangePlan.Extent> plan = plan( 0,
+                range( BLOCK_SIZE, BLOCK_SIZE ), range( 0, BLOCK_SIZE ));
+
+        assertEquals( 1, plan.size() );
+        assertEquals( 0, plan.get( 0 ).firstBlock );
+        assertEquals( 2, plan.get( 0 ).blocks );
+        assertTrue( plan.get( 0 ).covered );
+        assertEquals( Arrays.asList( 0, 1 ), plan.get( 0 ).members );
+    }
+
+    @Test
+    public void overlappingRangesAreCovered() {
+        List<RangePlan.Extent> plan = plan( 0,
+                range( 0, 700 ), range( 600, 2 * BLOCK_SIZE - 600 ));
+
+        assertEquals( 1, plan.size() );
+        assertEquals( 2, plan.get( 0 ).blocks );
+        assertTrue( plan.get( 0 ).covered );
+    }
+
+    @Test
+    public void partialBlocksAreNotCovered() {
+        assertFalse( plan( 0, range( 100, BLOCK_SIZE - 100 )).get( 0 ).covered );
+        assertFalse( plan( 0, range( 0, 600 )).get( 0 ).covered );
+    }
+
+    @Test
+    public void bridgedGapIsNotCovered() {
+        List<RangePlan.Extent> plan = plan( 1,
+                range( 0, BLOCK_SIZE ), range( 2 * BLOCK_SIZE, BLOCK_SIZE ));
+
+        assertEquals( 1, plan.size() );
+        assertEquals( 3, plan.get( 0 ).blocks );
+        assertFalse( plan.get( 0 ).covered );
+    }
+
+    @Test
+    public void leavesOutEmptyRangesAndAddsTheBase() {
+        List<RangePlan.Extent> plan = RangePlan.plan(
+                Arrays.asList( range( 0, 0 ), range( 0, BLOCK_SIZE )),
+                BLOCK_SIZE, BLOCK_SIZE, MAX_BLOCKS, 0 );
+
+        assertEquals( 1, plan.size() );
+        assertEquals( 1, plan.get( 0 ).firstBlock );
+        assertEquals( 1, plan.get( 0 ).blocks );
+        assertEquals( Arrays.asList( 1 ), plan.get( 0 ).members );
+    }
+}
@@ -0,0 +1,179 @@
+/* JpsUsbRaw - a userspace settings driver for UEI's USB universal remotes
+ * Written in 2016 by Sam Hanes <sam@maltera.com>
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain
+ * worldwide. This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package com.hifiremote.jpsusbraw;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScsiDriverTest {
+    private static final int BLOCK_SIZE = 512;
+    private static final int BLOCKS = 64;
+
+    /** A disk in memory which serves READ CAPACITY (10) and the 10-byte
+     * READ and WRITE, and records the length of each WRITE.
+     */
+    private static class MemoryDisk
+    extends UsbMassStorageDriver {
+        final byte[] data = new byte[ BLOCKS * BLOCK_SIZE ];
+        final List<Integer> writes = new ArrayList<Integer>();
+
+        MemoryDisk (DeviceMetrics metrics) {
+            super( new DeviceModel( (short) 0xFFFF, (short) 0xFFFF, (short) 0 ),
+                    metrics );
+        }
+
+        @Override
+        boolean sendSegments (ByteBuffer command,
+                ByteBuffer[] buffers, int dataLength, boolean in,
+                Deadline deadline) {
+            int base = command.position();
+            switch (command.get( base ) & 0xFF) {
+            case 0x25: // READ CAPACITY (10)
+                buffers[ 0 ].putInt( quirks().capacityTrusted()
+                        ? BLOCKS - 1 : BLOCKS );
+                buffers[ 0 ].putInt( BLOCK_SIZE );
+                return true;
+
+            case 0x28: // READ (10)
+            case 0x2A: // WRITE (10)
+                int offset = command.getInt( base + 2 ) * BLOCK_SIZE;
+                int count = command.getShort( base + 7 ) & 0xFFFF;
+                assertEquals( count * BLOCK_SIZE, dataLength );
+                if (!in) writes.add( count );
+
+                for (ByteBuffer buffer : buffers) {
+                    int share = Math.min( dataLength, buffer.remaining() );
+                    if (in) {
+                        buffer.put( data, offset, share );
+                    } else {
+                        buffer.get( data, offset, share );
+                    }
+                    offset += share;
+                    dataLength -= share;
+                }
+                assertEquals( 0, dataLength );
+                return true;
+
+            default:
+                throw new AssertionError( "unexpected command "
+                        + ScsiDriver.commandName( command.get( base )));
+            }
+        }
+
+        @Override
+        int packetSize (boolean in) {
+            return 64;
+        }
+
+        @Override
+        int maxPacketSize() {
+            return 64;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private String savedProfiles;
+    private MemoryDisk disk;
+    private ScsiDriver driver;
+
+    @Before
+    public void setUp() throws Exception {
+        // keep any profile stored for real devices out of it
+        savedProfiles = System.getProperty( "jpsusbraw.profiles" );
+        System.setProperty( "jpsusbraw.profiles",
+                new File( "target", "no-such-profiles" ).getPath() );
+
+        DeviceMetrics metrics = new DeviceMetrics( "test" );
+        disk = new MemoryDisk( metrics );
+        driver = new ScsiDriver( disk, metrics );
+        Arrays.fill( disk.data, (byte) 0x55 );
+    }
+
+    @After
+    public void tearDown() {
+        if (savedProfiles == null) {
+            System.clearProperty( "jpsusbraw.profiles" );
+        } else {
+            System.setProperty( "jpsusbraw.profiles", savedProfiles );
+        }
+    }
+
+    private static ByteBuffer filled (int length, int fill) {
+        byte[] bytes = new byte[ length ];
+        Arrays.fill( bytes, (byte) fill );
+        return ByteBuffer.wrap( bytes );
+    }
+
+    private void assertFilled (int fill, int from, int to) {
+        byte[] expected = new byte[ to - from ];
+        Arrays.fill( expected, (byte) fill );
+        assertArrayEquals( expected, Arrays.copyOfRange( disk.data, from, to ));
+    }
+
+    @Test
+    public void unalignedWriteKeepsTheRestOfItsBlocks() throws Exception {
+        ByteBuffer src = filled( 700, 0xAA );
+
+        assertEquals( 700, driver.write( src, 100, 700 ));
+        assertEquals( 0, src.remaining() );
+        assertFilled( 0x55, 0, 100 );
+        assertFilled( 0xAA, 100, 800 );
+        assertFilled( 0x55, 800, 2 * BLOCK_SIZE );
+    }
+
+    @Test
+    public void clampedBounceWriteTakesOnlyWhatItWrites() throws Exception {
+        driver.applyProfile( new TransferProfile( 4, 4 ));
+        ByteBuffer src = filled( 5000, 0xAA );
+
+        int written = driver.write( src, 100, 5000 );
+
+        assertEquals( 4 * BLOCK_SIZE - 100, written );
+        assertEquals( written, src.position() );
+        assertEquals( Arrays.asList( 4 ), disk.writes );
+        assertFilled( 0x55, 0, 100 );
+        assertFilled( 0xAA, 100, 4 * BLOCK_SIZE );
+        assertFilled( 0x55, 4 * BLOCK_SIZE, BLOCKS * BLOCK_SIZE );
+    }
+
+    @Test
+    public void repeatedBounceWritesFillTheRange() throws Exception {
+        driver.applyProfile( new TransferProfile( 4, 4 ));
+        ByteBuffer src = filled( 10000, 0xAA );
+
+        long offset = 100;
+        while (src.hasRemaining()) {
+            int written = driver.write( src, offset, src.remaining() );
+            assertTrue( written > 0 );
+            offset += written;
+        }
+
+        assertEquals( 10100, offset );
+        assertFilled( 0x55, 0, 100 );
+        assertFilled( 0xAA, 100, 10100 );
+        assertFilled( 0x55, 10100, BLOCKS * BLOCK_SIZE );
+    }
+}